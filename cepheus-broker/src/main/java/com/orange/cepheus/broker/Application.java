@@ -8,8 +8,10 @@
 
 package com.orange.cepheus.broker;
 
+import com.orange.cepheus.common.CompactEncoding;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
@@ -29,4 +31,11 @@ public class Application {
                 .showBanner(false)
                 .run(args);
     }
+
+    @Bean
+    public CompactEncoding compactEncoding(Configuration configuration) {
+        CompactEncoding compactEncoding = new CompactEncoding();
+        compactEncoding.setCompact(configuration.isNgsiCompact());
+        return compactEncoding;
+    }
 }
@@ -8,6 +8,7 @@
 
 package com.orange.cepheus.broker;
 
+import com.orange.cepheus.broker.persistence.Durability;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Component;
@@ -59,6 +60,135 @@ public class Configuration {
     @Value("${remote.forward.updateContext:true}")
     private boolean remoteForwardUpdateContext = true;
 
+    /**
+     * Time window (in milliseconds) during which the registrations are gathered before being sent to the remote broker
+     * in batches, 0 to send each registration immediately
+     */
+    @Value("${remote.registration.batch.window:0}")
+    private long remoteRegistrationBatchWindow = 0;
+
+    /**
+     * Maximum number of context registrations merged in a registerContext sent to the remote broker
+     */
+    @Value("${remote.registration.batch.maxSize:100}")
+    private int remoteRegistrationBatchMaxSize = 100;
+
+    /**
+     * Maximum number of batched registerContext in flight to the remote broker, 0 for no limit
+     */
+    @Value("${remote.registration.maxConcurrentRequests:4}")
+    private int remoteRegistrationMaxConcurrentRequests = 4;
+
+    /**
+     * Average delay (in milliseconds) before retrying failed batches of registrations, randomized by +/- 50%
+     */
+    @Value("${remote.registration.retry.delay:10000}")
+    private long remoteRegistrationRetryDelay = 10000;
+
+    /**
+     * Time window (in milliseconds) during which the notifications of a same subscription are coalesced
+     * in a single notifyContext, 0 to notify immediately
+     */
+    @Value("${notify.batch.window:0}")
+    private long notifyBatchWindow = 0;
+
+    /**
+     * Maximum number of context elements in a coalesced notifyContext,
+     * the notification is sent before the end of the window when reached
+     */
+    @Value("${notify.batch.maxSize:100}")
+    private int notifyBatchMaxSize = 100;
+
+    /**
+     * Maximum time (in milliseconds) to wait for the response of a providing application or of the remote broker, 0 for no limit
+     */
+    @Value("${upstream.timeout:30000}")
+    private long upstreamTimeout = 30000;
+
+    /**
+     * Maximum number of requests in flight to a same providing application or remote broker, 0 for no limit
+     */
+    @Value("${upstream.maxConcurrentRequests:50}")
+    private int upstreamMaxConcurrentRequests = 50;
+
+    /**
+     * Number of consecutive failures opening the circuit of an upstream server, 0 to disable the circuit breaker
+     */
+    @Value("${upstream.breaker.failures:5}")
+    private int upstreamBreakerFailures = 5;
+
+    /**
+     * Time (in milliseconds) during which the circuit of an upstream server stays open after opening
+     */
+    @Value("${upstream.breaker.backoff:1000}")
+    private long upstreamBreakerBackoff = 1000;
+
+    /**
+     * Maximum time (in milliseconds) during which the circuit of an upstream server stays open, the backoff doubling on each failed trial
+     */
+    @Value("${upstream.breaker.maxBackoff:60000}")
+    private long upstreamBreakerMaxBackoff = 60000;
+
+    /**
+     * Number of retries allowed per request sent to an upstream server
+     */
+    @Value("${upstream.retry.ratio:0.2}")
+    private double upstreamRetryRatio = 0.2;
+
+    /**
+     * Send the requests to the other Cepheus instances in Smile with gzip bodies once they advertised it
+     */
+    @Value("${ngsi.compact:false}")
+    private boolean ngsiCompact = false;
+
+    /**
+     * Time to live (in milliseconds) of the attributes in the context cache, 0 to disable the cache
+     */
+    @Value("${cache.ttl:0}")
+    private long cacheTtl = 0;
+
+    /**
+     * Maximum number of attributes kept in the context cache
+     */
+    @Value("${cache.maxAttributes:10000}")
+    private int cacheMaxAttributes = 10000;
+
+    /**
+     * Maximum number of notifyContext in flight to a same reference URL, 0 for no limit (notifications are never queued nor dropped)
+     */
+    @Value("${notify.maxConcurrentRequests:0}")
+    private int notifyMaxConcurrentRequests = 0;
+
+    /**
+     * Maximum number of notifyContext queued for a same reference URL, 0 for no limit
+     */
+    @Value("${notify.queue.maxSize:1000}")
+    private int notifyQueueMaxSize = 1000;
+
+    /**
+     * Policy applied to a notifyContext when the queue of its reference URL is full
+     */
+    @Value("${notify.queue.overflow:DROP_OLDEST}")
+    private OverflowPolicy notifyQueueOverflow = OverflowPolicy.DROP_OLDEST;
+
+    /**
+     * Durability of the subscriptions and registrations persistence: SYNC or ASYNC (write-behind)
+     */
+    @Value("${persistence.durability:SYNC}")
+    private Durability persistenceDurability = Durability.SYNC;
+
+    /**
+     * In ASYNC durability, maximum number of changes pending before a flush is forced in the request thread
+     */
+    @Value("${persistence.maxPending:1000}")
+    private int persistenceMaxPending = 1000;
+
+    /**
+     * Maximum number of compiled entity id patterns cached when not used by any subscription or registration
+     */
+    @Value("${patterns.cache.maxOrphans:1000}")
+    private int patternsCacheMaxOrphans = 1000;
+
     public Configuration() {
     }
 
@@ -110,6 +240,174 @@ public class Configuration {
         this.remoteForwardUpdateContext = remoteForwardUpdateContext;
     }
 
+    public long getRemoteRegistrationBatchWindow() {
+        return remoteRegistrationBatchWindow;
+    }
+
+    public void setRemoteRegistrationBatchWindow(long remoteRegistrationBatchWindow) {
+        this.remoteRegistrationBatchWindow = remoteRegistrationBatchWindow;
+    }
+
+    public int getRemoteRegistrationBatchMaxSize() {
+        return remoteRegistrationBatchMaxSize;
+    }
+
+    public void setRemoteRegistrationBatchMaxSize(int remoteRegistrationBatchMaxSize) {
+        this.remoteRegistrationBatchMaxSize = remoteRegistrationBatchMaxSize;
+    }
+
+    public int getRemoteRegistrationMaxConcurrentRequests() {
+        return remoteRegistrationMaxConcurrentRequests;
+    }
+
+    public void setRemoteRegistrationMaxConcurrentRequests(int remoteRegistrationMaxConcurrentRequests) {
+        this.remoteRegistrationMaxConcurrentRequests = remoteRegistrationMaxConcurrentRequests;
+    }
+
+    public long getRemoteRegistrationRetryDelay() {
+        return remoteRegistrationRetryDelay;
+    }
+
+    public void setRemoteRegistrationRetryDelay(long remoteRegistrationRetryDelay) {
+        this.remoteRegistrationRetryDelay = remoteRegistrationRetryDelay;
+    }
+
+    public long getNotifyBatchWindow() {
+        return notifyBatchWindow;
+    }
+
+    public void setNotifyBatchWindow(long notifyBatchWindow) {
+        this.notifyBatchWindow = notifyBatchWindow;
+    }
+
+    public int getNotifyBatchMaxSize() {
+        return notifyBatchMaxSize;
+    }
+
+    public void setNotifyBatchMaxSize(int notifyBatchMaxSize) {
+        this.notifyBatchMaxSize = notifyBatchMaxSize;
+    }
+
+    public long getUpstreamTimeout() {
+        return upstreamTimeout;
+    }
+
+    public void setUpstreamTimeout(long upstreamTimeout) {
+        this.upstreamTimeout = upstreamTimeout;
+    }
+
+    public int getUpstreamMaxConcurrentRequests() {
+        return upstreamMaxConcurrentRequests;
+    }
+
+    public void setUpstreamMaxConcurrentRequests(int upstreamMaxConcurrentRequests) {
+        this.upstreamMaxConcurrentRequests = upstreamMaxConcurrentRequests;
+    }
+
+    public int getUpstreamBreakerFailures() {
+        return upstreamBreakerFailures;
+    }
+
+    public void setUpstreamBreakerFailures(int upstreamBreakerFailures) {
+        this.upstreamBreakerFailures = upstreamBreakerFailures;
+    }
+
+    public long getUpstreamBreakerBackoff() {
+        return upstreamBreakerBackoff;
+    }
+
+    public void setUpstreamBreakerBackoff(long upstreamBreakerBackoff) {
+        this.upstreamBreakerBackoff = upstreamBreakerBackoff;
+    }
+
+    public long getUpstreamBreakerMaxBackoff() {
+        return upstreamBreakerMaxBackoff;
+    }
+
+    public void setUpstreamBreakerMaxBackoff(long upstreamBreakerMaxBackoff) {
+        this.upstreamBreakerMaxBackoff = upstreamBreakerMaxBackoff;
+    }
+
+    public double getUpstreamRetryRatio() {
+        return upstreamRetryRatio;
+    }
+
+    public void setUpstreamRetryRatio(double upstreamRetryRatio) {
+        this.upstreamRetryRatio = upstreamRetryRatio;
+    }
+
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    public void setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    public int getCacheMaxAttributes() {
+        return cacheMaxAttributes;
+    }
+
+    public void setCacheMaxAttributes(int cacheMaxAttributes) {
+        this.cacheMaxAttributes = cacheMaxAttributes;
+    }
+
+    public int getNotifyMaxConcurrentRequests() {
+        return notifyMaxConcurrentRequests;
+    }
+
+    public void setNotifyMaxConcurrentRequests(int notifyMaxConcurrentRequests) {
+        this.notifyMaxConcurrentRequests = notifyMaxConcurrentRequests;
+    }
+
+    public int getNotifyQueueMaxSize() {
+        return notifyQueueMaxSize;
+    }
+
+    public void setNotifyQueueMaxSize(int notifyQueueMaxSize) {
+        this.notifyQueueMaxSize = notifyQueueMaxSize;
+    }
+
+    public OverflowPolicy getNotifyQueueOverflow() {
+        return notifyQueueOverflow;
+    }
+
+    public void setNotifyQueueOverflow(OverflowPolicy notifyQueueOverflow) {
+        this.notifyQueueOverflow = notifyQueueOverflow;
+    }
+
+    public Durability getPersistenceDurability() {
+        return persistenceDurability;
+    }
+
+    public void setPersistenceDurability(Durability persistenceDurability) {
+        this.persistenceDurability = persistenceDurability;
+    }
+
+    public int getPersistenceMaxPending() {
+        return persistenceMaxPending;
+    }
+
+    public void setPersistenceMaxPending(int persistenceMaxPending) {
+        this.persistenceMaxPending = persistenceMaxPending;
+    }
+
+    public int getPatternsCacheMaxOrphans() {
+        return patternsCacheMaxOrphans;
+    }
+
+    public void setPatternsCacheMaxOrphans(int patternsCacheMaxOrphans) {
+        this.patternsCacheMaxOrphans = patternsCacheMaxOrphans;
+    }
+
+    public boolean isNgsiCompact() {
+        return ngsiCompact;
+    }
+
+    public void setNgsiCompact(boolean ngsiCompact) {
+        this.ngsiCompact = ngsiCompact;
+    }
+
     /*
      * Inject Orion-specific headers into the given HttpHeaders list
      * @param httpHeaders
@@ -135,6 +433,27 @@ public class Configuration {
                 ", remoteServicePath='" + remoteServicePath + '\'' +
                 ", remoteAuthToken='" + remoteAuthToken + '\'' +
                 ", remoteForwardUpdateContext=" + remoteForwardUpdateContext +
+                ", remoteRegistrationBatchWindow=" + remoteRegistrationBatchWindow +
+                ", remoteRegistrationBatchMaxSize=" + remoteRegistrationBatchMaxSize +
+                ", remoteRegistrationMaxConcurrentRequests=" + remoteRegistrationMaxConcurrentRequests +
+                ", remoteRegistrationRetryDelay=" + remoteRegistrationRetryDelay +
+                ", notifyBatchWindow=" + notifyBatchWindow +
+                ", notifyBatchMaxSize=" + notifyBatchMaxSize +
+                ", upstreamTimeout=" + upstreamTimeout +
+                ", upstreamMaxConcurrentRequests=" + upstreamMaxConcurrentRequests +
+                ", upstreamBreakerFailures=" + upstreamBreakerFailures +
+                ", upstreamBreakerBackoff=" + upstreamBreakerBackoff +
+                ", upstreamBreakerMaxBackoff=" + upstreamBreakerMaxBackoff +
+                ", upstreamRetryRatio=" + upstreamRetryRatio +
+                ", ngsiCompact=" + ngsiCompact +
+                ", cacheTtl=" + cacheTtl +
+                ", cacheMaxAttributes=" + cacheMaxAttributes +
+                ", notifyMaxConcurrentRequests=" + notifyMaxConcurrentRequests +
+                ", notifyQueueMaxSize=" + notifyQueueMaxSize +
+                ", notifyQueueOverflow=" + notifyQueueOverflow +
+                ", persistenceDurability=" + persistenceDurability +
+                ", persistenceMaxPending=" + persistenceMaxPending +
+                ", patternsCacheMaxOrphans=" + patternsCacheMaxOrphans +
                 '}';
     }
 }
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.ngsi.model.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional cache of the last known values of the context entities, fed by the updateContext requests
+ * and by the responses of the forwarded queryContext requests.
+ *
+ * Each attribute expires after cache.ttl milliseconds (or cache.ttl.[attribute name] for a specific attribute).
+ * The cache is disabled when cache.ttl is 0.
+ * At most cache.maxAttributes attributes are kept, the least recently used entities are evicted first.
+ * Cache statistics are published to the /metrics endpoint.
+ */
+@Component
+public class ContextCache implements PublicMetrics {
+
+    @Autowired
+    Configuration configuration;
+
+    @Autowired
+    Environment environment;
+
+    @Autowired
+    private Patterns patterns;
+
+    /**
+     * Cached entities by type and id, in least recently used order (guarded by this)
+     */
+    private final LinkedHashMap<String, CachedEntity> entities = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Total number of cached attributes (guarded by this)
+     */
+    private int attributeCount;
+
+    /**
+     * TTL of the attributes having a specific one, by attribute name
+     */
+    private final Map<String, Optional<Long>> attributeTtls = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @return true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return configuration.getCacheTtl() > 0;
+    }
+
+    /**
+     * Update the cache with the context elements of an updateContext
+     * @param updateContext the update
+     */
+    public void update(UpdateContext updateContext) {
+        if (!isEnabled()) {
+            return;
+        }
+        boolean delete = updateContext.getUpdateAction() != null && updateContext.getUpdateAction().isDelete();
+        for (ContextElement contextElement : updateContext.getContextElements()) {
+            if (delete) {
+                remove(contextElement);
+            } else {
+                put(contextElement);
+            }
+        }
+    }
+
+    /**
+     * Update the cache with the context elements successfully returned by a queryContext
+     * @param contextElementResponses the context elements of the response
+     */
+    public void update(Collection<ContextElementResponse> contextElementResponses) {
+        if (!isEnabled() || contextElementResponses == null) {
+            return;
+        }
+        for (ContextElementResponse contextElementResponse : contextElementResponses) {
+            StatusCode statusCode = contextElementResponse.getStatusCode();
+            if (statusCode != null && CodeEnum.CODE_200.getLabel().equals(statusCode.getCode())) {
+                put(contextElementResponse.getContextElement());
+            }
+        }
+    }
+
+    /**
+     * Invalidate the cached attributes of context elements sent to their providing application,
+     * their new values being only known by the application
+     * @param contextElements the context elements of the update
+     */
+    public void invalidate(Collection<ContextElement> contextElements) {
+        if (!isEnabled()) {
+            return;
+        }
+        for (ContextElement contextElement : contextElements) {
+            remove(contextElement);
+        }
+    }
+
+    /**
+     * Get the cached attributes of an entity, only if all the requested attributes are fresh.
+     * Patterns, entities without type and queries without attributes can never be answered by the cache.
+     * @param entityId the entity
+     * @param attributeNames the requested attributes
+     * @return a context element with the requested attributes, or null if any is missing or expired
+     */
+    public ContextElement get(EntityId entityId, List<String> attributeNames) {
+        if (!isEnabled() || entityId.getIsPattern() || !patterns.hasType(entityId) || attributeNames == null || attributeNames.isEmpty()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        List<ContextAttribute> attributes = new ArrayList<>(attributeNames.size());
+        synchronized (this) {
+            CachedEntity entity = entities.get(key(entityId));
+            if (entity != null) {
+                for (String attributeName : attributeNames) {
+                    CachedAttribute attribute = entity.attributes.get(attributeName);
+                    if (attribute == null || attribute.expiration <= now) {
+                        break;
+                    }
+                    attributes.add(attribute.contextAttribute);
+                }
+            }
+        }
+        if (attributes.size() < attributeNames.size()) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        ContextElement contextElement = new ContextElement();
+        contextElement.setEntityId(new EntityId(entityId.getId(), entityId.getType(), false));
+        contextElement.setContextAttributeList(attributes);
+        return contextElement;
+    }
+
+    /**
+     * Removed all expired attributes every minute.
+     */
+    @Scheduled(fixedDelay = 60000)
+    public synchronized void purgeExpiredAttributes() {
+        long now = System.currentTimeMillis();
+        Iterator<CachedEntity> iterator = entities.values().iterator();
+        while (iterator.hasNext()) {
+            CachedEntity entity = iterator.next();
+            int size = entity.attributes.size();
+            entity.attributes.values().removeIf(attribute -> attribute.expiration <= now);
+            attributeCount -= size - entity.attributes.size();
+            if (entity.attributes.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        int entityCount;
+        int attributes;
+        synchronized (this) {
+            entityCount = entities.size();
+            attributes = attributeCount;
+        }
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("context.cache.hits", hits.sum()));
+        metrics.add(new Metric<>("context.cache.misses", misses.sum()));
+        metrics.add(new Metric<>("context.cache.evictions", evictions.sum()));
+        metrics.add(new Metric<>("context.cache.entities", entityCount));
+        metrics.add(new Metric<>("context.cache.attributes", attributes));
+        return metrics;
+    }
+
+    private void put(ContextElement contextElement) {
+        EntityId entityId = contextElement.getEntityId();
+        if (entityId == null || entityId.getIsPattern() || !patterns.hasType(entityId) || contextElement.getContextAttributeList() == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            CachedEntity entity = entities.computeIfAbsent(key(entityId), k -> new CachedEntity());
+            for (ContextAttribute contextAttribute : contextElement.getContextAttributeList()) {
+                long ttl = ttl(contextAttribute.getName());
+                if (ttl <= 0) {
+                    continue;
+                }
+                if (entity.attributes.put(contextAttribute.getName(), new CachedAttribute(contextAttribute, now + ttl)) == null) {
+                    attributeCount++;
+                }
+            }
+            if (entity.attributes.isEmpty()) {
+                entities.remove(key(entityId));
+            }
+            evict();
+        }
+    }
+
+    private synchronized void remove(ContextElement contextElement) {
+        EntityId entityId = contextElement.getEntityId();
+        if (entityId == null) {
+            return;
+        }
+        if (entityId.getIsPattern() || !patterns.hasType(entityId)) {
+            // The deleted entities cannot be located, invalidate the whole cache
+            entities.clear();
+            attributeCount = 0;
+            return;
+        }
+        String key = key(entityId);
+        CachedEntity entity = entities.get(key);
+        if (entity == null) {
+            return;
+        }
+        List<ContextAttribute> attributes = contextElement.getContextAttributeList();
+        if (attributes == null || attributes.isEmpty()) {
+            attributeCount -= entity.attributes.size();
+            entities.remove(key);
+            return;
+        }
+        for (ContextAttribute contextAttribute : attributes) {
+            if (entity.attributes.remove(contextAttribute.getName()) != null) {
+                attributeCount--;
+            }
+        }
+        if (entity.attributes.isEmpty()) {
+            entities.remove(key);
+        }
+    }
+
+    /**
+     * Evict the least recently used entities over the memory budget (called with the lock held)
+     */
+    private void evict() {
+        int maxAttributes = configuration.getCacheMaxAttributes();
+        Iterator<CachedEntity> iterator = entities.values().iterator();
+        while (attributeCount > maxAttributes && iterator.hasNext()) {
+            attributeCount -= iterator.next().attributes.size();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return the TTL of an attribute, specific or default
+     */
+    private long ttl(String attributeName) {
+        Optional<Long> ttl = attributeTtls.computeIfAbsent(attributeName,
+                name -> Optional.ofNullable(environment.getProperty("cache.ttl." + name, Long.class)));
+        return ttl.orElse(configuration.getCacheTtl());
+    }
+
+    private static String key(EntityId entityId) {
+        return entityId.getType() + '\u0000' + entityId.getId();
+    }
+
+    private static class CachedEntity {
+        final Map<String, CachedAttribute> attributes = new HashMap<>();
+    }
+
+    private static class CachedAttribute {
+
+        final ContextAttribute contextAttribute;
+
+        final long expiration;
+
+        CachedAttribute(ContextAttribute contextAttribute, long expiration) {
+            this.contextAttribute = contextAttribute;
+            this.expiration = expiration;
+        }
+    }
+}
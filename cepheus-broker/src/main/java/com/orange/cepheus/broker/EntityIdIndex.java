@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.ngsi.model.EntityId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Index the entity ids declared by subscriptions or registrations.
+ *
+ * Exact entity ids are indexed by type and id, entity id patterns are kept in a separate (smaller) PatternSet by type.
+ * A lookup only evaluates the entries sharing the type of the searched entity id,
+ * and matches them with the same rules as Patterns.getFilterEntityId().
+ *
+ * @param <T> the type of the keys referencing the owners of the entity ids
+ */
+public class EntityIdIndex<T> {
+
+    private final Patterns patterns;
+
+    /**
+     * Keys by type and exact entity id
+     */
+    private final Map<String, Map<String, Set<T>>> ids = new ConcurrentHashMap<>();
+
+    /**
+     * Keys by type and entity id pattern
+     */
+    private final Map<String, PatternSet<T>> idPatterns = new ConcurrentHashMap<>();
+
+    public EntityIdIndex(Patterns patterns) {
+        this.patterns = patterns;
+    }
+
+    /**
+     * Index a list of entity ids
+     * @param key the key of the owner of the entity ids
+     * @param entityIds the entity ids to index
+     */
+    public void add(T key, Collection<EntityId> entityIds) {
+        for (EntityId entityId : entityIds) {
+            if (entityId.getIsPattern()) {
+                idPatterns.computeIfAbsent(typeOf(entityId), type -> new PatternSet<>(patterns)).add(entityId.getId(), key);
+                continue;
+            }
+            Map<String, Set<T>> bucket = ids.computeIfAbsent(typeOf(entityId), type -> new ConcurrentHashMap<>());
+            bucket.compute(entityId.getId(), (id, keys) -> {
+                if (keys == null) {
+                    keys = ConcurrentHashMap.newKeySet();
+                }
+                keys.add(key);
+                return keys;
+            });
+        }
+    }
+
+    /**
+     * Remove a list of entity ids from the index
+     * @param key the key of the owner of the entity ids
+     * @param entityIds the entity ids to remove
+     */
+    public void remove(T key, Collection<EntityId> entityIds) {
+        for (EntityId entityId : entityIds) {
+            if (entityId.getIsPattern()) {
+                PatternSet<T> patternSet = idPatterns.get(typeOf(entityId));
+                if (patternSet != null) {
+                    patternSet.remove(entityId.getId(), key);
+                }
+                continue;
+            }
+            Map<String, Set<T>> bucket = ids.get(typeOf(entityId));
+            if (bucket != null) {
+                bucket.computeIfPresent(entityId.getId(), (id, keys) -> {
+                    keys.remove(key);
+                    return keys.isEmpty() ? null : keys;
+                });
+            }
+        }
+    }
+
+    /**
+     * Find the keys of all the owners declaring an entity id matching the searched entity id
+     * @param searchEntityId the entity id to search
+     * @return the set of matching keys
+     */
+    public Set<T> find(EntityId searchEntityId) {
+        Set<T> results = new HashSet<>();
+        String type = typeOf(searchEntityId);
+        Map<String, Set<T>> typeIds = ids.get(type);
+        PatternSet<T> typePatterns = idPatterns.get(type);
+
+        final Pattern searchPattern = patterns.getPattern(searchEntityId);
+        if (searchPattern == null) {
+            // Exact ids by equality, then all patterns matching the searched id
+            if (typeIds != null) {
+                addAll(results, typeIds.get(searchEntityId.getId()));
+            }
+            if (typePatterns != null) {
+                typePatterns.match(searchEntityId.getId(), results);
+            }
+        } else {
+            // All exact ids matching the searched pattern, then patterns by equality
+            if (typeIds != null) {
+                typeIds.forEach((id, keys) -> {
+                    if (searchPattern.matcher(id).find()) {
+                        results.addAll(keys);
+                    }
+                });
+            }
+            if (typePatterns != null) {
+                addAll(results, typePatterns.get(searchEntityId.getId()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the type of the entity id, or an empty string when no type is defined
+     */
+    private String typeOf(EntityId entityId) {
+        return patterns.hasType(entityId) ? entityId.getType() : "";
+    }
+
+    private static <T> void addAll(Set<T> results, Set<T> keys) {
+        if (keys != null) {
+            results.addAll(keys);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Expire keys at their expiration date.
+ *
+ * The keys are kept ordered by expiration date and a single timer is armed for the earliest one.
+ * When the timer fires, all the keys expired at that time are given in a single batch to the expiration handler,
+ * so that the owners of the keys never have to scan their entries or to check expiration dates on lookups.
+ *
+ * @param <K> the type of the keys
+ */
+public class ExpirationQueue<K> {
+
+    private static Logger logger = LoggerFactory.getLogger(ExpirationQueue.class);
+
+    private static class Deadline<K> implements Comparable<Deadline<K>> {
+
+        final K key;
+
+        final long expiration;
+
+        /**
+         * Order of the deadlines having the same expiration
+         */
+        final long sequence;
+
+        Deadline(K key, long expiration, long sequence) {
+            this.key = key;
+            this.expiration = expiration;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Deadline<K> other) {
+            int result = Long.compare(expiration, other.expiration);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final Consumer<Collection<K>> handler;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Deadlines ordered by expiration (guarded by this)
+     */
+    private final TreeSet<Deadline<K>> deadlines = new TreeSet<>();
+
+    /**
+     * Current deadline of each key (guarded by this)
+     */
+    private final Map<K, Deadline<K>> deadlinesByKey = new HashMap<>();
+
+    private long sequence;
+
+    /**
+     * The armed timer and its expiration (guarded by this)
+     */
+    private ScheduledFuture<?> timer;
+
+    private long timerExpiration = Long.MAX_VALUE;
+
+    /**
+     * @param handler called from the timer thread with each batch of expired keys
+     */
+    public ExpirationQueue(Consumer<Collection<K>> handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Schedule the expiration of a key, replacing its previous expiration if any
+     * @param key the key
+     * @param expiration the expiration date
+     */
+    public synchronized void schedule(K key, Instant expiration) {
+        Deadline<K> deadline = new Deadline<>(key, expiration.toEpochMilli(), sequence++);
+        Deadline<K> previous = deadlinesByKey.put(key, deadline);
+        if (previous != null) {
+            deadlines.remove(previous);
+        }
+        deadlines.add(deadline);
+        arm();
+    }
+
+    /**
+     * Cancel the expiration of a key
+     * @param key the key
+     */
+    public synchronized void cancel(K key) {
+        Deadline<K> deadline = deadlinesByKey.remove(key);
+        if (deadline != null) {
+            deadlines.remove(deadline);
+        }
+    }
+
+    /**
+     * @return the number of keys waiting for their expiration
+     */
+    public synchronized int size() {
+        return deadlinesByKey.size();
+    }
+
+    /**
+     * Expire now all the keys whose expiration date is past
+     */
+    public void expire() {
+        List<K> expiredKeys = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            while (!deadlines.isEmpty() && deadlines.first().expiration <= now) {
+                Deadline<K> deadline = deadlines.pollFirst();
+                deadlinesByKey.remove(deadline.key);
+                expiredKeys.add(deadline.key);
+            }
+            timerExpiration = Long.MAX_VALUE;
+            arm();
+        }
+        if (!expiredKeys.isEmpty()) {
+            try {
+                handler.accept(expiredKeys);
+            } catch (RuntimeException e) {
+                logger.error("Failed to expire {}", expiredKeys, e);
+            }
+        }
+    }
+
+    /**
+     * Stop the timer, the keys are not expired anymore
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Arm the timer for the earliest deadline if it is not armed before it (called with the lock held)
+     */
+    private void arm() {
+        if (deadlines.isEmpty() || scheduler.isShutdown()) {
+            return;
+        }
+        long expiration = deadlines.first().expiration;
+        if (expiration < timerExpiration) {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            timerExpiration = expiration;
+            timer = scheduler.schedule(this::expire, Math.max(0, expiration - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -16,17 +16,16 @@ import com.orange.ngsi.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.xml.datatype.DatatypeFactory;
 import java.net.URI;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Predicate;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 
@@ -55,6 +54,54 @@ public class LocalRegistrations {
      */
     Map<String, Registration> registrations = new ConcurrentHashMap<>();
 
+    /**
+     * A context registration of a registration with the precomputed names of its attributes
+     */
+    private static class IndexedContextRegistration {
+
+        final Registration registration;
+
+        final ContextRegistration contextRegistration;
+
+        final Set<String> attributeNames;
+
+        IndexedContextRegistration(Registration registration, ContextRegistration contextRegistration) {
+            this.registration = registration;
+            this.contextRegistration = contextRegistration;
+            List<ContextRegistrationAttribute> attributes = contextRegistration.getContextRegistrationAttributeList();
+            if (attributes == null) {
+                this.attributeNames = Collections.emptySet();
+            } else {
+                this.attributeNames = attributes.stream().map(ContextRegistrationAttribute::getName).collect(Collectors.toSet());
+            }
+        }
+    }
+
+    /**
+     * Context registrations indexed by entity id
+     */
+    private EntityIdIndex<IndexedContextRegistration> entityIdIndex;
+
+    /**
+     * The indexed context registrations of each registration
+     */
+    private Map<String, List<IndexedContextRegistration>> indexedContextRegistrations = new ConcurrentHashMap<>();
+
+    /**
+     * Removes the registrations when they expire
+     */
+    private final ExpirationQueue<String> expirations = new ExpirationQueue<>(this::expireRegistrations);
+
+    @PostConstruct
+    protected void createIndexOnStartup() {
+        entityIdIndex = new EntityIdIndex<>(patterns);
+    }
+
+    @PreDestroy
+    protected void stopExpirations() {
+        expirations.shutdown();
+    }
+
     /**
      * Add or update a new context registration.
      * When the duration of the context is set to zero, this is handled as a remove.
@@ -69,6 +116,8 @@ public class LocalRegistrations {
         if (duration.isZero() && registrationId != null) {
             registrationsRepository.removeRegistration(registrationId);
             registrations.remove(registrationId);
+            unindex(registrationId);
+            expirations.cancel(registrationId);
             remoteRegistrations.removeRegistration(registrationId);
             return registrationId;
         }
@@ -81,28 +130,25 @@ public class LocalRegistrations {
         }
 
         // Generate a registration id if none was provided or if it does not refer to an existing registration
-        if (registrationId == null || registrations.get(registrationId) == null) {
+        boolean exists = registrationId != null && registrations.containsKey(registrationId);
+        if (!exists) {
             registrationId = UUID.randomUUID().toString();
             registerContext.setRegistrationId(registrationId);
         }
 
-        // Exists in database
+        // Update the existing registration in database or create a new one
         Instant expirationDate = Instant.now().plus(duration);
-        Registration registration;
-        //TODO: instead of use insert or update, use replace instruction of sqlite
-        try {
-            registration = registrationsRepository.getRegistration(registerContext.getRegistrationId());
-            // update registration
-            registration.setExpirationDate(expirationDate);
-            registration.setRegisterContext(registerContext);
+        Registration registration = new Registration(expirationDate, registerContext);
+        if (exists) {
             registrationsRepository.updateRegistration(registration);
-        } catch (EmptyResultDataAccessException e) {
-            // Create registration and set the expiration date
-            registration = new Registration(expirationDate, registerContext);
+        } else {
             registrationsRepository.saveRegistration(registration);
         }
 
         registrations.put(registrationId, registration);
+        unindex(registrationId);
+        index(registrationId, registration);
+        expirations.schedule(registrationId, expirationDate);
 
         // Forward to remote broker
         remoteRegistrations.registerContext(registerContext, registrationId);
@@ -111,7 +157,7 @@ public class LocalRegistrations {
     }
 
     /**
-     * Retrieve a registration (warning: might be expired !)
+     * Retrieve a registration
      * @param registrationId the id of the registration
      * @return the corresponding registration or null if not found
      */
@@ -127,50 +173,69 @@ public class LocalRegistrations {
      */
     public Iterator<URI> findProvidingApplication(EntityId searchEntityId, Set<String> searchAttributes) {
 
-        // Filter out expired registrations
-        Predicate<Registration> filterExpired = registration -> registration.getExpirationDate().isAfter(Instant.now());
-
-        // Filter only matching entity ids
-        Predicate<EntityId> filterEntityId = patterns.getFilterEntityId(searchEntityId);
+        // Expired registrations are already removed by the expiration queue
 
         // Only filter by attributes if search is looking for them
         final boolean noAttributes = searchAttributes == null || searchAttributes.size() == 0;
 
-        // Filter each registration (remove expired) and return its providing application
+        // Return the providing application of each context registration (of a non expired registration)
         // if at least one of its listed entities matches the searched context element
         // and if all searched attributes are defined in the registration (if any)
-        return registrations.values().stream()
-                .filter(filterExpired).map(registration -> registration.getRegisterContext().getContextRegistrationList())
-                .flatMap(List::stream)
-                .filter(c -> c.getEntityIdList().stream().filter(filterEntityId).findFirst().isPresent()
-                        && (noAttributes || allContextRegistrationAttributes(c).containsAll(searchAttributes)))
-                .map(ContextRegistration::getProvidingApplication).iterator();
+        return entityIdIndex.find(searchEntityId).stream()
+                .filter(c -> noAttributes || c.attributeNames.containsAll(searchAttributes))
+                .map(c -> c.contextRegistration.getProvidingApplication()).iterator();
     }
 
     /**
-     * @return all the names of the attributes of a context registration
+     * Index all the context registrations of a registration
      */
-    private Collection<String> allContextRegistrationAttributes(ContextRegistration contextRegistration) {
-        return contextRegistration.getContextRegistrationAttributeList().stream().map(ContextRegistrationAttribute::getName).collect(Collectors.toList());
+    private void index(String registrationId, Registration registration) {
+        List<IndexedContextRegistration> contextRegistrations = new ArrayList<>();
+        for (ContextRegistration contextRegistration : registration.getRegisterContext().getContextRegistrationList()) {
+            IndexedContextRegistration indexedContextRegistration = new IndexedContextRegistration(registration, contextRegistration);
+            entityIdIndex.add(indexedContextRegistration, contextRegistration.getEntityIdList());
+            contextRegistrations.add(indexedContextRegistration);
+        }
+        indexedContextRegistrations.put(registrationId, contextRegistrations);
     }
 
     /**
-     * Removed expired registrations every min
+     * Remove all the context registrations of a registration from the index
+     */
+    private void unindex(String registrationId) {
+        List<IndexedContextRegistration> contextRegistrations = indexedContextRegistrations.remove(registrationId);
+        if (contextRegistrations != null) {
+            contextRegistrations.forEach(c -> entityIdIndex.remove(c, c.contextRegistration.getEntityIdList()));
+        }
+    }
+
+    /**
+     * Remove now all the expired registrations (they are otherwise removed by the expiration queue when they expire).
      */
-    @Scheduled(fixedDelay = 60000)
     public void purgeExpiredContextRegistrations() {
+        expirations.expire();
+    }
+
+    /**
+     * Remove a batch of expired registrations, from the database in a single batch
+     */
+    private void expireRegistrations(Collection<String> registrationIds) {
         final Instant now = Instant.now();
-        registrations.forEach((registrationId, registration) -> {
-            if (registration.getExpirationDate().isBefore(now)) {
-                registrations.remove(registrationId);
+        List<String> expiredIds = new ArrayList<>(registrationIds.size());
+        for (String registrationId : registrationIds) {
+            Registration registration = registrations.get(registrationId);
+            // Skip the registrations renewed since their expiration
+            if (registration != null && !registration.getExpirationDate().isAfter(now) && registrations.remove(registrationId, registration)) {
+                unindex(registrationId);
                 remoteRegistrations.removeRegistration(registrationId);
-                try {
-                    registrationsRepository.removeRegistration(registrationId);
-                } catch (RegistrationPersistenceException e) {
-                    logger.error("Failed to remove registration from database", e);
-                }
+                expiredIds.add(registrationId);
             }
-        });
+        }
+        try {
+            registrationsRepository.removeRegistrations(expiredIds);
+        } catch (RegistrationPersistenceException e) {
+            logger.error("Failed to remove registrations from database", e);
+        }
     }
 
     /**
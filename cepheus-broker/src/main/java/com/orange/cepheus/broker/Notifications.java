@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.cepheus.broker.model.Subscription;
+import com.orange.ngsi.client.NgsiClient;
+import com.orange.ngsi.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Send the notifications of the subscriptions.
+ *
+ * When notify.batch.window is set, the context elements notified to a same subscription are coalesced
+ * during the window (or until notify.batch.maxSize elements are pending) and sent in a single notifyContext.
+ *
+ * When a subscription defines a throttling, at most one notifyContext is sent per throttling period:
+ * the first notification is sent immediately, the following ones are merged until the end of the period,
+ * keeping only the latest value of each attribute of each entity.
+ *
+ * When notify.maxConcurrentRequests is set, at most this number of notifyContext are in flight to a same reference URL,
+ * the following ones wait in a queue bounded to notify.queue.maxSize per reference URL,
+ * a full queue applying the notify.queue.overflow policy. Queue and drop statistics are published to the /metrics endpoint.
+ */
+@Component
+public class Notifications implements PublicMetrics {
+
+    private static Logger logger = LoggerFactory.getLogger(Notifications.class);
+
+    @Autowired
+    NgsiClient ngsiClient;
+
+    @Autowired
+    Configuration configuration;
+
+    /**
+     * Notifications waiting for the end of their window or throttling period, by subscription id
+     */
+    private final Map<String, Batch> pendingBatches = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Notifications in flight or queued, by reference URL
+     */
+    private final Map<String, Destination> destinations = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Notify a subscriber of some context elements
+     * @param subscription the matching subscription
+     * @param contextElementResponses the context elements to notify
+     * @throws URISyntaxException if local.url is not a valid URI
+     */
+    public void notify(Subscription subscription, Collection<ContextElementResponse> contextElementResponses) throws URISyntaxException {
+        URI originator = new URI(configuration.getLocalUrl());
+
+        long throttling = subscription.getThrottling() == null ? 0 : subscription.getThrottling().toMillis();
+        if (throttling > 0) {
+            throttle(subscription, originator, throttling, contextElementResponses);
+            return;
+        }
+
+        long window = configuration.getNotifyBatchWindow();
+        if (window <= 0) {
+            Batch batch = new Batch(subscription, originator, false);
+            batch.addAll(contextElementResponses);
+            send(batch);
+            return;
+        }
+
+        int maxSize = configuration.getNotifyBatchMaxSize();
+        Batch[] fullBatch = new Batch[1];
+        pendingBatches.compute(subscription.getSubscriptionId(), (subscriptionId, batch) -> {
+            boolean scheduled = true;
+            if (batch == null) {
+                Batch newBatch = new Batch(subscription, originator, false);
+                scheduled = schedule(() -> flush(subscriptionId, newBatch), window);
+                batch = newBatch;
+            }
+            batch.addAll(contextElementResponses);
+            // Once shut down, the notifications are sent immediately
+            if (!scheduled || batch.size() >= maxSize) {
+                fullBatch[0] = batch;
+                return null;
+            }
+            return batch;
+        });
+        if (fullBatch[0] != null) {
+            send(fullBatch[0]);
+        }
+    }
+
+    /**
+     * Drop the notifications pending for a subscription, when the subscription is removed or expires
+     * @param subscriptionId the id of the subscription
+     */
+    public void removeSubscription(String subscriptionId) {
+        pendingBatches.remove(subscriptionId);
+    }
+
+    /**
+     * Send all pending notifications on shutdown
+     */
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        pendingBatches.forEach(this::flush);
+    }
+
+    /**
+     * Send the notification immediately if no notification was sent during the last throttling period,
+     * else merge it with the notifications pending until the end of the period.
+     */
+    private void throttle(Subscription subscription, URI originator, long throttling, Collection<ContextElementResponse> contextElementResponses) {
+        Batch[] sentBatch = new Batch[1];
+        pendingBatches.compute(subscription.getSubscriptionId(), (subscriptionId, period) -> {
+            if (period == null) {
+                Batch batch = new Batch(subscription, originator, true);
+                batch.addAll(contextElementResponses);
+                sentBatch[0] = batch;
+                // Open a new throttling period with nothing pending, no more periods once shut down
+                Batch newPeriod = new Batch(subscription, originator, true);
+                return schedule(() -> endThrottlingPeriod(subscriptionId, newPeriod, throttling), throttling) ? newPeriod : null;
+            }
+            period.addAll(contextElementResponses);
+            return period;
+        });
+        if (sentBatch[0] != null) {
+            send(sentBatch[0]);
+        }
+    }
+
+    /**
+     * At the end of a throttling period, send the merged notifications and open a new period,
+     * or close the period when nothing is pending.
+     */
+    private void endThrottlingPeriod(String subscriptionId, Batch period, long throttling) {
+        Batch[] sentBatch = new Batch[1];
+        pendingBatches.computeIfPresent(subscriptionId, (id, current) -> {
+            if (current != period || period.size() == 0) {
+                return current == period ? null : current;
+            }
+            sentBatch[0] = period;
+            Batch newPeriod = new Batch(period.subscription, period.originator, true);
+            return schedule(() -> endThrottlingPeriod(id, newPeriod, throttling), throttling) ? newPeriod : null;
+        });
+        if (sentBatch[0] != null) {
+            try {
+                send(sentBatch[0]);
+            } catch (RuntimeException e) {
+                logger.warn("NotifyContext failed for subscription {}", subscriptionId, e);
+            }
+        }
+    }
+
+    /**
+     * Send a batch at the end of its window if it was not sent before
+     */
+    private void flush(String subscriptionId, Batch batch) {
+        if (pendingBatches.remove(subscriptionId, batch) && batch.size() > 0) {
+            try {
+                send(batch);
+            } catch (RuntimeException e) {
+                logger.warn("NotifyContext failed for subscription {}", subscriptionId, e);
+            }
+        }
+    }
+
+    /**
+     * @return false if the task was not scheduled as the scheduler is shut down
+     */
+    private boolean schedule(Runnable task, long delay) {
+        try {
+            scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("notify.queue.depth", queued.get()));
+        metrics.add(new Metric<>("notify.queue.destinations", destinations.size()));
+        metrics.add(new Metric<>("notify.queue.dropped", dropped.sum()));
+        metrics.add(new Metric<>("notify.queue.coalesced", coalesced.sum()));
+        metrics.add(new Metric<>("notify.queue.rejected", rejected.sum()));
+        return metrics;
+    }
+
+    /**
+     * Send a notification now, or queue it when too many notifications are in flight to its reference URL
+     */
+    private void send(Batch batch) {
+        NotifyContext notifyContext = new NotifyContext(batch.subscription.getSubscriptionId(), batch.originator);
+        notifyContext.setContextElementResponseList(batch.contextElementResponses);
+        String providerUrl = batch.subscription.getSubscribeContext().getReference().toString();
+
+        int maxConcurrentRequests = configuration.getNotifyMaxConcurrentRequests();
+        if (maxConcurrentRequests <= 0) {
+            post(providerUrl, notifyContext, false);
+            return;
+        }
+
+        NotifyContext[] sendNow = new NotifyContext[1];
+        destinations.compute(providerUrl, (url, destination) -> {
+            if (destination == null) {
+                destination = new Destination();
+            }
+            if (destination.inFlight < maxConcurrentRequests) {
+                destination.inFlight++;
+                sendNow[0] = notifyContext;
+            } else {
+                enqueue(url, destination, notifyContext);
+            }
+            return destination;
+        });
+        if (sendNow[0] != null) {
+            post(providerUrl, sendNow[0], true);
+        }
+    }
+
+    /**
+     * Queue a notification, applying the overflow policy when the queue is full (called with the destination locked)
+     */
+    private void enqueue(String providerUrl, Destination destination, NotifyContext notifyContext) {
+        int maxSize = configuration.getNotifyQueueMaxSize();
+        if (maxSize > 0 && destination.queue.size() >= maxSize) {
+            OverflowPolicy overflow = configuration.getNotifyQueueOverflow();
+            if (overflow == OverflowPolicy.REJECT) {
+                rejected.increment();
+                logger.warn("NotifyContext rejected for {}: queue is full", providerUrl);
+                return;
+            }
+            if (overflow == OverflowPolicy.COALESCE && destination.coalesce(notifyContext)) {
+                coalesced.increment();
+                return;
+            }
+            destination.queue.poll();
+            queued.decrementAndGet();
+            dropped.increment();
+            logger.warn("NotifyContext dropped for {}: queue is full", providerUrl);
+        }
+        destination.queue.add(notifyContext);
+        queued.incrementAndGet();
+    }
+
+    /**
+     * A notification to a reference URL completed, send the next queued one
+     */
+    private void completed(String providerUrl) {
+        NotifyContext[] next = new NotifyContext[1];
+        destinations.computeIfPresent(providerUrl, (url, destination) -> {
+            next[0] = destination.queue.poll();
+            if (next[0] != null) {
+                queued.decrementAndGet();
+                return destination;
+            }
+            destination.inFlight--;
+            return destination.inFlight > 0 ? destination : null;
+        });
+        if (next[0] != null) {
+            post(providerUrl, next[0], true);
+        }
+    }
+
+    private void post(String providerUrl, NotifyContext notifyContext, boolean limited) {
+        try {
+            HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(providerUrl);
+            logger.debug("=> notifyContext to {} with Content-Type {}", providerUrl, httpHeaders.getContentType());
+
+            ngsiClient.notifyContextCustomURL(providerUrl, httpHeaders, notifyContext).addCallback(
+                    notifyContextResponse -> {
+                        logNotifyContextResponse(notifyContextResponse, providerUrl);
+                        if (limited) {
+                            completed(providerUrl);
+                        }
+                    },
+                    throwable -> {
+                        logger.warn("NotifyContext failed for {}", providerUrl, throwable);
+                        if (limited) {
+                            completed(providerUrl);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            if (limited) {
+                completed(providerUrl);
+            }
+            throw e;
+        }
+    }
+
+    private void logNotifyContextResponse(NotifyContextResponse notifyContextResponse, String providerUrl) {
+        if (notifyContextResponse.getResponseCode().getCode().equals(CodeEnum.CODE_200.getLabel())) {
+            logger.debug("NotifyContext completed for {} ", providerUrl);
+        } else {
+            logger.warn("NotifyContext failed for {}: {}", providerUrl, notifyContextResponse.getResponseCode().toString());
+        }
+    }
+
+    /**
+     * Notifications in flight and queued for a reference URL (guarded by the destinations map)
+     */
+    private static class Destination {
+
+        int inFlight;
+
+        final Deque<NotifyContext> queue = new ArrayDeque<>();
+
+        /**
+         * Merge a notification into a queued notification of the same subscription
+         * @return false if no notification of the subscription is queued
+         */
+        boolean coalesce(NotifyContext notifyContext) {
+            Iterator<NotifyContext> iterator = queue.descendingIterator();
+            while (iterator.hasNext()) {
+                NotifyContext queuedNotifyContext = iterator.next();
+                if (queuedNotifyContext.getSubscriptionId().equals(notifyContext.getSubscriptionId())) {
+                    Batch batch = new Batch(null, null, true);
+                    batch.addAll(queuedNotifyContext.getContextElementResponseList());
+                    batch.addAll(notifyContext.getContextElementResponseList());
+                    queuedNotifyContext.setContextElementResponseList(batch.contextElementResponses);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Context elements pending for a subscription
+     */
+    private static class Batch {
+
+        final Subscription subscription;
+
+        final URI originator;
+
+        final List<ContextElementResponse> contextElementResponses = new ArrayList<>();
+
+        /**
+         * When merging, index of the context element of each entity in the list
+         */
+        final Map<String, Integer> entityIndexes;
+
+        Batch(Subscription subscription, URI originator, boolean merge) {
+            this.subscription = subscription;
+            this.originator = originator;
+            this.entityIndexes = merge ? new HashMap<>() : null;
+        }
+
+        int size() {
+            return contextElementResponses.size();
+        }
+
+        void addAll(Collection<ContextElementResponse> responses) {
+            if (entityIndexes == null) {
+                contextElementResponses.addAll(responses);
+                return;
+            }
+            for (ContextElementResponse response : responses) {
+                EntityId entityId = response.getContextElement().getEntityId();
+                String key = entityId.getId() + '\u0000' + entityId.getType();
+                Integer index = entityIndexes.get(key);
+                if (index == null) {
+                    entityIndexes.put(key, contextElementResponses.size());
+                    contextElementResponses.add(response);
+                } else {
+                    contextElementResponses.set(index, merge(contextElementResponses.get(index), response));
+                }
+            }
+        }
+
+        /**
+         * Merge the attributes of two states of an entity, the latest values replacing the previous ones.
+         * The context elements are shared with other subscriptions: a new context element is built.
+         */
+        private static ContextElementResponse merge(ContextElementResponse previous, ContextElementResponse latest) {
+            Map<String, ContextAttribute> attributes = new LinkedHashMap<>();
+            previous.getContextElement().getContextAttributeList().forEach(attribute -> attributes.put(attribute.getName(), attribute));
+            latest.getContextElement().getContextAttributeList().forEach(attribute -> attributes.put(attribute.getName(), attribute));
+
+            ContextElement contextElement = new ContextElement();
+            contextElement.setEntityId(latest.getContextElement().getEntityId());
+            contextElement.setContextAttributeList(new ArrayList<>(attributes.values()));
+            return new ContextElementResponse(contextElement, latest.getStatusCode());
+        }
+    }
+}
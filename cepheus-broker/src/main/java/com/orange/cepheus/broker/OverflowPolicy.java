@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+/**
+ * What to do with a notification when the queue of its reference URL is full
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Drop the oldest queued notification
+     */
+    DROP_OLDEST,
+
+    /**
+     * Merge the notification into a queued notification of the same subscription (latest value of each attribute of each entity),
+     * or drop the oldest queued notification if none
+     */
+    COALESCE,
+
+    /**
+     * Drop the notification
+     */
+    REJECT
+}
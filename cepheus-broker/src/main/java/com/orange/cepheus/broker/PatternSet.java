@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of entity id patterns, each one associated to the keys of its owners,
+ * that can be matched against an entity id in a single lookup.
+ *
+ * The literal required by each pattern (see Patterns.requiredLiteral()) is compiled in an Aho-Corasick automaton.
+ * Scanning the entity id once through the automaton rules out all the patterns whose literal is not contained in the id,
+ * only the remaining candidates (and the patterns without any literal) are executed as regular expressions.
+ *
+ * The automaton is rebuilt lazily on the first lookup following a modification.
+ *
+ * Each owner of a pattern holds a reference to the pattern in the Patterns cache until it is removed from the set.
+ *
+ * @param <T> the type of the keys referencing the owners of the patterns
+ */
+public class PatternSet<T> {
+
+    private final Patterns patterns;
+
+    /**
+     * Keys by pattern
+     */
+    private final Map<String, Set<T>> keysByPattern = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented after each modification of the patterns
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    private volatile Automaton automaton;
+
+    public PatternSet(Patterns patterns) {
+        this.patterns = patterns;
+    }
+
+    /**
+     * Add a pattern owned by a key
+     * @param pattern the pattern
+     * @param key the key of the owner
+     */
+    public void add(String pattern, T key) {
+        keysByPattern.compute(pattern, (p, keys) -> {
+            if (keys == null) {
+                keys = ConcurrentHashMap.newKeySet();
+            }
+            if (!keys.contains(key)) {
+                patterns.acquire(p);
+                keys.add(key);
+            }
+            return keys;
+        });
+        version.incrementAndGet();
+    }
+
+    /**
+     * Remove a pattern owned by a key
+     * @param pattern the pattern
+     * @param key the key of the owner
+     */
+    public void remove(String pattern, T key) {
+        keysByPattern.computeIfPresent(pattern, (p, keys) -> {
+            if (keys.remove(key)) {
+                patterns.release(p);
+            }
+            return keys.isEmpty() ? null : keys;
+        });
+        version.incrementAndGet();
+    }
+
+    /**
+     * @param pattern the pattern
+     * @return the keys owning exactly this pattern, or null
+     */
+    public Set<T> get(String pattern) {
+        return keysByPattern.get(pattern);
+    }
+
+    /**
+     * @return true if the set has no pattern
+     */
+    public boolean isEmpty() {
+        return keysByPattern.isEmpty();
+    }
+
+    /**
+     * Collect the keys of all the patterns matching an id
+     * @param id the id to match
+     * @param results the collection where the matching keys are added
+     */
+    public void match(String id, Collection<T> results) {
+        for (String pattern : automaton().candidates(id)) {
+            Set<T> keys = keysByPattern.get(pattern);
+            if (keys != null && patterns.getPattern(pattern).matcher(id).find()) {
+                results.addAll(keys);
+            }
+        }
+    }
+
+    /**
+     * @return an automaton up to date with the patterns of the set
+     */
+    private Automaton automaton() {
+        Automaton automaton = this.automaton;
+        if (automaton == null || automaton.version != version.get()) {
+            synchronized (this) {
+                automaton = this.automaton;
+                long currentVersion = version.get();
+                if (automaton == null || automaton.version != currentVersion) {
+                    automaton = new Automaton(currentVersion, keysByPattern.keySet());
+                    this.automaton = automaton;
+                }
+            }
+        }
+        return automaton;
+    }
+
+    /**
+     * Aho-Corasick automaton matching the required literals of the patterns
+     */
+    private class Automaton {
+
+        private class Node {
+            final Map<Character, Node> children = new HashMap<>();
+            Node fail;
+            final List<String> outputs = new ArrayList<>();
+        }
+
+        final long version;
+
+        final Node root = new Node();
+
+        /**
+         * Patterns that must always be executed as no literal could be extracted from them
+         */
+        final List<String> unfiltered = new ArrayList<>();
+
+        Automaton(long version, Collection<String> allPatterns) {
+            this.version = version;
+
+            for (String pattern : allPatterns) {
+                String literal = patterns.requiredLiteral(pattern);
+                if (literal == null) {
+                    unfiltered.add(pattern);
+                } else {
+                    Node node = root;
+                    for (int i = 0; i < literal.length(); i++) {
+                        node = node.children.computeIfAbsent(literal.charAt(i), c -> new Node());
+                    }
+                    node.outputs.add(pattern);
+                }
+            }
+
+            // Compute the failure links breadth first, merging the patterns of the failure node
+            Deque<Node> queue = new ArrayDeque<>();
+            root.fail = root;
+            for (Node child : root.children.values()) {
+                child.fail = root;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                Node node = queue.poll();
+                for (Map.Entry<Character, Node> entry : node.children.entrySet()) {
+                    Node child = entry.getValue();
+                    Node fail = node.fail;
+                    while (fail != root && !fail.children.containsKey(entry.getKey())) {
+                        fail = fail.fail;
+                    }
+                    Node next = fail.children.get(entry.getKey());
+                    child.fail = (next != null && next != child) ? next : root;
+                    child.outputs.addAll(child.fail.outputs);
+                    queue.add(child);
+                }
+            }
+        }
+
+        /**
+         * @return the patterns whose required literal is contained in the id, and the unfiltered patterns
+         */
+        Collection<String> candidates(String id) {
+            Set<String> candidates = new HashSet<>(unfiltered);
+            Node node = root;
+            for (int i = 0; i < id.length(); i++) {
+                char c = id.charAt(i);
+                while (node != root && !node.children.containsKey(c)) {
+                    node = node.fail;
+                }
+                Node next = node.children.get(c);
+                node = next != null ? next : root;
+                candidates.addAll(node.outputs);
+            }
+            return candidates;
+        }
+    }
+}
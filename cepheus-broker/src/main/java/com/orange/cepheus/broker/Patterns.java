@@ -9,24 +9,57 @@
 package com.orange.cepheus.broker;
 
 import com.orange.ngsi.model.EntityId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.stereotype.Component;
 
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 /**
  * Handle patterns of entityId
+ *
+ * Compiled patterns are cached. The patterns used by subscriptions and registrations are referenced (see acquire() and release())
+ * and kept as long as they are referenced, the other ones (e.g. from queries) are evicted in least recently used order
+ * when more than patterns.cache.maxOrphans of them are cached.
+ * Cache statistics are published to the /metrics endpoint.
  */
 @Component
-public class Patterns {
+public class Patterns implements PublicMetrics {
+
+    /**
+     * Maximum number of cached patterns not referenced by any subscription or registration
+     */
+    private int maxOrphans = 1000;
 
     /**
      * Cache of compiled patterns
      */
-    private Map<String, Pattern> cachedPatterns = new ConcurrentHashMap<>();
+    private final Map<String, CachedPattern> cachedPatterns = new ConcurrentHashMap<>();
+
+    /**
+     * Cached patterns not referenced anymore, in least recently used order (guarded by this)
+     */
+    private final LinkedHashMap<String, CachedPattern> orphans = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public Patterns() {
+    }
+
+    @Autowired
+    public Patterns(Configuration configuration) {
+        this.maxOrphans = configuration.getPatternsCacheMaxOrphans();
+    }
 
     /**
      * Compile (or get from cache) the patter corresponding to the entity id
@@ -38,13 +71,282 @@ public class Patterns {
         if (!entityId.getIsPattern()) {
             return null;
         }
-        String id = entityId.getId();
-        Pattern pattern = cachedPatterns.get(id);
-        if (pattern == null) {
-            pattern = Pattern.compile(id);
-            cachedPatterns.put(id, pattern);
+        return getPattern(entityId.getId());
+    }
+
+    /**
+     * Compile (or get from cache) the pattern corresponding to a regular expression
+     * @param regex the regular expression
+     * @return the pattern
+     * @throws PatternSyntaxException
+     */
+    public Pattern getPattern(final String regex) throws PatternSyntaxException {
+        CachedPattern cached = cachedPatterns.get(regex);
+        if (cached != null) {
+            hits.increment();
+            if (cached.references == 0) {
+                // Refresh the position in the LRU order
+                synchronized (this) {
+                    orphans.get(regex);
+                }
+            }
+            return cached.pattern;
+        }
+        misses.increment();
+        Pattern pattern = Pattern.compile(regex);
+        synchronized (this) {
+            cached = cachedPatterns.get(regex);
+            if (cached == null) {
+                cached = new CachedPattern(pattern);
+                cachedPatterns.put(regex, cached);
+                addOrphan(regex, cached);
+            }
+        }
+        return cached.pattern;
+    }
+
+    /**
+     * Reference a pattern, preventing its eviction from the cache until released
+     * @param regex the regular expression
+     * @return the pattern
+     * @throws PatternSyntaxException
+     */
+    public Pattern acquire(final String regex) throws PatternSyntaxException {
+        Pattern pattern = getPattern(regex);
+        synchronized (this) {
+            CachedPattern cached = cachedPatterns.get(regex);
+            if (cached == null) {
+                // Evicted in between
+                cached = new CachedPattern(pattern);
+                cachedPatterns.put(regex, cached);
+            } else if (cached.references == 0) {
+                orphans.remove(regex);
+            }
+            cached.references++;
+            return cached.pattern;
+        }
+    }
+
+    /**
+     * Release a reference to a pattern, the pattern becomes eligible to eviction when it is not referenced anymore
+     * @param regex the regular expression
+     */
+    public synchronized void release(final String regex) {
+        CachedPattern cached = cachedPatterns.get(regex);
+        if (cached == null || cached.references == 0) {
+            return;
+        }
+        if (--cached.references == 0) {
+            addOrphan(regex, cached);
+        }
+    }
+
+    /**
+     * @return the number of compiled patterns in cache
+     */
+    public int getCacheSize() {
+        return cachedPatterns.size();
+    }
+
+    public void setMaxOrphans(int maxOrphans) {
+        this.maxOrphans = maxOrphans;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        int orphanCount;
+        synchronized (this) {
+            orphanCount = orphans.size();
+        }
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("patterns.cache.hits", hits.sum()));
+        metrics.add(new Metric<>("patterns.cache.misses", misses.sum()));
+        metrics.add(new Metric<>("patterns.cache.evictions", evictions.sum()));
+        metrics.add(new Metric<>("patterns.cache.size", cachedPatterns.size()));
+        metrics.add(new Metric<>("patterns.cache.orphans", orphanCount));
+        return metrics;
+    }
+
+    /**
+     * Add a pattern to the orphans, evicting the least recently used ones over the limit (called with the lock held)
+     */
+    private void addOrphan(String regex, CachedPattern cached) {
+        orphans.put(regex, cached);
+        Iterator<Map.Entry<String, CachedPattern>> iterator = orphans.entrySet().iterator();
+        while (orphans.size() > maxOrphans && iterator.hasNext()) {
+            Map.Entry<String, CachedPattern> eldest = iterator.next();
+            iterator.remove();
+            cachedPatterns.remove(eldest.getKey());
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Extract a literal string that must be contained by any id matched by a regular expression (using find()).
+     * The extraction is conservative: only top level literal characters are considered,
+     * and regular expressions with top level alternations, inline flags or quoting have no required literal.
+     * @param regex the regular expression
+     * @return the longest required literal found, or null if none
+     */
+    public String requiredLiteral(final String regex) {
+        if (regex.contains("(?") || regex.contains("\\Q")) {
+            return null;
+        }
+        String longest = "";
+        StringBuilder current = new StringBuilder();
+        boolean lastWasLiteral = false;
+        final int length = regex.length();
+        for (int i = 0; i < length; i++) {
+            char c = regex.charAt(i);
+            switch (c) {
+                case '\\':
+                    if (i + 1 < length && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                        current.append(regex.charAt(++i));
+                        lastWasLiteral = true;
+                        continue;
+                    }
+                    // Escaped letters and digits are character classes, back references or encoded characters
+                    i = skipEscape(regex, i);
+                    if (i < 0) {
+                        return null;
+                    }
+                    break;
+                case '[':
+                    i = skipCharacterClass(regex, i);
+                    break;
+                case '(':
+                    i = skipGroup(regex, i);
+                    break;
+                case '|':
+                    return null;
+                case '?':
+                case '*':
+                case '{':
+                    // The previous literal character is optional
+                    if (lastWasLiteral) {
+                        current.setLength(current.length() - 1);
+                    }
+                    if (c == '{') {
+                        i = regex.indexOf('}', i);
+                        if (i < 0) {
+                            return null;
+                        }
+                    }
+                    break;
+                case '+':
+                case '.':
+                case '^':
+                case '$':
+                    break;
+                default:
+                    current.append(c);
+                    lastWasLiteral = true;
+                    continue;
+            }
+            // Any non literal token ends the current run of literal characters
+            if (current.length() > longest.length()) {
+                longest = current.toString();
+            }
+            current.setLength(0);
+            lastWasLiteral = false;
+        }
+        if (current.length() > longest.length()) {
+            longest = current.toString();
+        }
+        return longest.isEmpty() ? null : longest;
+    }
+
+    /**
+     * Skip a whole escape sequence of a letter or digit: the hexadecimal, octal, control or named characters
+     * and the back references, so that their encoded part is not taken as literal characters.
+     * @return the index of the last character of the escape sequence starting at index i, or -1 if unsupported
+     */
+    private int skipEscape(String regex, int i) {
+        final int length = regex.length();
+        if (i + 1 >= length) {
+            return -1;
+        }
+        int j = i + 1;
+        char c = regex.charAt(j);
+        switch (c) {
+            case 'x':
+                if (j + 1 < length && regex.charAt(j + 1) == '{') {
+                    return regex.indexOf('}', j);
+                }
+                return j + 2 < length ? j + 2 : -1;
+            case 'u':
+                return j + 4 < length ? j + 4 : -1;
+            case 'c':
+                return j + 1 < length ? j + 1 : -1;
+            case 'k':
+                return j + 1 < length && regex.charAt(j + 1) == '<' ? regex.indexOf('>', j) : -1;
+            case 'p':
+            case 'P':
+                if (j + 1 < length && regex.charAt(j + 1) == '{') {
+                    return regex.indexOf('}', j);
+                }
+                return j + 1 < length ? j + 1 : -1;
+            case '0':
+                // Up to three octal digits
+                for (int k = 0; k < 3 && j + 1 < length && regex.charAt(j + 1) >= '0' && regex.charAt(j + 1) <= '7'; k++) {
+                    j++;
+                }
+                return j;
+            default:
+                if (c >= '1' && c <= '9') {
+                    // The digits following a back reference may belong to the group number
+                    while (j + 1 < length && Character.isDigit(regex.charAt(j + 1))) {
+                        j++;
+                    }
+                }
+                return j;
+        }
+    }
+
+    /**
+     * @return the index of the closing bracket of the character class starting at index i
+     */
+    private int skipCharacterClass(String regex, int i) {
+        int j = i + 1;
+        // A closing bracket right after the opening one (or a negation) is a literal
+        if (j < regex.length() && regex.charAt(j) == '^') {
+            j++;
+        }
+        if (j < regex.length() && regex.charAt(j) == ']') {
+            j++;
+        }
+        int depth = 1;
+        for (; j < regex.length(); j++) {
+            char c = regex.charAt(j);
+            if (c == '\\') {
+                j++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && --depth == 0) {
+                return j;
+            }
         }
-        return pattern;
+        return regex.length();
+    }
+
+    /**
+     * @return the index of the closing parenthesis of the group starting at index i
+     */
+    private int skipGroup(String regex, int i) {
+        int depth = 0;
+        for (int j = i; j < regex.length(); j++) {
+            char c = regex.charAt(j);
+            if (c == '\\') {
+                j++;
+            } else if (c == '[') {
+                j = skipCharacterClass(regex, j);
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return j;
+            }
+        }
+        return regex.length();
     }
 
     /**
@@ -92,4 +394,18 @@ public class Patterns {
 
         return filterEntityId;
     }
+
+    /**
+     * A compiled pattern and the number of subscriptions or registrations referencing it
+     */
+    private static class CachedPattern {
+
+        final Pattern pattern;
+
+        volatile int references;
+
+        CachedPattern(Pattern pattern) {
+            this.pattern = pattern;
+        }
+    }
 }
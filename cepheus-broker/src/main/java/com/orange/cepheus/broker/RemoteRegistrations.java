@@ -8,8 +8,11 @@
 
 package com.orange.cepheus.broker;
 
+import com.orange.cepheus.broker.exception.UpstreamException;
+import com.orange.cepheus.common.CompactEncoding;
 import com.orange.ngsi.client.NgsiClient;
 import com.orange.ngsi.model.RegisterContext;
+import com.orange.ngsi.model.RegisterContextResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -17,13 +20,31 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
-import java.util.Map;
+import javax.annotation.PreDestroy;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Propagate the registrations to the remote broker.
  *
- * On registration error, the registrations are re-scheduled later.
+ * On registration error, the registrations are re-scheduled later,
+ * retries being limited by the circuit breaker and the retry budget of the remote broker (see Upstreams).
+ *
+ * When remote.registration.batch.window is set, the registrations are not sent one by one but gathered during the window
+ * and merged in as few registerContext requests as possible (up to remote.registration.batch.maxSize context registrations each):
+ * - new registrations having the same duration are merged in a new remote registration,
+ * - a registration already registered is sent again with all the registrations sharing its remote registration id.
+ * At most remote.registration.maxConcurrentRequests requests are in flight, and failed batches are retried
+ * after a jittered delay so that brokers reconnecting at the same time do not retry in sync.
  */
 @Component
 public class RemoteRegistrations {
@@ -36,21 +57,110 @@ public class RemoteRegistrations {
     @Autowired
     protected NgsiClient ngsiClient;
 
+    @Autowired
+    protected Upstreams upstreams;
+
+    @Autowired
+    protected CompactEncoding compactEncoding;
+
     /**
      * Keep track of remote registrations.
+     * Records are immutable and replaced atomically in the registrations map.
      */
-    private class RemoteRegistration {
+    private static final class RemoteRegistration {
 
         /**
          * Registration ID on the remote broker
          */
-        String registrationId;
+        final String registrationId;
 
         /**
          * Keeps the context to register to remote broker for retries.
          * Will be null once a successful registration is achieved.
          */
-        RegisterContext registerContext;
+        final RegisterContext registerContext;
+
+        /**
+         * Last context successfully registered, sent again with the other registrations of its batch (batch mode)
+         */
+        final RegisterContext registered;
+
+        /**
+         * True while a batch including this registration is in flight (batch mode)
+         */
+        final boolean inFlight;
+
+        /**
+         * True when the last batch including this registration failed (batch mode)
+         */
+        final boolean failed;
+
+        RemoteRegistration(String registrationId, RegisterContext registerContext, RegisterContext registered, boolean inFlight, boolean failed) {
+            this.registrationId = registrationId;
+            this.registerContext = registerContext;
+            this.registered = registered;
+            this.inFlight = inFlight;
+            this.failed = failed;
+        }
+
+        RemoteRegistration withRegisterContext(RegisterContext registerContext) {
+            return new RemoteRegistration(registrationId, registerContext, registered, inFlight, failed);
+        }
+
+        RemoteRegistration withInFlight(boolean inFlight) {
+            return new RemoteRegistration(registrationId, registerContext, registered, inFlight, failed);
+        }
+    }
+
+    /**
+     * A registerContext request merging several local registrations
+     */
+    private static class Batch {
+
+        final RegisterContext registerContext = new RegisterContext(new ArrayList<>());
+
+        /**
+         * Local registration ids and the context sent for each of them
+         */
+        final Map<String, RegisterContext> members = new LinkedHashMap<>();
+
+        /**
+         * True when the batch retries failed registrations, drawing from the retry budget of the remote broker
+         */
+        boolean retry;
+
+        void add(String localRegistrationId, RegisterContext registerContext) {
+            members.put(localRegistrationId, registerContext);
+            this.registerContext.getContextRegistrationList().addAll(registerContext.getContextRegistrationList());
+            // The merged registration must not expire before any of its members
+            if (isLonger(registerContext.getDuration(), this.registerContext.getDuration())) {
+                this.registerContext.setDuration(registerContext.getDuration());
+            }
+        }
+
+        /**
+         * @return true if the duration is longer than the other one, a missing duration being the shortest
+         */
+        private static boolean isLonger(String duration, String other) {
+            if (duration == null) {
+                return false;
+            }
+            if (other == null) {
+                return true;
+            }
+            // Use java.xml.datatype functions as java.time do not handle durations with months and years...
+            try {
+                DatatypeFactory datatypeFactory = DatatypeFactory.newInstance();
+                Date now = new Date();
+                return datatypeFactory.newDuration(duration).getTimeInMillis(now) > datatypeFactory.newDuration(other).getTimeInMillis(now);
+            } catch (DatatypeConfigurationException | IllegalArgumentException e) {
+                return false;
+            }
+        }
+
+        int size() {
+            return registerContext.getContextRegistrationList().size();
+        }
     }
 
     /**
@@ -58,6 +168,17 @@ public class RemoteRegistrations {
      */
     private Map<String, RemoteRegistration> registrations = new ConcurrentHashMap<>();
 
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Time of the next scheduled flush, Long.MAX_VALUE when none (batch mode)
+     */
+    private final AtomicLong nextFlush = new AtomicLong(Long.MAX_VALUE);
+
+    private final AtomicInteger batchesInFlight = new AtomicInteger();
+
+    private final Queue<Batch> queuedBatches = new ConcurrentLinkedQueue<>();
+
     /**
      * Try propagating the registerContext to a remote broker
      * @param registerContext the registerContext to send
@@ -71,7 +192,14 @@ public class RemoteRegistrations {
             return;
         }
 
-        HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(remoteUrl);
+        long window = configuration.getRemoteRegistrationBatchWindow();
+        if (window > 0) {
+            pendRemoteRegistration(localRegistrationId, registerContext);
+            scheduleFlush(window);
+            return;
+        }
+
+        HttpHeaders httpHeaders = compactEncoding.headers(remoteUrl, ngsiClient.getRequestHeaders(remoteUrl));
         logger.debug("=> registerContext to remote broker {} with Content-Type {}", remoteUrl, httpHeaders.getContentType());
 
         // If we already had a remote registration, reset its registerContext
@@ -81,36 +209,52 @@ public class RemoteRegistrations {
 
         configuration.addRemoteHeaders(httpHeaders);
 
-        ngsiClient.registerContext(remoteUrl, httpHeaders, registerContext).addCallback(
+        try {
+            upstreams.send(remoteUrl, () -> ngsiClient.registerContext(remoteUrl, httpHeaders, registerContext)).addCallback(
                 result -> {
                     String remoteRegistrationId = result.getRegistrationId();
                     boolean error = result.getErrorCode() != null || remoteRegistrationId == null;
                     if (error) {
                         logger.warn("failed to register {} to remote broker (will retry later) with error {}", localRegistrationId, result.getErrorCode());
                     } else {
-                        logger.debug("successfully registered {} to remote broker ({})", localRegistrationId, result.getRegistrationId());
+                        logger.debug("successfully registered {} to remote broker ({})", localRegistrationId, result.getRegistrationId());
                     }
                     // On error, keep registerContext for future retry
-                    updateRemoteRegistration(localRegistrationId, remoteRegistrationId, error ? registerContext : null);
+                    updateRemoteRegistration(localRegistrationId, remoteRegistrationId, error ? registerContext : null, error ? null : registerContext);
                 },
                 ex -> {
                     logger.warn("failed to register {} to remote broker (will retry later) with error {}", localRegistrationId, ex.toString());
-                    updateRemoteRegistration(localRegistrationId, null, registerContext);
+                    updateRemoteRegistration(localRegistrationId, null, registerContext, null);
                 });
+        } catch (UpstreamException e) {
+            logger.warn("failed to register {} to remote broker (will retry later) with error {}", localRegistrationId, e.getMessage());
+            updateRemoteRegistration(localRegistrationId, null, registerContext, null);
+        }
     }
 
     /**
      * Scheduled task that will retry failed remote registrations.
-     * For each remote registration, that still have a non null registerContext, retry the registration.
+     * For each remote registration, that still have a non null registerContext, retry the registration,
+     * until the circuit of the remote broker opens or its retry budget is exhausted.
      */
     @Scheduled(fixedDelay = 60000)
     public void registerPendingRemoteRegistrations() {
-        registrations.forEach((localRegistrationId, remoteRegistration) -> {
-            RegisterContext registerContext = remoteRegistration.registerContext;
+        final String remoteUrl = configuration.getRemoteUrl();
+        if (configuration.getRemoteRegistrationBatchWindow() > 0) {
+            // Batches are retried on their own jittered schedule, only catch up with the forgotten ones
+            scheduleFlush(jitter(configuration.getRemoteRegistrationRetryDelay()));
+            return;
+        }
+        for (Map.Entry<String, RemoteRegistration> entry : registrations.entrySet()) {
+            RegisterContext registerContext = entry.getValue().registerContext;
             if (registerContext != null) {
-                registerContext(registerContext, localRegistrationId);
+                if (remoteUrl != null && !remoteUrl.isEmpty() && !upstreams.tryRetry(remoteUrl)) {
+                    logger.debug("retries of remote registrations postponed, remote broker unavailable or retry budget exhausted");
+                    return;
+                }
+                registerContext(registerContext, entry.getKey());
             }
-        });
+        }
     }
 
     /**
@@ -118,7 +262,7 @@ public class RemoteRegistrations {
      * @param localRegistrationId the local registrationId
      * @return the remote registrationId or null
      */
-    public synchronized String getRemoteRegistrationId(String localRegistrationId) {
+    public String getRemoteRegistrationId(String localRegistrationId) {
         RemoteRegistration remoteRegistration = registrations.get(localRegistrationId);
         return remoteRegistration != null ? remoteRegistration.registrationId : null;
     }
@@ -127,8 +271,253 @@ public class RemoteRegistrations {
      * Remove a remote registration associated to a local registrationId
      * @param localRegistrationId the local registrationId
      */
-    public synchronized void removeRegistration(String localRegistrationId) {
-        registrations.remove(localRegistrationId);
+    public void removeRegistration(String localRegistrationId) {
+        RemoteRegistration removed = registrations.remove(localRegistrationId);
+        // Only the batches merge several local registrations in the same remote registration
+        if (removed == null || removed.registrationId == null || configuration.getRemoteRegistrationBatchWindow() <= 0) {
+            return;
+        }
+        // The registrations sharing the same remote registration must be registered again without the removed one
+        boolean[] batchChanged = new boolean[1];
+        for (String otherRegistrationId : registrations.keySet()) {
+            registrations.computeIfPresent(otherRegistrationId, (id, registration) -> {
+                if (removed.registrationId.equals(registration.registrationId) && registration.registerContext == null && registration.registered != null) {
+                    batchChanged[0] = true;
+                    return registration.withRegisterContext(registration.registered);
+                }
+                return registration;
+            });
+        }
+        if (batchChanged[0]) {
+            scheduleFlush(configuration.getRemoteRegistrationBatchWindow());
+        }
+    }
+
+    /**
+     * Stop sending batches
+     */
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Send the pending registrations in batches (batch mode)
+     */
+    void flush() {
+        final String remoteUrl = configuration.getRemoteUrl();
+        if (remoteUrl == null || remoteUrl.isEmpty()) {
+            return;
+        }
+        nextFlush.set(Long.MAX_VALUE);
+        boolean postponed = false;
+        for (Batch batch : collectBatches()) {
+            if (batch.retry && (postponed || !upstreams.tryRetry(remoteUrl))) {
+                postponed = true;
+                batch.members.keySet().forEach(this::release);
+                continue;
+            }
+            queuedBatches.add(batch);
+        }
+        if (postponed) {
+            logger.debug("retries of remote registrations postponed, remote broker unavailable or retry budget exhausted");
+            scheduleFlush(jitter(configuration.getRemoteRegistrationRetryDelay()));
+        }
+        sendQueuedBatches(remoteUrl);
+    }
+
+    /**
+     * Group the pending registrations not in flight into batches, the registrations of the batches being marked in flight
+     */
+    private List<Batch> collectBatches() {
+        int maxSize = configuration.getRemoteRegistrationBatchMaxSize();
+        Set<String> remoteRegistrationIds = new LinkedHashSet<>();
+        Map<String, List<String>> newByDuration = new LinkedHashMap<>();
+        registrations.forEach((localRegistrationId, registration) -> {
+            if (registration.registerContext == null || registration.inFlight) {
+                return;
+            }
+            if (registration.registrationId != null) {
+                remoteRegistrationIds.add(registration.registrationId);
+            } else {
+                newByDuration.computeIfAbsent(String.valueOf(registration.registerContext.getDuration()), k -> new ArrayList<>()).add(localRegistrationId);
+            }
+        });
+
+        List<Batch> batches = new ArrayList<>();
+
+        // An existing remote registration is replaced as a whole: send it again with all its local registrations
+        for (String remoteRegistrationId : remoteRegistrationIds) {
+            Batch batch = new Batch();
+            batch.registerContext.setRegistrationId(remoteRegistrationId);
+            for (Map.Entry<String, RemoteRegistration> entry : registrations.entrySet()) {
+                if (!remoteRegistrationId.equals(entry.getValue().registrationId)) {
+                    continue;
+                }
+                RemoteRegistration claimed = claim(entry.getKey(), remoteRegistrationId);
+                if (claimed == null) {
+                    // Already in flight: sent again when its batch completes
+                    batch.members.keySet().forEach(this::release);
+                    batch = null;
+                    break;
+                }
+                batch.add(entry.getKey(), claimed.registerContext != null ? claimed.registerContext : claimed.registered);
+                batch.retry |= claimed.failed;
+            }
+            if (batch != null && !batch.members.isEmpty()) {
+                batches.add(batch);
+            }
+        }
+
+        // New registrations having the same duration are merged up to the maximum batch size
+        newByDuration.forEach((duration, members) -> {
+            Batch batch = null;
+            for (String localRegistrationId : members) {
+                RemoteRegistration claimed = claim(localRegistrationId, null);
+                if (claimed == null || claimed.registerContext == null) {
+                    if (claimed != null) {
+                        release(localRegistrationId);
+                    }
+                    continue;
+                }
+                RegisterContext registerContext = claimed.registerContext;
+                if (batch == null || batch.size() + registerContext.getContextRegistrationList().size() > maxSize) {
+                    batch = new Batch();
+                    batches.add(batch);
+                }
+                batch.add(localRegistrationId, registerContext);
+                batch.retry |= claimed.failed;
+            }
+        });
+
+        return batches;
+    }
+
+    /**
+     * Mark a registration in flight if it is not already, and still has the given remote registrationId
+     * @return the registration claimed, or null
+     */
+    private RemoteRegistration claim(String localRegistrationId, String remoteRegistrationId) {
+        RemoteRegistration[] claimed = new RemoteRegistration[1];
+        registrations.computeIfPresent(localRegistrationId, (id, registration) -> {
+            if (registration.inFlight || !Objects.equals(remoteRegistrationId, registration.registrationId)
+                    || (registration.registerContext == null && registration.registered == null)) {
+                return registration;
+            }
+            claimed[0] = registration;
+            return registration.withInFlight(true);
+        });
+        return claimed[0];
+    }
+
+    private void release(String localRegistrationId) {
+        registrations.computeIfPresent(localRegistrationId, (id, registration) -> registration.withInFlight(false));
+    }
+
+    /**
+     * Send the queued batches up to the maximum number of batches in flight
+     */
+    private void sendQueuedBatches(String remoteUrl) {
+        int maxConcurrentRequests = configuration.getRemoteRegistrationMaxConcurrentRequests();
+        while (!queuedBatches.isEmpty()) {
+            int inFlight = batchesInFlight.get();
+            if (maxConcurrentRequests > 0 && inFlight >= maxConcurrentRequests) {
+                return;
+            }
+            if (!batchesInFlight.compareAndSet(inFlight, inFlight + 1)) {
+                continue;
+            }
+            Batch batch = queuedBatches.poll();
+            if (batch == null) {
+                batchesInFlight.decrementAndGet();
+                continue;
+            }
+            sendBatch(remoteUrl, batch);
+        }
+    }
+
+    private void sendBatch(String remoteUrl, Batch batch) {
+        HttpHeaders httpHeaders = compactEncoding.headers(remoteUrl, ngsiClient.getRequestHeaders(remoteUrl));
+        configuration.addRemoteHeaders(httpHeaders);
+        logger.debug("=> registerContext of {} local registrations to remote broker {}", batch.members.size(), remoteUrl);
+
+        try {
+            upstreams.send(remoteUrl, () -> ngsiClient.registerContext(remoteUrl, httpHeaders, batch.registerContext)).addCallback(
+                    result -> batchCompleted(remoteUrl, batch, result),
+                    ex -> {
+                        logger.warn("failed to register {} to remote broker (will retry later) with error {}", batch.members.keySet(), ex.toString());
+                        batchCompleted(remoteUrl, batch, null);
+                    });
+        } catch (UpstreamException e) {
+            logger.warn("failed to register {} to remote broker (will retry later) with error {}", batch.members.keySet(), e.getMessage());
+            batchCompleted(remoteUrl, batch, null);
+        }
+    }
+
+    private void batchCompleted(String remoteUrl, Batch batch, RegisterContextResponse result) {
+        String remoteRegistrationId = result != null ? result.getRegistrationId() : null;
+        boolean error = result == null || result.getErrorCode() != null || remoteRegistrationId == null;
+        if (result != null && error) {
+            logger.warn("failed to register {} to remote broker (will retry later) with error {}", batch.members.keySet(), result.getErrorCode());
+        } else if (!error) {
+            logger.debug("successfully registered {} to remote broker ({})", batch.members.keySet(), remoteRegistrationId);
+        }
+
+        boolean[] updatedInFlight = new boolean[1];
+        for (Map.Entry<String, RegisterContext> member : batch.members.entrySet()) {
+            RegisterContext sent = member.getValue();
+            // Removed while in flight are ignored
+            registrations.computeIfPresent(member.getKey(), (id, registration) -> {
+                // Keep the registerContext for a retry on error, or if updated while in flight
+                boolean updated = registration.registerContext != null && registration.registerContext != sent;
+                updatedInFlight[0] |= updated;
+                if (error) {
+                    return new RemoteRegistration(registration.registrationId, registration.registerContext, registration.registered, false, true);
+                }
+                return new RemoteRegistration(remoteRegistrationId, updated ? registration.registerContext : null, sent, false, false);
+            });
+        }
+        batchesInFlight.decrementAndGet();
+
+        if (error) {
+            scheduleFlush(jitter(configuration.getRemoteRegistrationRetryDelay()));
+        } else if (updatedInFlight[0]) {
+            scheduleFlush(configuration.getRemoteRegistrationBatchWindow());
+        }
+        sendQueuedBatches(remoteUrl);
+    }
+
+    /**
+     * Schedule a flush of the pending registrations unless one is already scheduled before
+     * @param delay the delay in milliseconds
+     */
+    private void scheduleFlush(long delay) {
+        long flushTime = System.currentTimeMillis() + delay;
+        long scheduled;
+        do {
+            scheduled = nextFlush.get();
+            if (flushTime >= scheduled || scheduler.isShutdown()) {
+                return;
+            }
+        } while (!nextFlush.compareAndSet(scheduled, flushTime));
+        scheduler.schedule(this::flush, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a random delay between half and one and a half times the given delay
+     */
+    private static long jitter(long delay) {
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay + 1);
+    }
+
+    /**
+     * Keep a registerContext to be sent with the next batch (batch mode)
+     * @param localRegistrationId the local registrationId
+     * @param registerContext the registerContext to send
+     */
+    private void pendRemoteRegistration(String localRegistrationId, RegisterContext registerContext) {
+        registrations.compute(localRegistrationId, (id, registration) -> registration == null ?
+                new RemoteRegistration(null, registerContext, null, false, false) : registration.withRegisterContext(registerContext));
     }
 
     /**
@@ -136,13 +525,13 @@ public class RemoteRegistrations {
      * @param localRegistrationId the local registrationId
      * @return the previous remote registrationId, or null
      */
-    private synchronized String resetRemoteRegistration(String localRegistrationId) {
-        RemoteRegistration registration = registrations.get(localRegistrationId);
-        if (registration != null) {
-            registration.registerContext = null;
-            return registration.registrationId;
-        }
-        return null;
+    private String resetRemoteRegistration(String localRegistrationId) {
+        String[] previousRemoteRegistrationId = new String[1];
+        registrations.computeIfPresent(localRegistrationId, (id, registration) -> {
+            previousRemoteRegistrationId[0] = registration.registrationId;
+            return registration.withRegisterContext(null);
+        });
+        return previousRemoteRegistrationId[0];
     }
 
     /**
@@ -150,14 +539,10 @@ public class RemoteRegistrations {
      * @param localRegistrationId the local registrationId
      * @param remoteRegistrationId the remote registrationId to update
      * @param registerContext the registerContext to update
+     * @param registered the registerContext successfully registered, or null on failure
      */
-    private synchronized void updateRemoteRegistration(String localRegistrationId, String remoteRegistrationId, RegisterContext registerContext) {
-        RemoteRegistration registration = registrations.get(localRegistrationId);
-        if (registration == null) {
-            registration = new RemoteRegistration();
-            registrations.put(localRegistrationId, registration);
-        }
-        registration.registrationId = remoteRegistrationId;
-        registration.registerContext = registerContext;
+    private void updateRemoteRegistration(String localRegistrationId, String remoteRegistrationId, RegisterContext registerContext, RegisterContext registered) {
+        registrations.compute(localRegistrationId, (id, registration) -> new RemoteRegistration(remoteRegistrationId, registerContext,
+                registered != null || registration == null ? registered : registration.registered, false, registered == null));
     }
 }
@@ -17,16 +17,15 @@ import com.orange.ngsi.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.xml.datatype.DatatypeFactory;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Predicate;
 import java.util.regex.PatternSyntaxException;
 
 /**
@@ -39,16 +38,47 @@ public class Subscriptions {
 
     private Map<String, Subscription> subscriptions;
 
+    /**
+     * Subscription ids indexed by entity id
+     */
+    private EntityIdIndex<String> entityIdIndex;
+
+    /**
+     * Subscription ids indexed by attribute name
+     */
+    private Map<String, Set<String>> attributeIndex = new ConcurrentHashMap<>();
+
     @Autowired
     private Patterns patterns;
 
     @Autowired
     SubscriptionsRepository subscriptionsRepository;
 
+    @Autowired
+    Notifications notifications;
+
+    /**
+     * Removes the subscriptions when they expire
+     */
+    private final ExpirationQueue<String> expirations = new ExpirationQueue<>(this::expireSubscriptions);
+
     @PostConstruct
     protected void loadSubscriptionsOnStartup() {
+        entityIdIndex = new EntityIdIndex<>(patterns);
+        subscriptions = new ConcurrentHashMap<>();
         try {
-            subscriptions = subscriptionsRepository.getAllSubscriptions();
+            // Subscriptions are indexed as they are loaded, their subscribeContext is only decoded on first use
+            int count = subscriptionsRepository.loadSubscriptions(Instant.now(), (subscription, entityIds, attributes, throttling) -> {
+                try {
+                    subscription.setThrottling(convertThrottling(throttling));
+                } catch (SubscriptionException e) {
+                    logger.warn("Ignoring throttling of subscription {}: {}", subscription.getSubscriptionId(), e.getMessage());
+                }
+                subscriptions.put(subscription.getSubscriptionId(), subscription);
+                index(subscription.getSubscriptionId(), entityIds, attributes);
+                expirations.schedule(subscription.getSubscriptionId(), subscription.getExpirationDate());
+            });
+            logger.info("Loaded {} subscriptions from database", count);
         } catch (SubscriptionPersistenceException e) {
             logger.error("Failed to load subscriptions from database", e);
         }
@@ -77,15 +107,20 @@ public class Subscriptions {
             throw new SubscriptionException("bad pattern", e);
         }
 
+        Duration throttling = convertThrottling(subscribeContext.getThrottling());
+
         // Generate a subscription id
         String subscriptionId = UUID.randomUUID().toString();
 
         //create subscription and set the expiration date and subscriptionId
         Subscription subscription = new Subscription(subscriptionId, Instant.now().plus(duration), subscribeContext);
+        subscription.setThrottling(throttling);
 
         //save subscription
         subscriptionsRepository.saveSubscription(subscription);
         subscriptions.put(subscriptionId, subscription);
+        index(subscription);
+        expirations.schedule(subscriptionId, subscription.getExpirationDate());
 
         return subscriptionId;
     }
@@ -100,6 +135,11 @@ public class Subscriptions {
         String subscriptionId = unsubscribeContext.getSubscriptionId();
         subscriptionsRepository.removeSubscription(subscriptionId);
         Subscription subscription = subscriptions.remove(subscriptionId);
+        if (subscription != null) {
+            unindex(subscription);
+            expirations.cancel(subscriptionId);
+            notifications.removeSubscription(subscriptionId);
+        }
 
         return (subscription != null);
     }
@@ -112,41 +152,35 @@ public class Subscriptions {
      */
     public Iterator<Subscription> findSubscriptions(EntityId searchEntityId, Set<String> searchAttributes) {
 
-        // Filter out expired subscriptions
-        Predicate<Subscription> filterExpired = subscription -> subscription.getExpirationDate().isAfter(Instant.now());
-
-        // Filter only matching entity ids
-        Predicate<EntityId> filterEntityId = patterns.getFilterEntityId(searchEntityId);
+        // Expired subscriptions are already removed by the expiration queue
 
-        // Only filter by attributes if search is looking for them
-        final boolean noAttributes = searchAttributes == null || searchAttributes.size() == 0;
+        // Only the subscriptions having at least one of their listed entities matching the searched context element
+        Set<String> subscriptionIds = entityIdIndex.find(searchEntityId);
 
-        // Filter each subscription (remove expired) and return its providing application
-        // if at least one of its listed entities matches the searched context element
-        // and if all searched attributes are defined in the subscription (if any)
-        return subscriptions.values().stream()
-                .filter(filterExpired)
-                .filter(subscription -> subscription.getSubscribeContext().getEntityIdList().stream().filter(filterEntityId).findFirst().isPresent()
-                        && (noAttributes || !Collections.disjoint(subscription.getSubscribeContext().getAttributeList(), searchAttributes))).iterator();
+        // Only filter by attributes if search is looking for them:
+        // keep the subscriptions defining at least one of the searched attributes
+        if (searchAttributes != null && searchAttributes.size() != 0) {
+            subscriptionIds.removeIf(subscriptionId -> searchAttributes.stream().noneMatch(attribute -> {
+                Set<String> ids = attributeIndex.get(attribute);
+                return ids != null && ids.contains(subscriptionId);
+            }));
+        }
 
+        return subscriptionIds.stream()
+                .map(subscriptions::get)
+                .filter(subscription -> subscription != null).iterator();
     }
 
     /**
-     * Removed all expired subscriptions every minute.
+     * Remove now all the expired subscriptions (they are otherwise removed by the expiration queue when they expire).
      */
-    @Scheduled(fixedDelay = 60000)
     public void purgeExpiredSubscriptions() {
-        final Instant now = Instant.now();
-        subscriptions.forEach((subscriptionId, subscribeContext) -> {
-            if (subscribeContext.getExpirationDate().isBefore(now)) {
-                subscriptions.remove(subscriptionId);
-                try {
-                    subscriptionsRepository.removeSubscription(subscriptionId);
-                } catch (SubscriptionPersistenceException e) {
-                    logger.error("Failed to remove subscription from database", e);
-                }
-            }
-        });
+        expirations.expire();
+    }
+
+    @PreDestroy
+    protected void stopExpirations() {
+        expirations.shutdown();
     }
 
     /**
@@ -159,6 +193,82 @@ public class Subscriptions {
         return subscription;
     }
 
+    /**
+     * Add the subscription to the entity id and attribute indexes
+     */
+    private void index(Subscription subscription) {
+        SubscribeContext subscribeContext = subscription.getSubscribeContext();
+        index(subscription.getSubscriptionId(), subscribeContext.getEntityIdList(), subscribeContext.getAttributeList());
+    }
+
+    private void index(String subscriptionId, Collection<EntityId> entityIds, Collection<String> attributes) {
+        entityIdIndex.add(subscriptionId, entityIds);
+        if (attributes != null) {
+            attributes.forEach(attribute -> attributeIndex.compute(attribute, (name, ids) -> {
+                if (ids == null) {
+                    ids = ConcurrentHashMap.newKeySet();
+                }
+                ids.add(subscriptionId);
+                return ids;
+            }));
+        }
+    }
+
+    /**
+     * Remove a batch of expired subscriptions, from the database in a single batch
+     */
+    private void expireSubscriptions(Collection<String> subscriptionIds) {
+        List<String> expiredIds = new ArrayList<>(subscriptionIds.size());
+        for (String subscriptionId : subscriptionIds) {
+            Subscription subscription = subscriptions.remove(subscriptionId);
+            if (subscription != null) {
+                unindex(subscription);
+                notifications.removeSubscription(subscriptionId);
+                expiredIds.add(subscriptionId);
+            }
+        }
+        try {
+            subscriptionsRepository.removeSubscriptions(expiredIds);
+        } catch (SubscriptionPersistenceException e) {
+            logger.error("Failed to remove subscriptions from database", e);
+        }
+    }
+
+    /**
+     * Remove the subscription from the entity id and attribute indexes
+     */
+    private void unindex(Subscription subscription) {
+        String subscriptionId = subscription.getSubscriptionId();
+        SubscribeContext subscribeContext = subscription.getSubscribeContext();
+        entityIdIndex.remove(subscriptionId, subscribeContext.getEntityIdList());
+        if (subscribeContext.getAttributeList() != null) {
+            subscribeContext.getAttributeList().forEach(attribute -> attributeIndex.computeIfPresent(attribute, (name, ids) -> {
+                ids.remove(subscriptionId);
+                return ids.isEmpty() ? null : ids;
+            }));
+        }
+    }
+
+    /**
+     * @return the throttling duration, zero when no throttling is defined
+     * @throws SubscriptionException if the throttling is invalid
+     */
+    private Duration convertThrottling(String throttling) throws SubscriptionException {
+        if (throttling == null || throttling.isEmpty()) {
+            return Duration.ZERO;
+        }
+        Duration duration;
+        try {
+            duration = convertDuration(throttling);
+        } catch (SubscriptionException e) {
+            throw new SubscriptionException("bad throttling: " + throttling, e);
+        }
+        if (duration.isNegative()) {
+            throw new SubscriptionException("negative throttling is not allowed", new Throwable());
+        }
+        return duration;
+    }
+
     /**
      * @return the duration in String format
      * @throws SubscriptionException
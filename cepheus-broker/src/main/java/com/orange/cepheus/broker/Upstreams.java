@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.cepheus.broker.exception.UpstreamException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Guard the requests forwarded to the upstream servers (providing applications and remote broker).
+ *
+ * Waiting for a response is bounded by upstream.timeout, and the number of requests in flight to a same upstream server
+ * is capped by upstream.maxConcurrentRequests: a slow upstream server fails fast instead of holding all the request threads.
+ * The request threads waiting for a response (queryContext, updateContext to providing applications) are still blocked:
+ * these limits only bound how many of them a slow upstream server holds, and for how long.
+ *
+ * After upstream.breaker.failures consecutive failures (errors or timeouts), the circuit of the upstream server opens:
+ * requests fail immediately during upstream.breaker.backoff ms, then a single trial request is let through.
+ * Each failed trial doubles the backoff (up to upstream.breaker.maxBackoff ms), a successful one closes the circuit.
+ *
+ * Retries (see tryRetry()) are limited by a retry budget: upstream.retry.ratio retries per request sent,
+ * plus a reserve of 10 retries per minute.
+ */
+@Component
+public class Upstreams {
+
+    private static Logger logger = LoggerFactory.getLogger(Upstreams.class);
+
+    private final static int RETRY_RESERVE_PER_MINUTE = 10;
+
+    private final static double MAX_RETRY_TOKENS = 100;
+
+    /**
+     * State of the circuit of an upstream server
+     */
+    public enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    @Autowired
+    Configuration configuration;
+
+    /**
+     * State of each upstream server
+     */
+    private final Map<String, Upstream> upstreams = new ConcurrentHashMap<>();
+
+    /**
+     * Send a request to an upstream server and wait for its response
+     * @param url the url of the upstream server
+     * @param request the request to send
+     * @param <T> the type of the response
+     * @return the response
+     * @throws UpstreamException if the circuit of the upstream server is open, if too many requests are in flight to it, or if the response times out
+     * @throws ExecutionException if the request failed
+     * @throws InterruptedException
+     */
+    public <T> T get(String url, Supplier<ListenableFuture<T>> request) throws UpstreamException, ExecutionException, InterruptedException {
+        long sendTime = System.currentTimeMillis();
+        return await(url, send(url, request), sendTime);
+    }
+
+    /**
+     * Send a request to an upstream server without waiting for its response
+     * @param url the url of the upstream server
+     * @param request the request to send
+     * @param <T> the type of the response
+     * @return the future response
+     * @throws UpstreamException if the circuit of the upstream server is open or if too many requests are in flight to it
+     */
+    public <T> ListenableFuture<T> send(String url, Supplier<ListenableFuture<T>> request) throws UpstreamException {
+        Upstream upstream = upstream(url);
+
+        Semaphore semaphore = upstream.permits;
+        if (semaphore != null && !semaphore.tryAcquire()) {
+            throw new UpstreamException("too many concurrent requests to " + upstream.name);
+        }
+
+        ListenableFuture<T> future;
+        try {
+            if (configuration.getUpstreamBreakerFailures() > 0) {
+                upstream.allowRequest();
+            }
+        } catch (UpstreamException e) {
+            if (semaphore != null) {
+                semaphore.release();
+            }
+            throw e;
+        }
+        try {
+            upstream.deposit(configuration.getUpstreamRetryRatio());
+            future = request.get();
+        } catch (RuntimeException e) {
+            if (semaphore != null) {
+                semaphore.release();
+            }
+            // Count the failure, which also ends a trial request of a half open circuit
+            onFailure(upstream);
+            throw e;
+        }
+        // Keep the permit until the upstream server has actually responded
+        future.addCallback(result -> {
+            if (semaphore != null) {
+                semaphore.release();
+            }
+            upstream.onSuccess();
+        }, throwable -> {
+            if (semaphore != null) {
+                semaphore.release();
+            }
+            // Timeouts are already counted by await()
+            if (!(throwable instanceof CancellationException)) {
+                onFailure(upstream);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Wait for the response of a request sent to an upstream server, blocking the calling thread up to upstream.timeout.
+     * Requests sent concurrently at the same time share the same timeout.
+     * @param url the url of the upstream server
+     * @param future the future response
+     * @param sendTime the time (in milliseconds) when the request was sent
+     * @param <T> the type of the response
+     * @return the response
+     * @throws UpstreamException if the response times out
+     * @throws ExecutionException if the request failed
+     * @throws InterruptedException
+     */
+    public <T> T await(String url, ListenableFuture<T> future, long sendTime) throws UpstreamException, ExecutionException, InterruptedException {
+        long timeout = configuration.getUpstreamTimeout();
+        if (timeout <= 0) {
+            return future.get();
+        }
+        try {
+            long remaining = Math.max(0, sendTime + timeout - System.currentTimeMillis());
+            return future.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            onFailure(upstream(url));
+            future.cancel(true);
+            throw new UpstreamException("no response from " + url + " after " + timeout + " ms");
+        }
+    }
+
+    /**
+     * Take a retry from the retry budget of an upstream server
+     * @param url the url of the upstream server
+     * @return false if the circuit of the upstream server is open or if its retry budget is exhausted
+     */
+    public boolean tryRetry(String url) {
+        Upstream upstream = upstream(url);
+        return !upstream.isOpen() && upstream.withdraw();
+    }
+
+    /**
+     * @return the state of the circuit and the retry budget of each upstream server
+     */
+    public Map<String, Map<String, Object>> getStates() {
+        Map<String, Map<String, Object>> states = new TreeMap<>();
+        upstreams.forEach((name, upstream) -> states.put(name, upstream.getState()));
+        return states;
+    }
+
+    private void onFailure(Upstream upstream) {
+        if (configuration.getUpstreamBreakerFailures() > 0) {
+            upstream.onFailure(configuration.getUpstreamBreakerFailures(), configuration.getUpstreamBreakerBackoff(), configuration.getUpstreamBreakerMaxBackoff());
+        }
+    }
+
+    private Upstream upstream(String url) {
+        return upstreams.computeIfAbsent(upstreamName(url), name -> new Upstream(name, configuration.getUpstreamMaxConcurrentRequests()));
+    }
+
+    /**
+     * @return the scheme and authority of the url identifying the upstream server
+     */
+    private static String upstreamName(String url) {
+        try {
+            URI uri = new URI(url);
+            if (uri.getAuthority() != null) {
+                return uri.getScheme() + "://" + uri.getAuthority();
+            }
+        } catch (Exception e) {
+            // use the whole url
+        }
+        return url;
+    }
+
+    /**
+     * Circuit breaker and retry budget of an upstream server
+     */
+    private static class Upstream {
+
+        final String name;
+
+        /**
+         * Permits for the requests in flight, null for no limit
+         */
+        final Semaphore permits;
+
+        // Circuit breaker (guarded by this)
+
+        CircuitState state = CircuitState.CLOSED;
+
+        int failures;
+
+        long backoff;
+
+        long openUntil;
+
+        boolean trialInFlight;
+
+        // Retry budget (guarded by this)
+
+        double retryTokens = RETRY_RESERVE_PER_MINUTE;
+
+        long lastRefill = System.currentTimeMillis();
+
+        Upstream(String name, int maxConcurrentRequests) {
+            this.name = name;
+            this.permits = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests) : null;
+        }
+
+        synchronized void allowRequest() throws UpstreamException {
+            if (state == CircuitState.OPEN) {
+                long now = System.currentTimeMillis();
+                if (now < openUntil) {
+                    throw new UpstreamException("circuit open for " + name + ", next try in " + (openUntil - now) + " ms");
+                }
+                state = CircuitState.HALF_OPEN;
+                trialInFlight = false;
+            }
+            if (state == CircuitState.HALF_OPEN) {
+                if (trialInFlight) {
+                    throw new UpstreamException("circuit half-open for " + name + ", waiting for a trial request");
+                }
+                trialInFlight = true;
+            }
+        }
+
+        synchronized boolean isOpen() {
+            return state == CircuitState.OPEN && System.currentTimeMillis() < openUntil;
+        }
+
+        synchronized void onSuccess() {
+            if (state != CircuitState.CLOSED) {
+                logger.info("circuit closed for {}", name);
+            }
+            state = CircuitState.CLOSED;
+            failures = 0;
+            backoff = 0;
+            trialInFlight = false;
+        }
+
+        synchronized void onFailure(int maxFailures, long initialBackoff, long maxBackoff) {
+            if (state == CircuitState.OPEN) {
+                // Late failure of a request sent before opening
+                return;
+            }
+            failures++;
+            if (state == CircuitState.HALF_OPEN || failures >= maxFailures) {
+                backoff = backoff == 0 ? initialBackoff : Math.min(maxBackoff, backoff * 2);
+                openUntil = System.currentTimeMillis() + backoff;
+                state = CircuitState.OPEN;
+                trialInFlight = false;
+                logger.warn("circuit open for {} during {} ms after {} failures", name, backoff, failures);
+            }
+        }
+
+        synchronized void deposit(double ratio) {
+            retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + ratio);
+        }
+
+        synchronized boolean withdraw() {
+            long now = System.currentTimeMillis();
+            retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + (now - lastRefill) * RETRY_RESERVE_PER_MINUTE / 60000.0);
+            lastRefill = now;
+            if (retryTokens < 1) {
+                return false;
+            }
+            retryTokens--;
+            return true;
+        }
+
+        synchronized Map<String, Object> getState() {
+            Map<String, Object> upstreamState = new LinkedHashMap<>();
+            upstreamState.put("state", isOpen() || state != CircuitState.OPEN ? state : CircuitState.HALF_OPEN);
+            upstreamState.put("failures", failures);
+            upstreamState.put("backoff", backoff);
+            if (isOpen()) {
+                upstreamState.put("openUntil", Instant.ofEpochMilli(openUntil).toString());
+            }
+            if (permits != null) {
+                upstreamState.put("availablePermits", permits.availablePermits());
+            }
+            upstreamState.put("retryBudget", (int) retryTokens);
+            return upstreamState;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Admin endpoint (/upstreams) exposing the circuit state and retry budget of each upstream server
+ */
+@Component
+public class UpstreamsEndpoint extends AbstractEndpoint<Map<String, Map<String, Object>>> {
+
+    @Autowired
+    Upstreams upstreams;
+
+    public UpstreamsEndpoint() {
+        super("upstreams", false);
+    }
+
+    @Override
+    public Map<String, Map<String, Object>> invoke() {
+        return upstreams.getStates();
+    }
+}
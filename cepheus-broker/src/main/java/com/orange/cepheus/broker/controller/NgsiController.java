@@ -9,10 +9,14 @@
 package com.orange.cepheus.broker.controller;
 
 import com.orange.cepheus.broker.Configuration;
+import com.orange.cepheus.broker.ContextCache;
 import com.orange.cepheus.broker.LocalRegistrations;
+import com.orange.cepheus.broker.Notifications;
 import com.orange.cepheus.broker.Subscriptions;
+import com.orange.cepheus.broker.Upstreams;
 import com.orange.cepheus.broker.exception.*;
 import com.orange.cepheus.broker.model.Subscription;
+import com.orange.cepheus.common.CompactEncoding;
 import com.orange.ngsi.client.NgsiClient;
 import com.orange.ngsi.model.*;
 import com.orange.ngsi.server.NgsiBaseController;
@@ -21,6 +25,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -52,9 +57,21 @@ public class NgsiController extends NgsiBaseController {
     @Autowired
     NgsiClient ngsiClient;
 
+    @Autowired
+    Notifications notifications;
+
+    @Autowired
+    Upstreams upstreams;
+
+    @Autowired
+    ContextCache contextCache;
+
     @Autowired
     Configuration configuration;
 
+    @Autowired
+    CompactEncoding compactEncoding;
+
     @Override
     public RegisterContextResponse registerContext(final RegisterContext register) throws RegistrationException, RegistrationPersistenceException {
         logger.debug("<= registerContext with id:{} duration:{}", register.getRegistrationId(), register.getDuration());
@@ -67,30 +84,114 @@ public class NgsiController extends NgsiBaseController {
     }
 
     @Override
-    public UpdateContextResponse updateContext(final UpdateContext update) throws ExecutionException, InterruptedException, URISyntaxException {
-
-        //TODO : search providingApplication for all contextElement of updateContext
-        ContextElement contextElement = update.getContextElements().get(0);
-        Set<String> attributesName = contextElement.getContextAttributeList().stream().map(ContextAttribute::getName).collect(Collectors.toSet());
+    public UpdateContextResponse updateContext(final UpdateContext update) throws ExecutionException, InterruptedException, URISyntaxException, UpstreamException {
 
-        logger.debug("<= updateContext with entityId: {} and attributes: {} ", contextElement.getEntityId().toString(), attributesName);
+        logger.debug("<= updateContext with entityIds: {}", update.getContextElements().stream().map(c -> c.getEntityId().getId()).collect(Collectors.toList()));
 
         /*
-         * If a registration matches the updateContext, the updateContext is forwarded to the corresponding providingURL.
-         * Else, the update is forwarded to the remote broker and the subscribers are notified.
+         * The context elements matching a registration are forwarded to the corresponding providingURL (command),
+         * the context elements of a same providing application being grouped in a single updateContext.
+         * The other context elements are forwarded to the remote broker and the subscribers are notified.
          */
 
-        // Search registrations to forward updateContext
-        Iterator<URI> providingApplication = localRegistrations.findProvidingApplication(contextElement.getEntityId(), attributesName);
-        if (providingApplication.hasNext()) {
-            // Forward the update to the first providing Application (command)
-            final String providerUrl = providingApplication.next().toString();
+        // Group the context elements by providing application
+        Map<String, List<Integer>> elementsByProvider = new LinkedHashMap<>();
+        List<ContextElement> remainingElements = new ArrayList<>();
+        for (int i = 0; i < update.getContextElements().size(); i++) {
+            ContextElement contextElement = update.getContextElements().get(i);
+            Iterator<URI> providingApplication = localRegistrations.findProvidingApplication(contextElement.getEntityId(), attributeNames(contextElement));
+            if (providingApplication.hasNext()) {
+                elementsByProvider.computeIfAbsent(providingApplication.next().toString(), url -> new ArrayList<>()).add(i);
+            } else {
+                remainingElements.add(contextElement);
+            }
+        }
+
+        // Forward the whole update when a single providing application is concerned
+        if (elementsByProvider.size() == 1 && remainingElements.isEmpty()) {
+            final String providerUrl = elementsByProvider.keySet().iterator().next();
+            HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(providerUrl);
+            logger.debug("=> updateContext forwarded to {} with Content-Type {}", providerUrl, httpHeaders.getContentType());
+            // Only the providing application knows the new values, forget the cached ones
+            try {
+                return upstreams.get(providerUrl, () -> ngsiClient.updateContext(providerUrl, httpHeaders, update));
+            } finally {
+                contextCache.invalidate(update.getContextElements());
+            }
+        }
+
+        // Send the updates to all the providing applications concurrently
+        long sendTime = System.currentTimeMillis();
+        Map<String, ListenableFuture<UpdateContextResponse>> futures = new LinkedHashMap<>();
+        Map<String, StatusCode> unavailableProviders = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : elementsByProvider.entrySet()) {
+            final String providerUrl = entry.getKey();
+            final UpdateContext providerUpdate = subUpdate(update, entry.getValue().stream().map(update.getContextElements()::get).collect(Collectors.toList()));
             HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(providerUrl);
             logger.debug("=> updateContext forwarded to {} with Content-Type {}", providerUrl, httpHeaders.getContentType());
-            return ngsiClient.updateContext(providerUrl, httpHeaders, update).get();
+            try {
+                futures.put(providerUrl, upstreams.send(providerUrl, () -> ngsiClient.updateContext(providerUrl, httpHeaders, providerUpdate)));
+            } catch (UpstreamException e) {
+                logger.warn("UpdateContext not forwarded to {}: {}", providerUrl, e.getMessage());
+                unavailableProviders.put(providerUrl, upstreamUnavailable(e));
+            }
+        }
+
+        final UpdateContext remainingUpdate = elementsByProvider.isEmpty() ? update : subUpdate(update, remainingElements);
+        if (!remainingElements.isEmpty()) {
+            forwardToRemoteBroker(remainingUpdate);
+            notifyRemainingElements(remainingUpdate);
+        }
+
+        // Assemble the status of each context element, in the order of the update
+        ContextElementResponse[] contextElementResponses = new ContextElementResponse[update.getContextElements().size()];
+        for (Map.Entry<String, List<Integer>> entry : elementsByProvider.entrySet()) {
+            String providerUrl = entry.getKey();
+            List<Integer> indexes = entry.getValue();
+            StatusCode errorCode = unavailableProviders.get(providerUrl);
+            List<ContextElementResponse> providerResponses = null;
+            if (errorCode == null) {
+                try {
+                    UpdateContextResponse response = upstreams.await(providerUrl, futures.get(providerUrl), sendTime);
+                    providerResponses = response.getContextElementResponses();
+                    errorCode = response.getErrorCode();
+                } catch (UpstreamException e) {
+                    logger.warn("UpdateContext failed for {}: {}", providerUrl, e.getMessage());
+                    errorCode = upstreamUnavailable(e);
+                } catch (ExecutionException e) {
+                    logger.warn("UpdateContext failed for {}: {}", providerUrl, e.getCause().getMessage());
+                    errorCode = receiverError(e.getCause().getMessage());
+                }
+            }
+            for (int i = 0; i < indexes.size(); i++) {
+                ContextElement contextElement = update.getContextElements().get(indexes.get(i));
+                if (providerResponses != null && i < providerResponses.size()) {
+                    contextElementResponses[indexes.get(i)] = providerResponses.get(i);
+                } else {
+                    StatusCode statusCode = errorCode != null ? errorCode : receiverError("no status for this context element");
+                    contextElementResponses[indexes.get(i)] = new ContextElementResponse(contextElement, statusCode);
+                }
+            }
+        }
+        // The updates may have been applied by the providing applications even when failing, forget the cached values
+        contextCache.invalidate(elementsByProvider.values().stream().flatMap(List::stream)
+                .map(update.getContextElements()::get).collect(Collectors.toList()));
+        StatusCode ok = new StatusCode(CodeEnum.CODE_200);
+        for (int i = 0; i < contextElementResponses.length; i++) {
+            if (contextElementResponses[i] == null) {
+                contextElementResponses[i] = new ContextElementResponse(update.getContextElements().get(i), ok);
+            }
         }
 
-        // Forward the update to the remote broker
+        UpdateContextResponse updateContextResponse = new UpdateContextResponse();
+        updateContextResponse.setContextElementResponses(Arrays.asList(contextElementResponses));
+        return updateContextResponse;
+    }
+
+    /**
+     * Forward an update to the remote broker without waiting for its response
+     */
+    private void forwardToRemoteBroker(final UpdateContext update) {
         if (configuration.isRemoteForwardUpdateContext()) {
             final String brokerUrl = configuration.getRemoteUrl();
             if (brokerUrl == null || brokerUrl.isEmpty()) {
@@ -98,71 +199,186 @@ public class NgsiController extends NgsiBaseController {
             } else {
                 HttpHeaders httpHeaders = getRemoteBrokerHeaders(brokerUrl);
                 logger.debug("=> updateContext forwarded to remote broker {} with Content-Type {}", brokerUrl, httpHeaders.getContentType());
-                ngsiClient.updateContext(brokerUrl, httpHeaders, update)
-                        .addCallback(updateContextResponse -> logUpdateContextResponse(updateContextResponse, brokerUrl),
-                                throwable -> logger.warn("UpdateContext failed for {}: {}", brokerUrl, throwable.getMessage(), throwable));
+                try {
+                    upstreams.send(brokerUrl, () -> ngsiClient.updateContext(brokerUrl, httpHeaders, update))
+                            .addCallback(updateContextResponse -> logUpdateContextResponse(updateContextResponse, brokerUrl),
+                                    throwable -> logger.warn("UpdateContext failed for {}: {}", brokerUrl, throwable.getMessage(), throwable));
+                } catch (UpstreamException e) {
+                    logger.warn("UpdateContext not forwarded to remote broker: {}", e.getMessage());
+                }
             }
         }
+    }
 
-        List<ContextElementResponse> contextElementResponseList = new ArrayList<>();
-        StatusCode statusCode = new StatusCode(CodeEnum.CODE_200);
-        for (ContextElement c : update.getContextElements()) {
-            contextElementResponseList.add(new ContextElementResponse(c, statusCode));
-        }
+    /**
+     * Update the context cache with the context elements not forwarded to providing applications and notify the subscribers
+     */
+    private void notifyRemainingElements(final UpdateContext update) throws URISyntaxException {
+        contextCache.update(update);
 
         String originator = configuration.getLocalUrl();
         if (originator == null || originator.isEmpty()) {
             logger.warn("No local.url parameter defined to use as originator for sending notifyContext");
         } else {
-            // Send notifications to matching subscriptions
-            Iterator<Subscription> matchingSubscriptions = subscriptions.findSubscriptions(contextElement.getEntityId(), attributesName);
-            while (matchingSubscriptions.hasNext()) {
-                Subscription subscription = matchingSubscriptions.next();
-                NotifyContext notifyContext = new NotifyContext(subscription.getSubscriptionId(), new URI(originator));
-                notifyContext.setContextElementResponseList(contextElementResponseList);
-                String providerUrl = subscription.getSubscribeContext().getReference().toString();
-
-                HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(providerUrl);
-                logger.debug("=> notifyContext to {} with Content-Type {}", providerUrl, httpHeaders.getContentType());
-
-                ngsiClient.notifyContextCustomURL(providerUrl, httpHeaders, notifyContext).addCallback(
-                                notifyContextResponse -> logNotifyContextResponse(notifyContextResponse, providerUrl),
-                        throwable -> logger.warn("NotifyContext failed for {}", providerUrl, throwable));
+            // Send notifications to matching subscriptions, each one with all its matching context elements
+            StatusCode statusCode = new StatusCode(CodeEnum.CODE_200);
+            Map<Subscription, List<ContextElementResponse>> matchedElements = new LinkedHashMap<>();
+            for (ContextElement element : update.getContextElements()) {
+                ContextElementResponse contextElementResponse = new ContextElementResponse(element, statusCode);
+                Iterator<Subscription> matchingSubscriptions = subscriptions.findSubscriptions(element.getEntityId(), attributeNames(element));
+                while (matchingSubscriptions.hasNext()) {
+                    matchedElements.computeIfAbsent(matchingSubscriptions.next(), s -> new ArrayList<>()).add(contextElementResponse);
+                }
+            }
+            for (Map.Entry<Subscription, List<ContextElementResponse>> entry : matchedElements.entrySet()) {
+                notifications.notify(entry.getKey(), entry.getValue());
             }
         }
-
-        UpdateContextResponse updateContextResponse = new UpdateContextResponse();
-        updateContextResponse.setContextElementResponses(contextElementResponseList);
-        return updateContextResponse;
     }
 
     @Override
-    public QueryContextResponse queryContext(final QueryContext query) throws ExecutionException, InterruptedException, MissingRemoteBrokerException {
-        logger.debug("<= queryContext on entities: {}", query.getEntityIdList().toString());
+    public QueryContextResponse queryContext(final QueryContext query) throws ExecutionException, InterruptedException, MissingRemoteBrokerException, UpstreamException {
+        logger.debug("<= queryContext on entities: {}", query.getEntityIdList().toString());
 
         Set<String> attributes = new HashSet<>();
         if (query.getAttributeList() != null) {
             attributes.addAll(query.getAttributeList());
         }
 
-        //TODO : search providingApplication for all entities of queryContext
-        Iterator<URI> providingApplication = localRegistrations.findProvidingApplication(query.getEntityIdList().get(0), attributes);
-        if (providingApplication.hasNext()) {
-            // forward to providing application
-            final String providerUrl = providingApplication.next().toString();
-            HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(providerUrl);
-            logger.debug("=> queryContext forwarded to : {} with Content-Type {}", providerUrl, httpHeaders.getContentType());
-            return ngsiClient.queryContext(providerUrl, httpHeaders, query).get();
+        // Answer from the context cache the entities having all the requested attributes fresh
+        List<ContextElementResponse> cachedResponses = new ArrayList<>();
+        List<EntityId> entityIds = new ArrayList<>();
+        for (EntityId entityId : query.getEntityIdList()) {
+            ContextElement cachedElement = contextCache.get(entityId, query.getAttributeList());
+            if (cachedElement != null) {
+                cachedResponses.add(new ContextElementResponse(cachedElement, new StatusCode(CodeEnum.CODE_200)));
+            } else {
+                entityIds.add(entityId);
+            }
+        }
+        if (entityIds.isEmpty() && !cachedResponses.isEmpty()) {
+            logger.debug("=> queryContext answered from cache");
+            QueryContextResponse queryContextResponse = new QueryContextResponse();
+            queryContextResponse.setContextElementResponses(cachedResponses);
+            return queryContextResponse;
+        }
+        final QueryContext forwardedQuery = cachedResponses.isEmpty() ? query : subQuery(query, entityIds);
+
+        // Group the entities by providing application, the entities without providing application go to the remote broker
+        Map<String, List<EntityId>> entitiesByProvider = new LinkedHashMap<>();
+        List<EntityId> remainingEntities = new ArrayList<>();
+        for (EntityId entityId : entityIds) {
+            Iterator<URI> providingApplication = localRegistrations.findProvidingApplication(entityId, attributes);
+            if (providingApplication.hasNext()) {
+                entitiesByProvider.computeIfAbsent(providingApplication.next().toString(), url -> new ArrayList<>()).add(entityId);
+            } else {
+                remainingEntities.add(entityId);
+            }
         }
 
         String brokerUrl = configuration.getRemoteUrl();
-        if (brokerUrl == null || brokerUrl.isEmpty()) {
-            throw new MissingRemoteBrokerException("No remote.url parameter defined to forward queryContext");
+        if (!remainingEntities.isEmpty() && (brokerUrl == null || brokerUrl.isEmpty())) {
+            if (entitiesByProvider.isEmpty()) {
+                throw new MissingRemoteBrokerException("No remote.url parameter defined to forward queryContext");
+            }
+            logger.warn("No remote.url parameter defined to forward queryContext for entities: {}", remainingEntities);
+            remainingEntities.clear();
+        }
+
+        // Send all the queries concurrently (the whole query when a single upstream is concerned)
+        long sendTime = System.currentTimeMillis();
+        List<String> urls = new ArrayList<>();
+        List<List<EntityId>> upstreamEntities = new ArrayList<>();
+        List<QueryContext> upstreamQueries = new ArrayList<>();
+        boolean single = entitiesByProvider.size() + (remainingEntities.isEmpty() ? 0 : 1) == 1;
+        for (Map.Entry<String, List<EntityId>> entry : entitiesByProvider.entrySet()) {
+            urls.add(entry.getKey());
+            upstreamEntities.add(entry.getValue());
+            upstreamQueries.add(single ? forwardedQuery : subQuery(query, entry.getValue()));
+        }
+        if (!remainingEntities.isEmpty()) {
+            urls.add(brokerUrl);
+            upstreamEntities.add(remainingEntities);
+            upstreamQueries.add(single ? forwardedQuery : subQuery(query, remainingEntities));
+        }
+        // A failing upstream only fails the whole query when it is the only source of context elements
+        boolean scattered = urls.size() > 1 || !cachedResponses.isEmpty();
+
+        List<ListenableFuture<QueryContextResponse>> futures = new ArrayList<>();
+        Map<Integer, StatusCode> unavailableUpstreams = new HashMap<>();
+        for (int i = 0; i < urls.size(); i++) {
+            final String url = urls.get(i);
+            final QueryContext upstreamQuery = upstreamQueries.get(i);
+            HttpHeaders httpHeaders;
+            if (i < entitiesByProvider.size()) {
+                httpHeaders = ngsiClient.getRequestHeaders(url);
+                logger.debug("=> queryContext forwarded to : {} with Content-Type {}", url, httpHeaders.getContentType());
+            } else {
+                httpHeaders = getRemoteBrokerHeaders(url);
+                logger.debug("=> queryContext forwarded to remote broker : {} with Content-Type : {}", url, httpHeaders.getContentType());
+            }
+            try {
+                futures.add(upstreams.send(url, () -> ngsiClient.queryContext(url, httpHeaders, upstreamQuery)));
+            } catch (UpstreamException e) {
+                if (!scattered) {
+                    throw e;
+                }
+                logger.warn("QueryContext not forwarded to {}: {}", url, e.getMessage());
+                futures.add(null);
+                unavailableUpstreams.put(i, upstreamUnavailable(e));
+            }
+        }
+
+        // Gather the responses, the failures of an upstream being reported on each of its entities
+        List<QueryContextResponse> responses = new ArrayList<>();
+        List<ContextElementResponse> failedResponses = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            String url = urls.get(i);
+            StatusCode errorCode = unavailableUpstreams.get(i);
+            if (errorCode == null) {
+                try {
+                    QueryContextResponse response = upstreams.await(url, futures.get(i), sendTime);
+                    contextCache.update(response.getContextElementResponses());
+                    responses.add(response);
+                    continue;
+                } catch (UpstreamException e) {
+                    if (!scattered) {
+                        throw e;
+                    }
+                    logger.warn("QueryContext failed for {}: {}", url, e.getMessage());
+                    errorCode = upstreamUnavailable(e);
+                } catch (ExecutionException e) {
+                    if (!scattered) {
+                        throw e;
+                    }
+                    logger.warn("QueryContext failed for {}: {}", url, e.getCause().getMessage());
+                    errorCode = receiverError(e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    futures.stream().filter(Objects::nonNull).forEach(future -> future.cancel(true));
+                    throw e;
+                }
+            }
+            QueryContextResponse errorResponse = new QueryContextResponse();
+            errorResponse.setErrorCode(errorCode);
+            responses.add(errorResponse);
+            for (EntityId entityId : upstreamEntities.get(i)) {
+                ContextElement contextElement = new ContextElement();
+                contextElement.setEntityId(entityId);
+                failedResponses.add(new ContextElementResponse(contextElement, errorCode));
+            }
+        }
+        if (!cachedResponses.isEmpty()) {
+            QueryContextResponse cachedResponse = new QueryContextResponse();
+            cachedResponse.setContextElementResponses(cachedResponses);
+            responses.add(cachedResponse);
+        }
+        QueryContextResponse queryContextResponse = mergeQueryContextResponses(responses);
+        if (queryContextResponse.getErrorCode() == null && !failedResponses.isEmpty()) {
+            List<ContextElementResponse> contextElementResponses = new ArrayList<>(queryContextResponse.getContextElementResponses());
+            contextElementResponses.addAll(failedResponses);
+            queryContextResponse.setContextElementResponses(contextElementResponses);
         }
-        // forward query to remote broker
-        HttpHeaders httpHeaders = getRemoteBrokerHeaders(brokerUrl);
-        logger.debug("=> queryContext forwarded to remote broker : {} with Content-Type : {}", brokerUrl, httpHeaders.getContentType());
-        return ngsiClient.queryContext(brokerUrl, httpHeaders, query).get();
+        return queryContextResponse;
     }
 
     @Override
@@ -227,6 +443,17 @@ public class NgsiController extends NgsiBaseController {
         return errorResponse(req.getRequestURI(), statusCode);
     }
 
+    @ExceptionHandler(UpstreamException.class)
+    public ResponseEntity<Object> upstreamExceptionHandler(HttpServletRequest req, UpstreamException upstreamException) {
+        logger.error("Upstream error: {}", upstreamException.getMessage());
+
+        StatusCode statusCode = new StatusCode();
+        statusCode.setCode("503");
+        statusCode.setReasonPhrase("upstream unavailable");
+        statusCode.setDetail(upstreamException.getMessage());
+        return errorResponse(req.getRequestURI(), statusCode);
+    }
+
     @ExceptionHandler(SubscriptionException.class)
     public ResponseEntity<Object> subscriptionExceptionHandler(HttpServletRequest req, SubscriptionException subscriptionException) {
         logger.error("Subscription error: {}", subscriptionException.getMessage());
@@ -261,7 +488,7 @@ public class NgsiController extends NgsiBaseController {
     }
 
     private HttpHeaders getRemoteBrokerHeaders(String brokerUrl) {
-        HttpHeaders httpHeaders = ngsiClient.getRequestHeaders(brokerUrl);
+        HttpHeaders httpHeaders = compactEncoding.headers(brokerUrl, ngsiClient.getRequestHeaders(brokerUrl));
         configuration.addRemoteHeaders(httpHeaders);
         return httpHeaders;
     }
@@ -281,11 +508,68 @@ public class NgsiController extends NgsiBaseController {
         }
     }
 
-    private void logNotifyContextResponse(NotifyContextResponse notifyContextResponse, String providerUrl) {
-        if (notifyContextResponse.getResponseCode().getCode().equals(CodeEnum.CODE_200.getLabel())) {
-            logger.debug("NotifyContext completed for {} ", providerUrl);
+    /**
+     * @return a copy of the update restricted to some of its context elements
+     */
+    private UpdateContext subUpdate(UpdateContext update, List<ContextElement> contextElements) {
+        UpdateContext subUpdate = new UpdateContext(update.getUpdateAction());
+        subUpdate.setContextElements(contextElements);
+        return subUpdate;
+    }
+
+    private StatusCode receiverError(String detail) {
+        StatusCode statusCode = new StatusCode();
+        statusCode.setCode("500");
+        statusCode.setReasonPhrase("receiver internal error");
+        statusCode.setDetail(detail);
+        return statusCode;
+    }
+
+    private StatusCode upstreamUnavailable(UpstreamException upstreamException) {
+        StatusCode statusCode = new StatusCode();
+        statusCode.setCode("503");
+        statusCode.setReasonPhrase("upstream unavailable");
+        statusCode.setDetail(upstreamException.getMessage());
+        return statusCode;
+    }
+
+    /**
+     * @return a copy of the query restricted to some of its entities
+     */
+    private QueryContext subQuery(QueryContext query, List<EntityId> entityIds) {
+        QueryContext subQuery = new QueryContext(entityIds);
+        subQuery.setAttributeList(query.getAttributeList());
+        subQuery.setRestriction(query.getRestriction());
+        return subQuery;
+    }
+
+    /**
+     * Merge the context elements of the responses.
+     * An error is only returned if no response has any context element.
+     */
+    private QueryContextResponse mergeQueryContextResponses(List<QueryContextResponse> responses) {
+        if (responses.size() == 1) {
+            return responses.get(0);
+        }
+        List<ContextElementResponse> contextElementResponses = new ArrayList<>();
+        StatusCode errorCode = null;
+        for (QueryContextResponse response : responses) {
+            if (response.getContextElementResponses() != null && !response.getContextElementResponses().isEmpty()) {
+                contextElementResponses.addAll(response.getContextElementResponses());
+            } else if (errorCode == null) {
+                errorCode = response.getErrorCode();
+            }
+        }
+        QueryContextResponse queryContextResponse = new QueryContextResponse();
+        if (contextElementResponses.isEmpty()) {
+            queryContextResponse.setErrorCode(errorCode);
         } else {
-            logger.warn("NotifyContext failed for {}: {}", providerUrl, notifyContextResponse.getResponseCode().toString());
+            queryContextResponse.setContextElementResponses(contextElementResponses);
         }
+        return queryContextResponse;
+    }
+
+    private Set<String> attributeNames(ContextElement contextElement) {
+        return contextElement.getContextAttributeList().stream().map(ContextAttribute::getName).collect(Collectors.toSet());
     }
 }
@@ -0,0 +1,19 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.exception;
+
+/**
+ * Exception that can occur when a forwarded request cannot be served in time by an upstream server
+ * (providing application or remote broker).
+ */
+public class UpstreamException extends Exception {
+    public UpstreamException(String message) {
+        super(message);
+    }
+}
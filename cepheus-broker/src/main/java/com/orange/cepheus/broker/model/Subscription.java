@@ -10,7 +10,9 @@ package com.orange.cepheus.broker.model;
 
 import com.orange.ngsi.model.SubscribeContext;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.function.Supplier;
 
 /**
  * Created by pborscia on 13/10/2015.
@@ -23,6 +25,16 @@ public class Subscription {
 
     SubscribeContext subscribeContext;
 
+    /**
+     * Decoder of the subscribeContext when it is decoded on first use, null once decoded
+     */
+    private volatile Supplier<SubscribeContext> decoder;
+
+    /**
+     * Minimum period between two notifications (parsed from the throttling of the subscribeContext)
+     */
+    Duration throttling = Duration.ZERO;
+
     public Subscription() {
     }
 
@@ -32,6 +44,18 @@ public class Subscription {
         this.subscribeContext = subscribeContext;
     }
 
+    /**
+     * Create a subscription whose subscribeContext is only decoded on first use
+     * @param subscriptionId the id of the subscription
+     * @param expirationDate the expiration date of the subscription
+     * @param decoder the decoder of the subscribeContext
+     */
+    public Subscription(String subscriptionId, Instant expirationDate, Supplier<SubscribeContext> decoder) {
+        this.subscriptionId = subscriptionId;
+        this.expirationDate = expirationDate;
+        this.decoder = decoder;
+    }
+
     public void setSubscriptionId(String subscriptionId) {
         this.subscriptionId = subscriptionId;
     }
@@ -49,10 +73,29 @@ public class Subscription {
     }
 
     public SubscribeContext getSubscribeContext() {
+        if (decoder != null) {
+            decode();
+        }
         return subscribeContext;
     }
 
     public void setSubscribeContext(SubscribeContext subscribeContext) {
         this.subscribeContext = subscribeContext;
+        this.decoder = null;
+    }
+
+    private synchronized void decode() {
+        if (decoder != null) {
+            subscribeContext = decoder.get();
+            decoder = null;
+        }
+    }
+
+    public Duration getThrottling() {
+        return throttling;
+    }
+
+    public void setThrottling(Duration throttling) {
+        this.throttling = throttling;
     }
 }
@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.persistence;
+
+/**
+ * Durability level of the subscriptions and registrations persistence
+ */
+public enum Durability {
+
+    /**
+     * Each change is written to the database before the request is answered
+     */
+    SYNC,
+
+    /**
+     * Changes are journaled in memory and written to the database in batches (write-behind),
+     * the changes of the last flush interval are lost if the broker crashes
+     */
+    ASYNC
+}
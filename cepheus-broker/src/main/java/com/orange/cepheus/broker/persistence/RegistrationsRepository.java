@@ -8,28 +8,34 @@
 
 package com.orange.cepheus.broker.persistence;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
 import com.orange.cepheus.broker.exception.RegistrationPersistenceException;
 import com.orange.cepheus.broker.exception.SubscriptionPersistenceException;
 import com.orange.cepheus.broker.model.Registration;
 import com.orange.cepheus.broker.model.Subscription;
 import com.orange.ngsi.model.RegisterContext;
-import com.orange.ngsi.model.SubscribeContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.orange.cepheus.broker.Configuration;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -48,10 +54,24 @@ public class RegistrationsRepository {
     @Autowired
     private ObjectMapper mapper;
 
+    @Autowired
+    private Configuration configuration;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Changes not yet written to the database in ASYNC durability
+     */
+    private WriteBehindJournal<Registration> journal;
+
+    private RequestTable table;
+
     @PostConstruct
     protected void createTableOnStartup() {
-        jdbcTemplate.execute("create table if not exists t_registrations (id varchar primary key, expirationDate varchar not null, registerContext varchar not null)");
-        jdbcTemplate.execute("create unique index if not exists index_registrationId on t_registrations (id)");
+        table = new RequestTable(jdbcTemplate, transactionManager, "t_registrations", "registrationId", "registerContext");
+        table.create((id, expirationDate, json) -> row(new Registration(expirationDate, mapper.readValue(json, RegisterContext.class))));
+        journal = new WriteBehindJournal<>(table);
     }
 
     /**
@@ -62,12 +82,13 @@ public class RegistrationsRepository {
     public void saveRegistration(Registration registration) throws RegistrationPersistenceException {
         try {
             //Mapping from model to database model
-            ObjectWriter writer = mapper.writer();
-            RegisterContext registerContext = registration.getRegisterContext();
-            String registerContextString = writer.writeValueAsString(registerContext);
-            String expirationDate = registration.getExpirationDate().toString();
+            RequestTable.Row row = row(registration);
             //insert into database
-            jdbcTemplate.update("insert into t_registrations(id,expirationDate,registerContext) values(?,?,?)", registerContext.getRegistrationId(), expirationDate, registerContextString);
+            if (isWriteBehind()) {
+                flushIfFull(journal.upsert(row.id, registration, row));
+            } else {
+                table.insert(row);
+            }
         } catch (Exception e) {
             throw new RegistrationPersistenceException(e);
         }
@@ -81,37 +102,34 @@ public class RegistrationsRepository {
     public void updateRegistration(Registration registration) throws RegistrationPersistenceException {
         try {
             //serialization
-            ObjectWriter writer = mapper.writer();
-            RegisterContext registerContext = registration.getRegisterContext();
-            String registerContextString = writer.writeValueAsString(registerContext);
-            String expirationDate = registration.getExpirationDate().toString();
-            jdbcTemplate.update("update t_registrations set expirationDate=? , registerContext=? where id=?", expirationDate, registerContextString, registerContext.getRegistrationId());
+            RequestTable.Row row = row(registration);
+            if (isWriteBehind()) {
+                flushIfFull(journal.upsert(row.id, registration, row));
+            } else {
+                table.update(row);
+            }
         } catch (Exception e) {
             throw new RegistrationPersistenceException(e);
         }
     }
 
     /**
-     * Get all saved registrations
+     * Get all saved registrations not expired, decoded in parallel
      * @return registrations map
      * @throws RegistrationPersistenceException
      */
     public Map<String, Registration> getAllRegistrations() throws RegistrationPersistenceException {
         Map<String, Registration> registrations = new ConcurrentHashMap<>();
         try {
-            List<Registration> registrationList = jdbcTemplate.query("select id, expirationDate, registerContext from t_registrations",
-                    (ResultSet rs, int rowNum) ->  {
-                        Registration registration = new Registration();
-                        try {
-                            registration.setExpirationDate(Instant.parse(rs.getString("expirationDate")));
-                            registration.setRegisterContext(mapper.readValue(rs.getString("registerContext"), RegisterContext.class));
-                        } catch (IOException e) {
-                            throw new SQLException(e);
-                        }
-                        return registration;
-                    });
-            registrationList.forEach(registration -> registrations.put(registration.getRegisterContext().getRegistrationId(), registration));
-        } catch (DataAccessException e) {
+            journal.flush();
+            table.selectNotExpired(Instant.now()).parallelStream().forEach(row -> {
+                try {
+                    registrations.put(row.id, new Registration(row.expiration, mapper.readValue(row.json, RegisterContext.class)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (RuntimeException e) {
             throw new RegistrationPersistenceException(e);
         }
         return registrations;
@@ -124,12 +142,20 @@ public class RegistrationsRepository {
      * @throws RegistrationPersistenceException, EmptyResultDataAccessException
      */
     public Registration getRegistration(String registrationId) throws RegistrationPersistenceException, EmptyResultDataAccessException {
+        // A change not yet written to the database is the most recent state
+        WriteBehindJournal.Entry<Registration> pendingChange = journal.get(registrationId);
+        if (pendingChange != null) {
+            if (pendingChange.value == null) {
+                throw new EmptyResultDataAccessException(1);
+            }
+            return pendingChange.value;
+        }
         try {
-            return jdbcTemplate.queryForObject("select expirationDate, registerContext from t_registrations where id=?", new Object[]{registrationId},
+            return jdbcTemplate.queryForObject("select expiration, registerContext from t_registrations where id=?", new Object[]{registrationId},
                     (ResultSet rs, int rowNum) ->  {
                             Registration registration = new Registration();
                             try {
-                                registration.setExpirationDate(Instant.parse(rs.getString("expirationDate")));
+                                registration.setExpirationDate(Instant.ofEpochMilli(rs.getLong("expiration")));
                                 registration.setRegisterContext(mapper.readValue(rs.getString("registerContext"), RegisterContext.class));
                             } catch (IOException e) {
                                 throw new SQLException(e);
@@ -150,9 +176,83 @@ public class RegistrationsRepository {
      */
     public void removeRegistration(String registrationId) throws RegistrationPersistenceException {
         try {
-            jdbcTemplate.update("delete from t_registrations where id=?", registrationId);
-        } catch (DataAccessException e) {
+            if (isWriteBehind()) {
+                flushIfFull(journal.delete(registrationId));
+            } else {
+                table.inTransaction(() -> table.delete(Collections.singleton(registrationId)));
+            }
+        } catch (RuntimeException e) {
+            throw new RegistrationPersistenceException(e);
+        }
+    }
+
+    /**
+     * Remove a batch of registrations.
+     * @param registrationIds
+     * @throws RegistrationPersistenceException
+     */
+    public void removeRegistrations(Collection<String> registrationIds) throws RegistrationPersistenceException {
+        if (registrationIds.isEmpty()) {
+            return;
+        }
+        try {
+            if (isWriteBehind()) {
+                registrationIds.forEach(journal::delete);
+                flushIfFull(journal.size());
+            } else {
+                table.inTransaction(() -> table.delete(registrationIds));
+            }
+        } catch (RuntimeException e) {
             throw new RegistrationPersistenceException(e);
         }
     }
+
+    /**
+     * Remove all the registrations expired at a given date.
+     * @param date the date
+     * @return the number of registrations removed
+     * @throws RegistrationPersistenceException
+     */
+    public int removeExpiredRegistrations(Instant date) throws RegistrationPersistenceException {
+        try {
+            journal.flush();
+            return table.deleteExpired(date);
+        } catch (RuntimeException e) {
+            throw new RegistrationPersistenceException(e);
+        }
+    }
+
+    /**
+     * Write the pending changes to the database (ASYNC durability), periodically and on shutdown
+     */
+    @Scheduled(fixedDelayString = "${persistence.flushInterval:100}")
+    @PreDestroy
+    public void flush() {
+        try {
+            journal.flush();
+        } catch (RuntimeException e) {
+            logger.error("Failed to write registrations to database, will retry", e);
+        }
+    }
+
+    /**
+     * Map a registration to its database row
+     */
+    private RequestTable.Row row(Registration registration) throws JsonProcessingException {
+        RegisterContext registerContext = registration.getRegisterContext();
+        return new RequestTable.Row(registerContext.getRegistrationId(), registration.getExpirationDate(), mapper.writeValueAsString(registerContext));
+    }
+
+    private boolean isWriteBehind() {
+        return configuration.getPersistenceDurability() == Durability.ASYNC;
+    }
+
+    /**
+     * Flush in the request thread when too many changes are pending
+     */
+    private void flushIfFull(int pendingChanges) {
+        if (pendingChanges >= configuration.getPersistenceMaxPending()) {
+            journal.flush();
+        }
+    }
 }
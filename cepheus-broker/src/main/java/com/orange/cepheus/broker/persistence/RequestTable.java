@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * SQLite table of NGSI requests (subscriptions or registrations) stored as JSON,
+ * with an integer expiration (epoch milliseconds) indexed for range deletes.
+ *
+ * The requests are all loaded in memory on startup and matched there, the JSON column is the only source of the requests.
+ *
+ * Tables of the legacy schema (text expiration date) are migrated on creation.
+ */
+class RequestTable {
+
+    private static Logger logger = LoggerFactory.getLogger(RequestTable.class);
+
+    /**
+     * Row of the table
+     */
+    static class Row {
+
+        final String id;
+
+        final long expiration;
+
+        final String json;
+
+        /**
+         * @param id the id of the request
+         * @param expiration the expiration date of the request
+         * @param json the JSON request
+         */
+        Row(String id, Instant expiration, String json) {
+            this.id = id;
+            this.expiration = expiration.toEpochMilli();
+            this.json = json;
+        }
+    }
+
+    /**
+     * Row read from the table, its JSON not decoded
+     */
+    static class StoredRow {
+
+        final String id;
+
+        final Instant expiration;
+
+        final String json;
+
+        StoredRow(String id, Instant expiration, String json) {
+            this.id = id;
+            this.expiration = expiration;
+            this.json = json;
+        }
+    }
+
+    /**
+     * Conversion of a row of the legacy schema
+     */
+    @FunctionalInterface
+    interface LegacyConverter {
+        Row convert(String id, Instant expirationDate, String json) throws Exception;
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final String table;
+
+    private final String idColumn;
+
+    private final String jsonColumn;
+
+    /**
+     * @param jdbcTemplate the JDBC template
+     * @param transactionManager the transaction manager
+     * @param table the name of the table (t_subscriptions)
+     * @param idColumn the name of the id in the legacy index (subscriptionId)
+     * @param jsonColumn the name of the JSON column (subscribeContext)
+     */
+    RequestTable(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager, String table, String idColumn, String jsonColumn) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.table = table;
+        this.idColumn = idColumn;
+        this.jsonColumn = jsonColumn;
+    }
+
+    /**
+     * Create the table if needed, migrating a table of the legacy schema
+     * @param legacyConverter the conversion of the legacy rows
+     */
+    void create(LegacyConverter legacyConverter) {
+        // The journal mode is persistent, readers no longer block the writer
+        String journalMode = jdbcTemplate.queryForObject("pragma journal_mode=wal", String.class);
+        logger.debug("SQLite journal mode: {}", journalMode);
+
+        boolean legacy = jdbcTemplate.queryForObject("select count(*) from sqlite_master where type='table' and name=? and sql like '%expirationDate%'",
+                Integer.class, table) > 0;
+        transactionTemplate.execute(status -> {
+            if (legacy) {
+                jdbcTemplate.execute("drop index if exists index_" + idColumn);
+                jdbcTemplate.execute("alter table " + table + " rename to " + table + "_legacy");
+            }
+            jdbcTemplate.execute("create table if not exists " + table + " (id varchar primary key, expiration integer not null, " + jsonColumn + " varchar not null)");
+            jdbcTemplate.execute("create index if not exists index_" + table + "_expiration on " + table + " (expiration)");
+            if (legacy) {
+                migrate(legacyConverter);
+            }
+            return null;
+        });
+    }
+
+    private void migrate(LegacyConverter legacyConverter) {
+        List<Row> rows = new ArrayList<>();
+        jdbcTemplate.query("select id, expirationDate, " + jsonColumn + " from " + table + "_legacy", rs -> {
+            String id = rs.getString(1);
+            try {
+                rows.add(legacyConverter.convert(id, Instant.parse(rs.getString(2)), rs.getString(3)));
+            } catch (Exception e) {
+                logger.warn("Dropping invalid row {} of {}: {}", id, table, e.toString());
+            }
+        });
+        upsert(rows);
+        jdbcTemplate.execute("drop table " + table + "_legacy");
+        logger.info("Migrated {} rows of {} to the new schema", rows.size(), table);
+    }
+
+    /**
+     * Insert a new row, failing if the id already exists
+     */
+    void insert(Row row) {
+        jdbcTemplate.update("insert into " + table + "(id,expiration," + jsonColumn + ") values(?,?,?)", row.id, row.expiration, row.json);
+    }
+
+    /**
+     * Update an existing row, nothing is done if the id does not exist
+     */
+    void update(Row row) {
+        jdbcTemplate.update("update " + table + " set expiration=?, " + jsonColumn + "=? where id=?", row.expiration, row.json, row.id);
+    }
+
+    /**
+     * Insert or replace a batch of rows, to be called in a transaction
+     */
+    void upsert(List<Row> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate("insert or replace into " + table + "(id,expiration," + jsonColumn + ") values(?,?,?)",
+                rows.stream().map(row -> new Object[]{row.id, row.expiration, row.json}).collect(Collectors.toList()));
+    }
+
+    /**
+     * Delete a batch of rows, to be called in a transaction
+     */
+    void delete(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate("delete from " + table + " where id=?", ids.stream().map(id -> new Object[]{id}).collect(Collectors.toList()));
+    }
+
+    /**
+     * Delete all the rows expired at a given date
+     * @return the number of rows deleted
+     */
+    int deleteExpired(Instant date) {
+        return jdbcTemplate.update("delete from " + table + " where expiration <= ?", date.toEpochMilli());
+    }
+
+    /**
+     * Read the rows not expired at a given date, the expired rows are skipped by the expiration index
+     */
+    List<StoredRow> selectNotExpired(Instant date) {
+        return jdbcTemplate.query("select id, expiration, " + jsonColumn + " from " + table + " where expiration > ?",
+                (rs, rowNum) -> new StoredRow(rs.getString(1), Instant.ofEpochMilli(rs.getLong(2)), rs.getString(3)), date.toEpochMilli());
+    }
+
+    /**
+     * Run a batch of changes in a single transaction
+     */
+    void inTransaction(Runnable changes) {
+        transactionTemplate.execute(status -> {
+            changes.run();
+            return null;
+        });
+    }
+}
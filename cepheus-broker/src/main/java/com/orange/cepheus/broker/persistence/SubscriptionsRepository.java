@@ -8,23 +8,33 @@
 
 package com.orange.cepheus.broker.persistence;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.orange.cepheus.broker.exception.SubscriptionPersistenceException;
 import com.orange.cepheus.broker.model.Subscription;
+import com.orange.ngsi.model.EntityId;
 import com.orange.ngsi.model.SubscribeContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.orange.cepheus.broker.Configuration;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.io.UncheckedIOException;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -36,16 +46,40 @@ import java.util.concurrent.ConcurrentHashMap;
 public class SubscriptionsRepository {
     private static Logger logger = LoggerFactory.getLogger(SubscriptionsRepository.class);
 
+
     @Autowired
     protected JdbcTemplate jdbcTemplate;
 
     @Autowired
     private ObjectMapper mapper;
 
+    @Autowired
+    private Configuration configuration;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Changes not yet written to the database in ASYNC durability
+     */
+    private WriteBehindJournal<Subscription> journal;
+
+    /**
+     * Readers of the indexed fields of the subscribeContext
+     */
+    private ObjectReader entityIdListReader;
+
+    private ObjectReader attributeListReader;
+
+    private RequestTable table;
+
     @PostConstruct
     protected void createTableOnStartup() {
-        jdbcTemplate.execute("create table if not exists t_subscriptions (id varchar primary key, expirationDate varchar not null, subscribeContext varchar not null)");
-        jdbcTemplate.execute("create unique index if not exists index_subscriptionId on t_subscriptions (id)");
+        table = new RequestTable(jdbcTemplate, transactionManager, "t_subscriptions", "subscriptionId", "subscribeContext");
+        table.create((id, expirationDate, json) -> row(new Subscription(id, expirationDate, mapper.readValue(json, SubscribeContext.class))));
+        journal = new WriteBehindJournal<>(table);
+        entityIdListReader = mapper.reader(new TypeReference<List<EntityId>>() {});
+        attributeListReader = mapper.reader(new TypeReference<List<String>>() {});
     }
 
     /**
@@ -57,11 +91,13 @@ public class SubscriptionsRepository {
 
         try {
             //Mapping from model to database model
-            ObjectWriter writer = mapper.writer();
-            String susbcribeContextString = writer.writeValueAsString(subscription.getSubscribeContext());
-            String expirationDate = subscription.getExpirationDate().toString();
+            RequestTable.Row row = row(subscription);
             //insert into database
-            jdbcTemplate.update("insert into t_subscriptions(id,expirationDate,subscribeContext) values(?,?,?)", subscription.getSubscriptionId(), expirationDate, susbcribeContextString);
+            if (isWriteBehind()) {
+                flushIfFull(journal.upsert(subscription.getSubscriptionId(), subscription, row));
+            } else {
+                table.insert(row);
+            }
         } catch (Exception e) {
             throw new SubscriptionPersistenceException(e);
         }
@@ -75,44 +111,98 @@ public class SubscriptionsRepository {
     public void updateSubscription(Subscription subscription) throws SubscriptionPersistenceException {
 
         try {
-        //serialization
-        ObjectWriter writer = mapper.writer();
-        String susbcribeContextString = writer.writeValueAsString(subscription.getSubscribeContext());
-        String expirationDate = subscription.getExpirationDate().toString();
-        jdbcTemplate.update("update t_subscriptions set expirationDate=? , subscribeContext=? where id=?", expirationDate, susbcribeContextString, subscription.getSubscriptionId());
+            //serialization
+            RequestTable.Row row = row(subscription);
+            if (isWriteBehind()) {
+                flushIfFull(journal.upsert(subscription.getSubscriptionId(), subscription, row));
+            } else {
+                table.update(row);
+            }
         } catch (Exception e) {
             throw new SubscriptionPersistenceException(e);
         }
     }
 
     /**
-     * Get all subscriptions saved
+     * Receives the subscriptions loaded on startup
+     */
+    @FunctionalInterface
+    public interface SubscriptionLoader {
+
+        /**
+         * @param subscription the subscription, its subscribeContext decoded on first use
+         * @param entityIds the entity ids of the subscription
+         * @param attributes the attributes of the subscription
+         * @param throttling the throttling of the subscription, null if none
+         */
+        void load(Subscription subscription, List<EntityId> entityIds, List<String> attributes, String throttling);
+    }
+
+    /**
+     * Get all subscriptions saved and not expired
      * @return subscriptions map
      * @throws SubscriptionPersistenceException
      */
     public Map<String, Subscription> getAllSubscriptions() throws SubscriptionPersistenceException {
         Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
         try {
-            List<Subscription> subscriptionList = jdbcTemplate.query("select id, expirationDate, subscribeContext from t_subscriptions",
-                    (ResultSet rs, int rowNum) ->  {
-                            Subscription subscription = new Subscription();
-                            try {
-                                subscription.setSubscriptionId(rs.getString("id"));
-                                subscription.setExpirationDate(Instant.parse(rs.getString("expirationDate")));
-
-                                subscription.setSubscribeContext(mapper.readValue(rs.getString("subscribeContext"), SubscribeContext.class));
-                            } catch (IOException e) {
-                                    throw new SQLException(e);
-                            }
-                            return subscription;
-                        });
-            subscriptionList.forEach(subscription -> subscriptions.put(subscription.getSubscriptionId(), subscription));
-        } catch (DataAccessException e) {
+            journal.flush();
+            table.selectNotExpired(Instant.now()).parallelStream().forEach(row -> {
+                try {
+                    subscriptions.put(row.id, new Subscription(row.id, row.expiration, mapper.readValue(row.json, SubscribeContext.class)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (RuntimeException e) {
             throw new SubscriptionPersistenceException(e);
         }
         return subscriptions;
     }
 
+    /**
+     * Load the subscriptions on startup, the subscriptions expired at a given date are removed.
+     *
+     * Only the fields needed to index the subscriptions (entity ids, attributes and throttling) are read eagerly,
+     * by scanning the JSON in parallel and skipping the other fields. The subscribeContext are decoded on first use.
+     * A subscription with an invalid JSON is skipped.
+     * @param date the date
+     * @param loader called for each subscription, from several threads
+     * @return the number of subscriptions loaded
+     * @throws SubscriptionPersistenceException
+     */
+    public int loadSubscriptions(Instant date, SubscriptionLoader loader) throws SubscriptionPersistenceException {
+        try {
+            journal.flush();
+            List<RequestTable.StoredRow> rows = table.selectNotExpired(date);
+            int count = (int) rows.parallelStream().filter(row -> {
+                SubscribeContext indexedFields;
+                try {
+                    indexedFields = readIndexedFields(row.json);
+                } catch (IOException e) {
+                    logger.warn("Ignoring subscription {} with an invalid JSON: {}", row.id, e.toString());
+                    return false;
+                }
+                Subscription subscription = new Subscription(row.id, row.expiration, () -> {
+                    try {
+                        return mapper.readValue(row.json, SubscribeContext.class);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                loader.load(subscription, nonNull(indexedFields.getEntityIdList()), nonNull(indexedFields.getAttributeList()), indexedFields.getThrottling());
+                return true;
+            }).count();
+            int expired = table.deleteExpired(date);
+            if (expired > 0) {
+                logger.info("Removed {} expired subscriptions", expired);
+            }
+            return count;
+        } catch (RuntimeException e) {
+            throw new SubscriptionPersistenceException(e);
+        }
+    }
+
     /**
      * Remove a subscription.
      * @param subscriptionId
@@ -120,10 +210,124 @@ public class SubscriptionsRepository {
      */
     public void removeSubscription(String subscriptionId) throws SubscriptionPersistenceException {
         try {
-            jdbcTemplate.update("delete from t_subscriptions where id=?", subscriptionId);
-        } catch (DataAccessException e) {
+            if (isWriteBehind()) {
+                flushIfFull(journal.delete(subscriptionId));
+            } else {
+                table.inTransaction(() -> table.delete(Collections.singleton(subscriptionId)));
+            }
+        } catch (RuntimeException e) {
             throw new SubscriptionPersistenceException(e);
         }
     }
 
+    /**
+     * Remove a batch of subscriptions.
+     * @param subscriptionIds
+     * @throws SubscriptionPersistenceException
+     */
+    public void removeSubscriptions(Collection<String> subscriptionIds) throws SubscriptionPersistenceException {
+        if (subscriptionIds.isEmpty()) {
+            return;
+        }
+        try {
+            if (isWriteBehind()) {
+                subscriptionIds.forEach(journal::delete);
+                flushIfFull(journal.size());
+            } else {
+                table.inTransaction(() -> table.delete(subscriptionIds));
+            }
+        } catch (RuntimeException e) {
+            throw new SubscriptionPersistenceException(e);
+        }
+    }
+
+    /**
+     * Remove all the subscriptions expired at a given date.
+     * @param date the date
+     * @return the number of subscriptions removed
+     * @throws SubscriptionPersistenceException
+     */
+    public int removeExpiredSubscriptions(Instant date) throws SubscriptionPersistenceException {
+        try {
+            journal.flush();
+            return table.deleteExpired(date);
+        } catch (RuntimeException e) {
+            throw new SubscriptionPersistenceException(e);
+        }
+    }
+
+    /**
+     * Write the pending changes to the database (ASYNC durability), periodically and on shutdown
+     */
+    @Scheduled(fixedDelayString = "${persistence.flushInterval:100}")
+    @PreDestroy
+    public void flush() {
+        try {
+            journal.flush();
+        } catch (RuntimeException e) {
+            logger.error("Failed to write subscriptions to database, will retry", e);
+        }
+    }
+
+    /**
+     * Read only the entity ids, attributes and throttling of a JSON subscribeContext, the other fields are skipped
+     */
+    private SubscribeContext readIndexedFields(String json) throws IOException {
+        SubscribeContext subscribeContext = new SubscribeContext();
+        try (JsonParser parser = mapper.getFactory().createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Expected a JSON object", parser.getCurrentLocation());
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (name) {
+                    case "entities":
+                        subscribeContext.setEntityIdList(entityIdListReader.readValue(parser));
+                        break;
+                    case "attributes":
+                        subscribeContext.setAttributeList(attributeListReader.readValue(parser));
+                        break;
+                    case "throttling":
+                        subscribeContext.setThrottling(parser.getValueAsString());
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (parser.getCurrentToken() != JsonToken.END_OBJECT) {
+                throw new JsonParseException("Unexpected end of JSON", parser.getCurrentLocation());
+            }
+        }
+        return subscribeContext;
+    }
+
+    /**
+     * Map a subscription to its database row
+     */
+    private RequestTable.Row row(Subscription subscription) throws JsonProcessingException {
+        SubscribeContext subscribeContext = subscription.getSubscribeContext();
+        return new RequestTable.Row(subscription.getSubscriptionId(), subscription.getExpirationDate(), mapper.writeValueAsString(subscribeContext));
+    }
+
+    private static <T> List<T> nonNull(List<T> list) {
+        return list != null ? list : Collections.emptyList();
+    }
+
+    private boolean isWriteBehind() {
+        return configuration.getPersistenceDurability() == Durability.ASYNC;
+    }
+
+    /**
+     * Flush in the request thread when too many changes are pending
+     */
+    private void flushIfFull(int pendingChanges) {
+        if (pendingChanges >= configuration.getPersistenceMaxPending()) {
+            journal.flush();
+        }
+    }
+
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory journal of the changes of a table, written to the database in a single transaction on flush.
+ *
+ * Only the last change of each row is kept: successive updates of a same row are coalesced,
+ * and a removal replaces any pending update.
+ * Rows are inserted or replaced, and removed by id.
+ *
+ * @param <T> the type of the model objects journaled with their rows
+ */
+class WriteBehindJournal<T> {
+
+    /**
+     * Pending change of a row
+     * @param <T> the type of the model object
+     */
+    static class Entry<T> {
+
+        /**
+         * The model object, or null when the row is removed
+         */
+        final T value;
+
+        /**
+         * The row to write, or null when the row is removed
+         */
+        final RequestTable.Row row;
+
+        Entry(T value, RequestTable.Row row) {
+            this.value = value;
+            this.row = row;
+        }
+    }
+
+    private final RequestTable table;
+
+    /**
+     * Changes not yet flushed, by row id (guarded by this)
+     */
+    private Map<String, Entry<T>> pending = new LinkedHashMap<>();
+
+    /**
+     * Changes being flushed, still visible until committed (guarded by this)
+     */
+    private Map<String, Entry<T>> flushing = Collections.emptyMap();
+
+    /**
+     * Serializes the flushes
+     */
+    private final Object flushLock = new Object();
+
+    WriteBehindJournal(RequestTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Journal the insertion or update of a row
+     * @param id the row id
+     * @param value the model object
+     * @param row the row to write
+     * @return the number of pending changes
+     */
+    synchronized int upsert(String id, T value, RequestTable.Row row) {
+        pending.remove(id);
+        pending.put(id, new Entry<>(value, row));
+        return pending.size();
+    }
+
+    /**
+     * Journal the removal of a row
+     * @param id the row id
+     * @return the number of pending changes
+     */
+    synchronized int delete(String id) {
+        pending.remove(id);
+        pending.put(id, new Entry<>(null, null));
+        return pending.size();
+    }
+
+    /**
+     * @param id the row id
+     * @return the change of the row not yet committed, or null if none
+     */
+    synchronized Entry<T> get(String id) {
+        Entry<T> entry = pending.get(id);
+        return entry != null ? entry : flushing.get(id);
+    }
+
+    /**
+     * @return the number of changes not yet flushed
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Write all pending changes in a single transaction.
+     * On failure, the changes are kept in the journal (unless superseded since) for the next flush.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            Map<String, Entry<T>> changes;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                changes = pending;
+                flushing = changes;
+                pending = new LinkedHashMap<>();
+            }
+            try {
+                List<RequestTable.Row> upserts = new ArrayList<>();
+                List<String> deletes = new ArrayList<>();
+                changes.forEach((id, entry) -> {
+                    if (entry.row != null) {
+                        upserts.add(entry.row);
+                    } else {
+                        deletes.add(id);
+                    }
+                });
+                table.inTransaction(() -> {
+                    table.upsert(upserts);
+                    table.delete(deletes);
+                });
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    Map<String, Entry<T>> retry = new LinkedHashMap<>(changes);
+                    retry.putAll(pending);
+                    pending = retry;
+                }
+                throw e;
+            } finally {
+                synchronized (this) {
+                    flushing = Collections.emptyMap();
+                }
+            }
+        }
+    }
+}
@@ -41,6 +41,8 @@ public class ConfigurationTest {
         assertEquals("gateway1", configuration.getRemoteServicePath());
         assertEquals("XXXXXXXXX", configuration.getRemoteAuthToken());
         assertEquals(true, configuration.isRemoteForwardUpdateContext());
+        // notifications are not queued by default
+        assertEquals(0, configuration.getNotifyMaxConcurrentRequests());
     }
 
     @Test
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.ngsi.model.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.core.env.Environment;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.orange.cepheus.broker.Util.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for ContextCache
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class ContextCacheTest {
+
+    @Mock
+    Configuration configuration;
+
+    @Mock
+    Environment environment;
+
+    @Autowired
+    @InjectMocks
+    ContextCache contextCache;
+
+    private final EntityId s1 = new EntityId("S1", "TempSensor", false);
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        when(configuration.getCacheTtl()).thenReturn(60000L);
+        when(configuration.getCacheMaxAttributes()).thenReturn(100);
+    }
+
+    @After
+    public void resetMocks() {
+        reset(configuration);
+        reset(environment);
+    }
+
+    @Test
+    public void disabledCache() throws Exception {
+        when(configuration.getCacheTtl()).thenReturn(0L);
+
+        contextCache.update(createUpdateContextTempSensor(0));
+
+        assertNull(contextCache.get(s1, Collections.singletonList("temp")));
+    }
+
+    @Test
+    public void getUpdatedAttributes() throws Exception {
+        contextCache.update(createUpdateContextTempSensorAndPressure());
+
+        ContextElement contextElement = contextCache.get(s1, Collections.singletonList("pressure"));
+        assertNotNull(contextElement);
+        assertEquals("S1", contextElement.getEntityId().getId());
+        assertEquals("TempSensor", contextElement.getEntityId().getType());
+        assertEquals(1, contextElement.getContextAttributeList().size());
+        assertEquals(1015, contextElement.getContextAttributeList().get(0).getValue());
+
+        // A missing attribute, a pattern or a query without attributes is never answered by the cache
+        assertNull(contextCache.get(s1, Arrays.asList("temp", "humidity")));
+        assertNull(contextCache.get(new EntityId("S.*", "TempSensor", true), Collections.singletonList("temp")));
+        assertNull(contextCache.get(s1, Collections.emptyList()));
+    }
+
+    @Test
+    public void getQueriedAttributes() throws Exception {
+        QueryContextResponse notFound = new QueryContextResponse();
+        notFound.setContextElementResponses(Collections.singletonList(
+                new ContextElementResponse(createPressureContextElement(), new StatusCode(CodeEnum.CODE_404, "P1"))));
+
+        contextCache.update(createQueryContextResponseTemperature().getContextElementResponses());
+        contextCache.update(notFound.getContextElementResponses());
+
+        assertNotNull(contextCache.get(s1, Collections.singletonList("temp")));
+        assertNull(contextCache.get(new EntityId("P1", "PressureSensor", false), Collections.singletonList("pressure")));
+    }
+
+    @Test
+    public void expiredAttributes() throws Exception {
+        when(environment.getProperty("cache.ttl.temp", Long.class)).thenReturn(1L);
+
+        contextCache.update(createUpdateContextTempSensorAndPressure());
+        Thread.sleep(10);
+
+        assertNull(contextCache.get(s1, Collections.singletonList("temp")));
+        assertNotNull(contextCache.get(s1, Collections.singletonList("pressure")));
+
+        contextCache.purgeExpiredAttributes();
+        assertEquals(1, metrics().get("context.cache.attributes"));
+    }
+
+    @Test
+    public void deleteAttributes() throws Exception {
+        contextCache.update(createUpdateContextTempSensorAndPressure());
+
+        UpdateContext delete = new UpdateContext(UpdateAction.DELETE);
+        delete.setContextElements(Collections.singletonList(createTemperatureContextElement(0)));
+        contextCache.update(delete);
+
+        assertNull(contextCache.get(s1, Collections.singletonList("temp")));
+        assertNotNull(contextCache.get(s1, Collections.singletonList("pressure")));
+
+        ContextElement entity = new ContextElement();
+        entity.setEntityId(s1);
+        delete.setContextElements(Collections.singletonList(entity));
+        contextCache.update(delete);
+
+        assertNull(contextCache.get(s1, Collections.singletonList("pressure")));
+    }
+
+    @Test
+    public void invalidateAttributes() throws Exception {
+        contextCache.update(createUpdateContextTempSensorAndPressure());
+
+        contextCache.invalidate(Collections.singletonList(createTemperatureContextElement(1)));
+
+        assertNull(contextCache.get(s1, Collections.singletonList("temp")));
+        assertNotNull(contextCache.get(s1, Collections.singletonList("pressure")));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsedEntities() throws Exception {
+        when(configuration.getCacheMaxAttributes()).thenReturn(2);
+
+        contextCache.update(createUpdateContextTempSensor(0));
+        contextCache.update(createUpdateContextPressureSensor());
+        // S1 is used, P1 becomes the least recently used entity
+        assertNotNull(contextCache.get(s1, Collections.singletonList("temp")));
+
+        ContextElement s2 = createTemperatureContextElement(0);
+        s2.setEntityId(new EntityId("S2", "TempSensor", false));
+        UpdateContext update = new UpdateContext(UpdateAction.UPDATE);
+        update.setContextElements(Collections.singletonList(s2));
+        contextCache.update(update);
+
+        assertNotNull(contextCache.get(s1, Collections.singletonList("temp")));
+        assertNull(contextCache.get(new EntityId("P1", "PressureSensor", false), Collections.singletonList("pressure")));
+
+        Map<String, Number> metrics = metrics();
+        assertEquals(1L, metrics.get("context.cache.evictions"));
+        assertEquals(2, metrics.get("context.cache.entities"));
+        assertEquals(2, metrics.get("context.cache.attributes"));
+    }
+
+    @Test
+    public void cacheMetrics() throws Exception {
+        contextCache.update(createUpdateContextTempSensor(0));
+        contextCache.get(s1, Collections.singletonList("temp"));
+        contextCache.get(s1, Collections.singletonList("pressure"));
+
+        Map<String, Number> metrics = metrics();
+        assertEquals(1L, metrics.get("context.cache.hits"));
+        assertEquals(1L, metrics.get("context.cache.misses"));
+    }
+
+    private Map<String, Number> metrics() {
+        Map<String, Number> metrics = new HashMap<>();
+        for (Metric<?> metric : contextCache.metrics()) {
+            metrics.put(metric.getName(), metric.getValue());
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+package com.orange.cepheus.broker;
+
+import com.orange.ngsi.model.EntityId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the entity id index
+ */
+public class EntityIdIndexTest {
+
+    private EntityIdIndex<String> index;
+
+    @Before
+    public void setup() {
+        index = new EntityIdIndex<>(new Patterns());
+        index.add("A", Collections.singletonList(new EntityId("A", "string", false)));
+        index.add("B", Collections.singletonList(new EntityId("B", "string", false)));
+        index.add("AB", Collections.singletonList(new EntityId("A|B", "string", true)));
+        index.add("untyped", Collections.singletonList(new EntityId("A", "", false)));
+    }
+
+    @Test
+    public void findExactIdTest() {
+        Set<String> keys = index.find(new EntityId("B", "string", false));
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains("B"));
+        assertTrue(keys.contains("AB"));
+    }
+
+    @Test
+    public void findWithPatternTest() {
+        Set<String> keys = index.find(new EntityId("A|B", "string", true));
+        assertEquals(3, keys.size());
+        assertTrue(keys.containsAll(Arrays.asList("A", "B", "AB")));
+    }
+
+    @Test
+    public void findWithoutTypeTest() {
+        Set<String> keys = index.find(new EntityId("A", null, false));
+        assertEquals(Collections.singleton("untyped"), keys);
+    }
+
+    @Test
+    public void findNoMatchTest() {
+        assertTrue(index.find(new EntityId("C", "string", false)).isEmpty());
+        assertTrue(index.find(new EntityId("A", "wrongtype", false)).isEmpty());
+    }
+
+    @Test
+    public void removeTest() {
+        index.remove("AB", Collections.singletonList(new EntityId("A|B", "string", true)));
+        index.remove("A", Collections.singletonList(new EntityId("A", "string", false)));
+        assertTrue(index.find(new EntityId("A", "string", false)).isEmpty());
+        assertEquals(Collections.singleton("B"), index.find(new EntityId("B", "string", false)));
+    }
+
+    @Test
+    public void multipleEntityIdsTest() {
+        index.add("CD", Arrays.asList(new EntityId("C", "string", false), new EntityId("D", "string", false)));
+        assertEquals(Collections.singleton("CD"), index.find(new EntityId("C", "string", false)));
+        assertEquals(Collections.singleton("CD"), index.find(new EntityId("D", "string", false)));
+        assertEquals(Collections.singleton("CD"), index.find(new EntityId("C|D", "string", true)));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+package com.orange.cepheus.broker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the expiration queue
+ */
+public class ExpirationQueueTest {
+
+    private BlockingQueue<Collection<String>> expiredBatches;
+
+    private ExpirationQueue<String> expirations;
+
+    @Before
+    public void setup() {
+        expiredBatches = new LinkedBlockingQueue<>();
+        expirations = new ExpirationQueue<>(expiredBatches::add);
+    }
+
+    @After
+    public void shutdown() {
+        expirations.shutdown();
+    }
+
+    @Test
+    public void expireAtExpirationDateTest() throws InterruptedException {
+        Instant expiration = Instant.now().plus(100, ChronoUnit.MILLIS);
+        expirations.schedule("A", expiration);
+        expirations.schedule("B", expiration);
+        expirations.schedule("C", Instant.now().plus(1, ChronoUnit.DAYS));
+
+        Collection<String> expired = expiredBatches.poll(2, TimeUnit.SECONDS);
+        assertFalse(Instant.now().isBefore(expiration));
+        assertEquals(Arrays.asList("A", "B"), expired);
+        assertEquals(1, expirations.size());
+    }
+
+    @Test
+    public void rescheduleTest() throws InterruptedException {
+        expirations.schedule("A", Instant.now().plus(50, ChronoUnit.MILLIS));
+        expirations.schedule("B", Instant.now().plus(100, ChronoUnit.MILLIS));
+        expirations.schedule("A", Instant.now().plus(1, ChronoUnit.DAYS));
+
+        assertEquals(Collections.singletonList("B"), expiredBatches.poll(2, TimeUnit.SECONDS));
+        assertEquals(1, expirations.size());
+    }
+
+    @Test
+    public void cancelTest() throws InterruptedException {
+        expirations.schedule("A", Instant.now().plus(50, ChronoUnit.MILLIS));
+        expirations.cancel("A");
+
+        assertNull(expiredBatches.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, expirations.size());
+    }
+
+    @Test
+    public void expireNowTest() {
+        expirations.shutdown();
+        expirations.schedule("A", Instant.now().minus(1, ChronoUnit.SECONDS));
+        expirations.schedule("B", Instant.now().plus(1, ChronoUnit.DAYS));
+
+        expirations.expire();
+        assertEquals(Collections.singletonList("A"), expiredBatches.poll());
+        assertTrue(expiredBatches.isEmpty());
+    }
+}
@@ -27,7 +27,6 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.SpringApplicationConfiguration;
-import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.util.Assert;
@@ -66,9 +65,6 @@ public class LocalRegistrationsTest {
     @Before
     public void setup() throws Exception {
         MockitoAnnotations.initMocks(this);
-
-        //setup registrationsRepository mock to respond the registration not exists in to the database
-        when(registrationsRepository.getRegistration(any())).thenThrow(EmptyResultDataAccessException.class);
     }
 
     @After
@@ -88,7 +84,7 @@ public class LocalRegistrationsTest {
         assertNotNull(registration.getExpirationDate());
 
         verify(remoteRegistrations).registerContext(eq(registerContext), eq(registrationId));
-        verify(registrationsRepository).getRegistration(eq(registrationId));
+        verify(registrationsRepository, never()).getRegistration(any());
         verify(registrationsRepository).saveRegistration(eq(registration));
     }
 
@@ -106,7 +102,7 @@ public class LocalRegistrationsTest {
         assertNotNull(registration.getExpirationDate());
 
         verify(remoteRegistrations, never()).registerContext(eq(registerContext), eq(registrationId));
-        verify(registrationsRepository).getRegistration(eq(registrationId));
+        verify(registrationsRepository, never()).getRegistration(any());
         verify(registrationsRepository).saveRegistration(eq(registration));
     }
 
@@ -114,23 +110,22 @@ public class LocalRegistrationsTest {
     public void testUpdateRegistration() throws Exception {
 
         RegisterContext registerContext = createRegistrationContext();
-        registerContext.setRegistrationId("12345");
-
-        Registration registration = new Registration(Instant.now().plus(1, ChronoUnit.DAYS), registerContext);
-
-        reset(registrationsRepository);
-        when(registrationsRepository.getRegistration(any())).thenReturn(registration);
-
         String registrationId = localRegistrations.updateRegistrationContext(registerContext);
-        Assert.hasLength(registrationId);
-        assertNotEquals("12345", registrationId);
+        Registration registration = localRegistrations.getRegistration(registrationId);
+
+        // Updating an existing registration keeps its id and updates it in database
+        RegisterContext update = createRegistrationContext();
+        update.setRegistrationId(registrationId);
+        update.setDuration("PT2M");
+        assertEquals(registrationId, localRegistrations.updateRegistrationContext(update));
         Registration registration2 = localRegistrations.getRegistration(registrationId);
         assertNotNull(registration2);
-        assertNotNull(registration2.getExpirationDate());
+        assertTrue(registration2.getExpirationDate().isAfter(registration.getExpirationDate()));
 
-        verify(remoteRegistrations).registerContext(eq(registerContext), eq(registrationId));
-        verify(registrationsRepository).getRegistration(eq(registrationId));
-        verify(registrationsRepository).updateRegistration(eq(registration));
+        verify(remoteRegistrations).registerContext(eq(update), eq(registrationId));
+        verify(registrationsRepository).saveRegistration(eq(registration));
+        verify(registrationsRepository).updateRegistration(eq(registration2));
+        verify(registrationsRepository, never()).getRegistration(any());
     }
 
     @Test
@@ -237,7 +232,7 @@ public class LocalRegistrationsTest {
     @Test
     public void testRegistrationPurgeWithPersistenceException() throws Exception {
 
-        doThrow(RegistrationPersistenceException.class).when(registrationsRepository).removeRegistration(any());
+        doThrow(RegistrationPersistenceException.class).when(registrationsRepository).removeRegistrations(any());
 
         RegisterContext registerContext = createRegistrationContext();
         registerContext.setDuration("PT1S"); // 1 s only
@@ -252,7 +247,7 @@ public class LocalRegistrationsTest {
         assertNull(localRegistrations.getRegistration(registrationId));
 
         verify(remoteRegistrations).removeRegistration(registrationId);
-        verify(registrationsRepository).removeRegistration(registrationId);
+        verify(registrationsRepository).removeRegistrations(Collections.singletonList(registrationId));
     }
 
     @Test
@@ -358,6 +353,22 @@ public class LocalRegistrationsTest {
         assertFalse(it.hasNext());
     }
 
+    @Test
+    public void testFindEntityIdAfterRegistrationUpdate() throws Exception {
+        String registrationId = localRegistrations.updateRegistrationContext(createRegistrationContext("A", "string", false, "http://A", "temp"));
+
+        // Update the registration to another entity
+        RegisterContext registerContext = createRegistrationContext("B", "string", false, "http://B", "temp");
+        registerContext.setRegistrationId(registrationId);
+        assertEquals(registrationId, localRegistrations.updateRegistrationContext(registerContext));
+
+        assertFalse(localRegistrations.findProvidingApplication(new EntityId("A", "string", false), null).hasNext());
+        Iterator<URI> it = localRegistrations.findProvidingApplication(new EntityId("B", "string", false), null);
+        assertTrue(it.hasNext());
+        assertEquals("http://B", it.next().toString());
+        assertFalse(it.hasNext());
+    }
+
     @Test
     public void testFindEntityIdNoMatch() throws Exception {
         // Insert 3 localRegistrations
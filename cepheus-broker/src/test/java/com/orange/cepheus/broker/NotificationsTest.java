@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.cepheus.broker.model.Subscription;
+import com.orange.ngsi.client.NgsiClient;
+import com.orange.ngsi.model.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.orange.cepheus.broker.Util.*;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for Notifications
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class NotificationsTest {
+
+    private static final String reference = "http://localhost:1028/accumulate";
+
+    @Mock
+    Configuration configuration;
+
+    @Mock
+    NgsiClient ngsiClient;
+
+    @Mock
+    ListenableFuture<NotifyContextResponse> notifyFuture;
+
+    @Autowired
+    @InjectMocks
+    Notifications notifications;
+
+    private Subscription subscription;
+
+    @Before
+    public void setup() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(configuration.getLocalUrl()).thenReturn("http://localhost:8081");
+        when(configuration.getNotifyBatchMaxSize()).thenReturn(100);
+        when(ngsiClient.getRequestHeaders(any())).thenReturn(new HttpHeaders());
+        when(ngsiClient.notifyContextCustomURL(any(), any(), any())).thenReturn(notifyFuture);
+        subscription = new Subscription("999999", Instant.now().plus(1, ChronoUnit.DAYS), createSubscribeContext("S1", "TempSensor", false, reference, "temp"));
+    }
+
+    @After
+    public void resetMocks() {
+        reset(configuration);
+        reset(ngsiClient);
+        reset(notifyFuture);
+    }
+
+    @Test
+    public void notifyImmediately() throws Exception {
+        when(configuration.getNotifyBatchWindow()).thenReturn(0L);
+
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(1)));
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(2)));
+
+        verify(ngsiClient, times(2)).notifyContextCustomURL(eq(reference), any(), any());
+    }
+
+    @Test
+    public void notifyCoalescedWithinWindow() throws Exception {
+        when(configuration.getNotifyBatchWindow()).thenReturn(200L);
+
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(1)));
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(2)));
+        verify(ngsiClient, never()).notifyContextCustomURL(any(), any(), any());
+
+        ArgumentCaptor<NotifyContext> notifyContextArg = ArgumentCaptor.forClass(NotifyContext.class);
+        verify(ngsiClient, timeout(2000)).notifyContextCustomURL(eq(reference), any(), notifyContextArg.capture());
+        assertEquals("999999", notifyContextArg.getValue().getSubscriptionId());
+        List<ContextElementResponse> contextElementResponses = notifyContextArg.getValue().getContextElementResponseList();
+        assertEquals(2, contextElementResponses.size());
+        assertEquals(16.5, contextElementResponses.get(0).getContextElement().getContextAttributeList().get(0).getValue());
+        assertEquals(17.5, contextElementResponses.get(1).getContextElement().getContextAttributeList().get(0).getValue());
+    }
+
+    @Test
+    public void notifyWhenBatchIsFull() throws Exception {
+        when(configuration.getNotifyBatchWindow()).thenReturn(60000L);
+        when(configuration.getNotifyBatchMaxSize()).thenReturn(2);
+
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(1)));
+        verify(ngsiClient, never()).notifyContextCustomURL(any(), any(), any());
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(2)));
+
+        ArgumentCaptor<NotifyContext> notifyContextArg = ArgumentCaptor.forClass(NotifyContext.class);
+        verify(ngsiClient).notifyContextCustomURL(eq(reference), any(), notifyContextArg.capture());
+        assertEquals(2, notifyContextArg.getValue().getContextElementResponseList().size());
+    }
+
+    @Test
+    public void notifyPendingOnShutdown() throws Exception {
+        when(configuration.getNotifyBatchWindow()).thenReturn(60000L);
+
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(1)));
+        notifications.shutdown();
+
+        verify(ngsiClient).notifyContextCustomURL(eq(reference), any(), any());
+    }
+
+    @Test
+    public void notifyImmediatelyAfterShutdown() throws Exception {
+        when(configuration.getNotifyBatchWindow()).thenReturn(60000L);
+        notifications.shutdown();
+
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(1)));
+        verify(ngsiClient).notifyContextCustomURL(eq(reference), any(), any());
+
+        subscription.setThrottling(Duration.ofMillis(60000));
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(2)));
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(3)));
+        verify(ngsiClient, times(3)).notifyContextCustomURL(eq(reference), any(), any());
+    }
+
+    @Test
+    public void dropPendingOfRemovedSubscription() throws Exception {
+        when(configuration.getNotifyBatchWindow()).thenReturn(100L);
+
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(1)));
+        notifications.removeSubscription(subscription.getSubscriptionId());
+
+        Thread.sleep(300);
+        verify(ngsiClient, never()).notifyContextCustomURL(any(), any(), any());
+    }
+
+    @Test
+    public void notifyThrottled() throws Exception {
+        subscription.setThrottling(Duration.ofMillis(300));
+
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(1)));
+        verify(ngsiClient, times(1)).notifyContextCustomURL(eq(reference), any(), any());
+
+        // Intermediate updates of the same entity are merged until the end of the throttling period
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(2)));
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(3)));
+        verify(ngsiClient, times(1)).notifyContextCustomURL(eq(reference), any(), any());
+
+        ArgumentCaptor<NotifyContext> notifyContextArg = ArgumentCaptor.forClass(NotifyContext.class);
+        verify(ngsiClient, timeout(2000).times(2)).notifyContextCustomURL(eq(reference), any(), notifyContextArg.capture());
+        List<ContextElementResponse> contextElementResponses = notifyContextArg.getAllValues().get(1).getContextElementResponseList();
+        assertEquals(1, contextElementResponses.size());
+        assertEquals(18.5, contextElementResponses.get(0).getContextElement().getContextAttributeList().get(0).getValue());
+    }
+
+    @Test
+    public void notifyThrottledMergesAttributes() throws Exception {
+        subscription.setThrottling(Duration.ofMillis(300));
+
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(1)));
+        ContextElement pressure = createTemperaturePressureContextElement();
+        pressure.setContextAttributeList(Collections.singletonList(pressure.getContextAttributeList().get(1)));
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(2)));
+        notifications.notify(subscription, Collections.singletonList(new ContextElementResponse(pressure, new StatusCode(CodeEnum.CODE_200))));
+
+        ArgumentCaptor<NotifyContext> notifyContextArg = ArgumentCaptor.forClass(NotifyContext.class);
+        verify(ngsiClient, timeout(2000).times(2)).notifyContextCustomURL(eq(reference), any(), notifyContextArg.capture());
+        List<ContextAttribute> attributes = notifyContextArg.getAllValues().get(1).getContextElementResponseList().get(0).getContextElement().getContextAttributeList();
+        assertEquals(2, attributes.size());
+        assertEquals("temp", attributes.get(0).getName());
+        assertEquals(17.5, attributes.get(0).getValue());
+        assertEquals("pressure", attributes.get(1).getName());
+    }
+
+    @Test
+    public void notifyQueuedWhenTooManyInFlight() throws Exception {
+        when(configuration.getNotifyMaxConcurrentRequests()).thenReturn(1);
+        when(configuration.getNotifyQueueMaxSize()).thenReturn(10);
+        SettableListenableFuture<NotifyContextResponse> firstFuture = new SettableListenableFuture<>();
+        when(ngsiClient.notifyContextCustomURL(any(), any(), any())).thenReturn(firstFuture, notifyFuture);
+
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(1)));
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(2)));
+        verify(ngsiClient, times(1)).notifyContextCustomURL(eq(reference), any(), any());
+        assertEquals(1, metrics().get("notify.queue.depth"));
+
+        firstFuture.set(new NotifyContextResponse(new StatusCode(CodeEnum.CODE_200)));
+        verify(ngsiClient, times(2)).notifyContextCustomURL(eq(reference), any(), any());
+        assertEquals(0, metrics().get("notify.queue.depth"));
+    }
+
+    @Test
+    public void notifyQueueFullDropOldest() throws Exception {
+        assertEquals(17.5, notifyWithFullQueue(OverflowPolicy.DROP_OLDEST).getContextAttributeList().get(0).getValue());
+        assertEquals(1L, metrics().get("notify.queue.dropped"));
+    }
+
+    @Test
+    public void notifyQueueFullCoalesce() throws Exception {
+        ContextElement contextElement = notifyWithFullQueue(OverflowPolicy.COALESCE);
+        assertEquals(1, contextElement.getContextAttributeList().size());
+        assertEquals(17.5, contextElement.getContextAttributeList().get(0).getValue());
+        assertEquals(1L, metrics().get("notify.queue.coalesced"));
+        assertEquals(0L, metrics().get("notify.queue.dropped"));
+    }
+
+    @Test
+    public void notifyQueueFullReject() throws Exception {
+        assertEquals(16.5, notifyWithFullQueue(OverflowPolicy.REJECT).getContextAttributeList().get(0).getValue());
+        assertEquals(1L, metrics().get("notify.queue.rejected"));
+    }
+
+    /**
+     * Notify 3 updates with a single notification in flight and a single one queued
+     * @return the context element of the second notification sent
+     */
+    private ContextElement notifyWithFullQueue(OverflowPolicy overflow) throws Exception {
+        when(configuration.getNotifyMaxConcurrentRequests()).thenReturn(1);
+        when(configuration.getNotifyQueueMaxSize()).thenReturn(1);
+        when(configuration.getNotifyQueueOverflow()).thenReturn(overflow);
+        SettableListenableFuture<NotifyContextResponse> firstFuture = new SettableListenableFuture<>();
+        when(ngsiClient.notifyContextCustomURL(any(), any(), any())).thenReturn(firstFuture, notifyFuture);
+
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(0)));
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(1)));
+        notifications.notify(subscription, Collections.singletonList(contextElementResponse(2)));
+        firstFuture.set(new NotifyContextResponse(new StatusCode(CodeEnum.CODE_200)));
+
+        ArgumentCaptor<NotifyContext> notifyContextArg = ArgumentCaptor.forClass(NotifyContext.class);
+        verify(ngsiClient, times(2)).notifyContextCustomURL(eq(reference), any(), notifyContextArg.capture());
+        List<ContextElementResponse> contextElementResponses = notifyContextArg.getAllValues().get(1).getContextElementResponseList();
+        assertEquals(1, contextElementResponses.size());
+        return contextElementResponses.get(0).getContextElement();
+    }
+
+    private Map<String, Number> metrics() {
+        Map<String, Number> metrics = new HashMap<>();
+        for (Metric<?> metric : notifications.metrics()) {
+            metrics.put(metric.getName(), metric.getValue());
+        }
+        return metrics;
+    }
+
+    private ContextElementResponse contextElementResponse(float value) {
+        return new ContextElementResponse(createTemperatureContextElement(value), new StatusCode(CodeEnum.CODE_200));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+package com.orange.cepheus.broker;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the pattern set
+ */
+public class PatternSetTest {
+
+    private static final String[] PATTERNS = {"Room.*", "Room1", "^Room2$", "Ro+m3", "Hall|Room", ".*", "[a-z]+", "Floor\\d", "(Room|Hall)4", "oo", "Roo?m5",
+            "\\x52oom1", "\\u0052oom2", "\\0122oom3", "\\x{52}oom4", "\\cIRoom", "(H)\\1?all4"};
+
+    private static final String[] IDS = {"Room1", "Room2", "Room3", "Room4", "Rom5", "Hall4", "Floor1", "floor", "Kitchen", ""};
+
+    @Test
+    public void matchLikeRegexTest() {
+        PatternSet<String> patternSet = new PatternSet<>(new Patterns());
+        for (String pattern : PATTERNS) {
+            patternSet.add(pattern, pattern);
+        }
+
+        for (String id : IDS) {
+            Set<String> expected = new HashSet<>();
+            for (String pattern : PATTERNS) {
+                if (Pattern.compile(pattern).matcher(id).find()) {
+                    expected.add(pattern);
+                }
+            }
+            Set<String> results = new HashSet<>();
+            patternSet.match(id, results);
+            assertEquals("matching " + id, expected, results);
+        }
+    }
+
+    @Test
+    public void addRemoveTest() {
+        PatternSet<String> patternSet = new PatternSet<>(new Patterns());
+        patternSet.add("Room.*", "A");
+        patternSet.add("Room.*", "B");
+        patternSet.add("Hall.*", "C");
+
+        Set<String> results = new HashSet<>();
+        patternSet.match("Room1", results);
+        assertEquals(new HashSet<>(Arrays.asList("A", "B")), results);
+
+        patternSet.remove("Room.*", "A");
+        results.clear();
+        patternSet.match("Room1", results);
+        assertEquals(Collections.singleton("B"), results);
+
+        patternSet.remove("Room.*", "B");
+        results.clear();
+        patternSet.match("Room1", results);
+        assertTrue(results.isEmpty());
+        assertNull(patternSet.get("Room.*"));
+        assertEquals(Collections.singleton("C"), patternSet.get("Hall.*"));
+
+        patternSet.remove("Hall.*", "C");
+        assertTrue(patternSet.isEmpty());
+    }
+
+    @Test
+    public void referencePatternsTest() {
+        Patterns patterns = new Patterns();
+        patterns.setMaxOrphans(0);
+        PatternSet<String> patternSet = new PatternSet<>(patterns);
+        patternSet.add("Room.*", "A");
+        patternSet.add("Room.*", "A");
+        patternSet.add("Room.*", "B");
+        assertEquals(1, patterns.getCacheSize());
+
+        patternSet.remove("Room.*", "A");
+        patternSet.remove("Room.*", "A");
+        assertEquals(1, patterns.getCacheSize());
+
+        patternSet.remove("Room.*", "B");
+        assertEquals(0, patterns.getCacheSize());
+    }
+}
@@ -11,6 +11,8 @@ import com.orange.ngsi.model.EntityId;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -188,4 +190,110 @@ public class PatternsTest {
         Predicate<EntityId> entityIdPredicate = patterns.getFilterEntityId(entityIdsearch);
         assertFalse(entityIdPredicate.test(entityIdRegisterOrSubscribe));
     }
+
+    @Test
+    public void requiredLiteralTest() {
+        Patterns patterns = new Patterns();
+        assertEquals("Room", patterns.requiredLiteral("Room.*"));
+        assertEquals("Room", patterns.requiredLiteral("^Room[0-9]+$"));
+        assertEquals("Sensor", patterns.requiredLiteral("Room\\d*Sensor"));
+        assertEquals("Roo", patterns.requiredLiteral("Room?"));
+        assertEquals("Room.1", patterns.requiredLiteral("Room\\.1"));
+        assertEquals("Floor", patterns.requiredLiteral("(Room|Hall)Floor"));
+        assertEquals("Room", patterns.requiredLiteral("[]Room]Room"));
+        assertEquals("Roo", patterns.requiredLiteral("Room{0,2}"));
+    }
+
+    @Test
+    public void requiredLiteralEscapesTest() {
+        Patterns patterns = new Patterns();
+        assertEquals("BCD", patterns.requiredLiteral("\\x41BCD"));
+        assertEquals("BCD", patterns.requiredLiteral("\\x{41}BCD"));
+        assertEquals("BCD", patterns.requiredLiteral("\\u0041BCD"));
+        assertEquals("BCD", patterns.requiredLiteral("\\0101BCD"));
+        assertEquals("BCD", patterns.requiredLiteral("\\cABCD"));
+        assertEquals("BCD", patterns.requiredLiteral("\\k<name>BCD"));
+        assertEquals("BCD", patterns.requiredLiteral("\\p{Lu}BCD"));
+        assertEquals("BCD", patterns.requiredLiteral("(A)\\12BCD"));
+        assertEquals("B", patterns.requiredLiteral("\\x41B"));
+        assertNull(patterns.requiredLiteral("\\u00"));
+
+        // The required literal is found by the matched ids
+        for (String regex : new String[] { "\\x41BCD", "\\u0041BCD", "\\0101BCD", "\\x{41}BCD" }) {
+            assertTrue(Pattern.compile(regex).matcher("ABCD").find());
+            assertTrue("ABCD".contains(patterns.requiredLiteral(regex)));
+        }
+    }
+
+    @Test
+    public void requiredLiteralNullTest() {
+        Patterns patterns = new Patterns();
+        assertNull(patterns.requiredLiteral(".*"));
+        assertNull(patterns.requiredLiteral("A|B"));
+        assertNull(patterns.requiredLiteral("(?i)Room"));
+        assertNull(patterns.requiredLiteral("\\QRoom\\E"));
+        assertNull(patterns.requiredLiteral("[A-Z]+"));
+    }
+
+    @Test
+    public void evictOrphanPatternsTest() {
+        Patterns patterns = new Patterns();
+        patterns.setMaxOrphans(2);
+        Pattern a = patterns.getPattern("A.*");
+        patterns.getPattern("B.*");
+        patterns.getPattern("A.*");
+        patterns.getPattern("C.*");
+
+        // B.* is the least recently used
+        assertEquals(2, patterns.getCacheSize());
+        assertSame(a, patterns.getPattern("A.*"));
+        assertEquals(2, patterns.getCacheSize());
+    }
+
+    @Test
+    public void configuredMaxOrphansTest() {
+        Configuration configuration = new Configuration();
+        configuration.setPatternsCacheMaxOrphans(1);
+        Patterns patterns = new Patterns(configuration);
+        patterns.getPattern("A.*");
+        patterns.getPattern("B.*");
+        assertEquals(1, patterns.getCacheSize());
+    }
+
+    @Test
+    public void keepReferencedPatternsTest() {
+        Patterns patterns = new Patterns();
+        patterns.setMaxOrphans(0);
+        Pattern a = patterns.acquire("A.*");
+        patterns.acquire("A.*");
+        patterns.getPattern("B.*");
+        assertEquals(1, patterns.getCacheSize());
+        assertSame(a, patterns.getPattern("A.*"));
+
+        patterns.release("A.*");
+        assertEquals(1, patterns.getCacheSize());
+        patterns.release("A.*");
+        assertEquals(0, patterns.getCacheSize());
+
+        // Releasing an unknown pattern has no effect
+        patterns.release("A.*");
+        assertEquals(0, patterns.getCacheSize());
+    }
+
+    @Test
+    public void cacheMetricsTest() {
+        Patterns patterns = new Patterns();
+        patterns.setMaxOrphans(1);
+        patterns.getPattern("A.*");
+        patterns.getPattern("A.*");
+        patterns.getPattern("B.*");
+
+        Map<String, Number> metrics = new HashMap<>();
+        patterns.metrics().forEach(metric -> metrics.put(metric.getName(), metric.getValue()));
+        assertEquals(1L, metrics.get("patterns.cache.hits"));
+        assertEquals(2L, metrics.get("patterns.cache.misses"));
+        assertEquals(1L, metrics.get("patterns.cache.evictions"));
+        assertEquals(1, metrics.get("patterns.cache.size"));
+        assertEquals(1, metrics.get("patterns.cache.orphans"));
+    }
 }
@@ -24,9 +24,14 @@ import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.util.concurrent.FailureCallback;
 import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 import org.springframework.util.concurrent.SuccessCallback;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.orange.cepheus.broker.Util.*;
 import static org.junit.Assert.assertEquals;
@@ -53,6 +58,9 @@ public class RemoteRegistrationsTest {
     @Captor
     private ArgumentCaptor<FailureCallback> failureCaptor;
 
+    @Captor
+    private ArgumentCaptor<RegisterContext> registerContextCaptor;
+
     @Mock
     private ListenableFuture<RegisterContextResponse> registerFuture;
 
@@ -65,6 +73,9 @@ public class RemoteRegistrationsTest {
     @InjectMocks
     protected RemoteRegistrations remoteRegistrations;
 
+    @Autowired
+    Upstreams upstreams;
+
     @Before
     public void setup() {
         MockitoAnnotations.initMocks(this);
@@ -159,6 +170,35 @@ public class RemoteRegistrationsTest {
         assertEquals(remoteRegistrationId, remoteRegistrations.getRemoteRegistrationId(localRegistrationId));
     }
 
+    @Test
+    public void testRemoteRegistrationCircuitOpen() throws Exception {
+        String localRegistrationId = "localRegistrationId1";
+
+        RegisterContext registerContext = createRegistrationContext();
+
+        // prepare mocks
+        when(ngsiClient.getRequestHeaders(any())).thenReturn(httpHeaders);
+        when(configuration.getRemoteUrl()).thenReturn(remoteBrokerUrl);
+
+        // open the circuit of the remote broker with consecutive failures
+        for (int i = 0; i < 5; i++) {
+            SettableListenableFuture<RegisterContextResponse> failed = new SettableListenableFuture<>();
+            upstreams.send(remoteBrokerUrl, () -> failed);
+            failed.setException(new RuntimeException("connection refused"));
+        }
+
+        // make *the* call
+        remoteRegistrations.registerContext(registerContext, localRegistrationId);
+
+        // check the register is not sent but kept for a later retry
+        verify(ngsiClient, never()).registerContext(any(), any(), any());
+        assertNull(remoteRegistrations.getRemoteRegistrationId(localRegistrationId));
+
+        // check no retry is sent while the circuit is open
+        remoteRegistrations.registerPendingRemoteRegistrations();
+        verify(ngsiClient, never()).registerContext(any(), any(), any());
+    }
+
     @Test
     public void testRemoteRegistrationUpdate() throws Exception {
         String localRegistrationId = "localRegistrationId1";
@@ -257,4 +297,213 @@ public class RemoteRegistrationsTest {
         verify(ngsiClient, never()).registerContext(any(), any(), any());
         assertNull(remoteRegistrations.getRemoteRegistrationId(localRegistrationId));
     }
+
+    @Test
+    public void testBatchedRemoteRegistrations() throws Exception {
+        String remoteRegistrationId = "remoteRegistrationId1";
+
+        // prepare mocks
+        doNothing().when(registerFuture).addCallback(successCaptor.capture(), any());
+        when(ngsiClient.registerContext(any(), any(), registerContextCaptor.capture())).thenReturn(registerFuture);
+        when(ngsiClient.getRequestHeaders(any())).thenReturn(httpHeaders);
+        when(configuration.getRemoteUrl()).thenReturn(remoteBrokerUrl);
+        when(configuration.getRemoteRegistrationBatchWindow()).thenReturn(60000L);
+        when(configuration.getRemoteRegistrationBatchMaxSize()).thenReturn(100);
+
+        // gather three registrations and send them in a single request
+        for (int i = 1; i <= 3; i++) {
+            remoteRegistrations.registerContext(createRegistrationContext("SENSOR" + i, "string", false, "http://providingApplication", "temp"), "local" + i);
+        }
+        verify(ngsiClient, never()).registerContext(any(), any(), any());
+        remoteRegistrations.flush();
+
+        verify(ngsiClient, times(1)).registerContext(eq(remoteBrokerUrl), eq(httpHeaders), any());
+        RegisterContext batch = registerContextCaptor.getValue();
+        assertNull(batch.getRegistrationId());
+        assertEquals("PT1M", batch.getDuration());
+        assertEquals(3, batch.getContextRegistrationList().size());
+
+        // fake response from ngsi client to registerContext
+        RegisterContextResponse response = new RegisterContextResponse();
+        response.setRegistrationId(remoteRegistrationId);
+        successCaptor.getValue().onSuccess(response);
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(remoteRegistrationId, remoteRegistrations.getRemoteRegistrationId("local" + i));
+        }
+
+        // an update is sent with the other registrations sharing the same remote registration
+        remoteRegistrations.registerContext(createRegistrationContext("SENSOR2", "string", false, "http://providingApplication", "pressure"), "local2");
+        remoteRegistrations.flush();
+
+        verify(ngsiClient, times(2)).registerContext(eq(remoteBrokerUrl), eq(httpHeaders), any());
+        batch = registerContextCaptor.getValue();
+        assertEquals(remoteRegistrationId, batch.getRegistrationId());
+        assertEquals(3, batch.getContextRegistrationList().size());
+        assertEquals("pressure", batch.getContextRegistrationList().get(1).getContextRegistrationAttributeList().get(0).getName());
+        successCaptor.getValue().onSuccess(response);
+
+        // a removal sends the remote registration again without the removed registration
+        remoteRegistrations.removeRegistration("local1");
+        remoteRegistrations.flush();
+
+        verify(ngsiClient, times(3)).registerContext(eq(remoteBrokerUrl), eq(httpHeaders), any());
+        batch = registerContextCaptor.getValue();
+        assertEquals(remoteRegistrationId, batch.getRegistrationId());
+        assertEquals(2, batch.getContextRegistrationList().size());
+
+        // nothing left to send
+        successCaptor.getValue().onSuccess(response);
+        remoteRegistrations.flush();
+        verify(ngsiClient, times(3)).registerContext(any(), any(), any());
+    }
+
+    @Test
+    public void testBatchedRemoteRegistrationsDuration() throws Exception {
+        // prepare mocks
+        doNothing().when(registerFuture).addCallback(successCaptor.capture(), any());
+        when(ngsiClient.registerContext(any(), any(), registerContextCaptor.capture())).thenReturn(registerFuture);
+        when(ngsiClient.getRequestHeaders(any())).thenReturn(httpHeaders);
+        when(configuration.getRemoteUrl()).thenReturn(remoteBrokerUrl);
+        when(configuration.getRemoteRegistrationBatchWindow()).thenReturn(60000L);
+        when(configuration.getRemoteRegistrationBatchMaxSize()).thenReturn(100);
+
+        for (int i = 1; i <= 2; i++) {
+            remoteRegistrations.registerContext(createRegistrationContext("SENSOR" + i, "string", false, "http://providingApplication", "temp"), "local" + i);
+        }
+        remoteRegistrations.flush();
+        successCaptor.getValue().onSuccess(new RegisterContextResponse("remoteRegistrationId1"));
+
+        // the remote registration lasts as long as the longest of its registrations, whatever their order in the batch
+        RegisterContext registerContext = createRegistrationContext("SENSOR1", "string", false, "http://providingApplication", "temp");
+        registerContext.setDuration("PT1H");
+        remoteRegistrations.registerContext(registerContext, "local1");
+        remoteRegistrations.flush();
+        assertEquals("PT1H", registerContextCaptor.getValue().getDuration());
+        successCaptor.getValue().onSuccess(new RegisterContextResponse("remoteRegistrationId1"));
+
+        registerContext = createRegistrationContext("SENSOR2", "string", false, "http://providingApplication", "temp");
+        registerContext.setDuration("PT1H");
+        remoteRegistrations.registerContext(registerContext, "local2");
+        remoteRegistrations.registerContext(createRegistrationContext("SENSOR1", "string", false, "http://providingApplication", "temp"), "local1");
+        remoteRegistrations.flush();
+        verify(ngsiClient, times(3)).registerContext(any(), any(), any());
+        assertEquals("PT1H", registerContextCaptor.getValue().getDuration());
+    }
+
+    @Test
+    public void testBatchedRemoteRegistrationsLimits() throws Exception {
+        // prepare mocks
+        doNothing().when(registerFuture).addCallback(successCaptor.capture(), failureCaptor.capture());
+        when(ngsiClient.registerContext(any(), any(), registerContextCaptor.capture())).thenReturn(registerFuture);
+        when(ngsiClient.getRequestHeaders(any())).thenReturn(httpHeaders);
+        when(configuration.getRemoteUrl()).thenReturn(remoteBrokerUrl);
+        when(configuration.getRemoteRegistrationBatchWindow()).thenReturn(60000L);
+        when(configuration.getRemoteRegistrationBatchMaxSize()).thenReturn(2);
+        when(configuration.getRemoteRegistrationMaxConcurrentRequests()).thenReturn(1);
+        when(configuration.getRemoteRegistrationRetryDelay()).thenReturn(60000L);
+
+        // three registrations are split in two batches, sent one at a time
+        for (int i = 1; i <= 3; i++) {
+            remoteRegistrations.registerContext(createRegistrationContext("SENSOR" + i, "string", false, "http://providingApplication", "temp"), "local" + i);
+        }
+        remoteRegistrations.flush();
+        verify(ngsiClient, times(1)).registerContext(any(), any(), any());
+        assertEquals(2, registerContextCaptor.getValue().getContextRegistrationList().size());
+
+        // the failure of the first batch sends the next one
+        failureCaptor.getValue().onFailure(new RuntimeException("fail"));
+        verify(ngsiClient, times(2)).registerContext(any(), any(), any());
+        assertEquals(1, registerContextCaptor.getValue().getContextRegistrationList().size());
+
+        RegisterContextResponse response = new RegisterContextResponse();
+        response.setRegistrationId("remoteRegistrationId2");
+        successCaptor.getValue().onSuccess(response);
+        assertNull(remoteRegistrations.getRemoteRegistrationId("local1"));
+        assertEquals("remoteRegistrationId2", remoteRegistrations.getRemoteRegistrationId("local3"));
+
+        // the failed batch is retried
+        remoteRegistrations.flush();
+        verify(ngsiClient, times(3)).registerContext(any(), any(), any());
+        assertEquals(2, registerContextCaptor.getValue().getContextRegistrationList().size());
+        assertNull(registerContextCaptor.getValue().getRegistrationId());
+    }
+
+    @Test
+    public void testConcurrentRemoteRegistrations() throws Exception {
+        final int threads = 8;
+        final int registrationsPerThread = 200;
+        AtomicInteger wrongPreviousIds = new AtomicInteger();
+
+        // The remote broker answers immediately from the async client threads,
+        // checking that updates carry the remote registrationId of the first registration
+        // (requests in flight are kept below upstream.maxConcurrentRequests)
+        ExecutorService asyncClient = Executors.newFixedThreadPool(4);
+        Semaphore inFlight = new Semaphore(32);
+        when(ngsiClient.getRequestHeaders(any())).thenReturn(httpHeaders);
+        when(configuration.getRemoteUrl()).thenReturn(remoteBrokerUrl);
+        when(ngsiClient.registerContext(any(), any(), any())).thenAnswer(invocation -> {
+            RegisterContext registerContext = (RegisterContext) invocation.getArguments()[2];
+            String localRegistrationId = registerContext.getContextRegistrationList().get(0).getEntityIdList().get(0).getId();
+            String previousRemoteRegistrationId = registerContext.getRegistrationId();
+            if (previousRemoteRegistrationId != null && !previousRemoteRegistrationId.equals("remote-" + localRegistrationId)) {
+                wrongPreviousIds.incrementAndGet();
+            }
+            SettableListenableFuture<RegisterContextResponse> future = new SettableListenableFuture<>();
+            inFlight.acquire();
+            asyncClient.execute(() -> {
+                future.set(new RegisterContextResponse("remote-" + localRegistrationId));
+                inFlight.release();
+            });
+            return future;
+        });
+
+        ExecutorService requests = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(requests.submit(() -> {
+                for (int i = 0; i < registrationsPerThread; i++) {
+                    String localRegistrationId = "local-" + thread + "-" + i;
+                    remoteRegistrations.registerContext(createRegistrationContext(localRegistrationId, "string", false, "http://providingApplication", "temp"), localRegistrationId);
+                }
+                // wait for the registrations of this thread, then update them or remove one out of two
+                for (int i = 0; i < registrationsPerThread; i++) {
+                    String localRegistrationId = "local-" + thread + "-" + i;
+                    while (remoteRegistrations.getRemoteRegistrationId(localRegistrationId) == null) {
+                        Thread.yield();
+                    }
+                    if (i % 2 == 0) {
+                        remoteRegistrations.removeRegistration(localRegistrationId);
+                    } else {
+                        remoteRegistrations.registerContext(createRegistrationContext(localRegistrationId, "string", false, "http://providingApplication", "pressure"), localRegistrationId);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        requests.shutdown();
+        asyncClient.shutdown();
+        asyncClient.awaitTermination(10, TimeUnit.SECONDS);
+
+        // no lost update: every registration kept is registered, every registration removed is forgotten
+        assertEquals(0, wrongPreviousIds.get());
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < registrationsPerThread; i++) {
+                String localRegistrationId = "local-" + t + "-" + i;
+                if (i % 2 == 0) {
+                    assertNull(remoteRegistrations.getRemoteRegistrationId(localRegistrationId));
+                } else {
+                    assertEquals("remote-" + localRegistrationId, remoteRegistrations.getRemoteRegistrationId(localRegistrationId));
+                }
+            }
+        }
+        verify(ngsiClient, times(threads * registrationsPerThread * 3 / 2)).registerContext(any(), any(), any());
+
+        // nothing left to retry
+        remoteRegistrations.registerPendingRemoteRegistrations();
+        verify(ngsiClient, times(threads * registrationsPerThread * 3 / 2)).registerContext(any(), any(), any());
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+package com.orange.cepheus.broker;
+
+import com.orange.ngsi.model.EntityId;
+import com.orange.ngsi.model.SubscribeContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static com.orange.cepheus.broker.Util.createSubscribeContext;
+
+/**
+ * Compare the linear scan of all subscriptions with the entity id index when matching an update.
+ * One subscription out of 100 is a pattern subscription.
+ *
+ * Run with: java -cp target/test-classes:<test classpath> com.orange.cepheus.broker.SubscriptionsBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SubscriptionsBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    private Patterns patterns;
+
+    private List<SubscribeContext> subscribeContexts;
+
+    private EntityIdIndex<Integer> entityIdIndex;
+
+    private EntityId searchEntityId;
+
+    @Setup
+    public void setup() throws Exception {
+        patterns = new Patterns();
+        subscribeContexts = new ArrayList<>(size);
+        entityIdIndex = new EntityIdIndex<>(patterns);
+        for (int i = 0; i < size; i++) {
+            SubscribeContext subscribeContext;
+            if (i % 100 == 0) {
+                subscribeContext = createSubscribeContext("Room" + i + ".*", "Room", true, "http://app" + i, "temp");
+            } else {
+                subscribeContext = createSubscribeContext("Room" + i, "Room", false, "http://app" + i, "temp");
+            }
+            subscribeContexts.add(subscribeContext);
+            entityIdIndex.add(i, subscribeContext.getEntityIdList());
+        }
+        searchEntityId = new EntityId("Room" + (size / 2), "Room", false);
+    }
+
+    @Benchmark
+    public int linearScan() {
+        Predicate<EntityId> filterEntityId = patterns.getFilterEntityId(searchEntityId);
+        int matches = 0;
+        for (SubscribeContext subscribeContext : subscribeContexts) {
+            if (subscribeContext.getEntityIdList().stream().filter(filterEntityId).findFirst().isPresent()) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public int index() {
+        return entityIdIndex.find(searchEntityId).size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SubscriptionsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -33,6 +33,7 @@ import org.junit.rules.ExpectedException;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
@@ -97,6 +98,24 @@ public class SubscriptionsTest {
         Assert.isTrue(subscriptionsRepository.getAllSubscriptions().size()==0);
     }
 
+    @Test
+    public void addSubscriptionWithBadThrottlingTest() throws SubscriptionException, URISyntaxException, SubscriptionPersistenceException {
+        thrown.expect(SubscriptionException.class);
+        thrown.expectMessage("bad throttling: PIPO");
+        SubscribeContext subscribeContext = createSubscribeContextTemperature();
+        subscribeContext.setThrottling("PIPO");
+        subscriptions.addSubscription(subscribeContext);
+        Assert.isTrue(subscriptionsRepository.getAllSubscriptions().size()==0);
+    }
+
+    @Test
+    public void addSubscriptionWithThrottlingTest() throws SubscriptionException, URISyntaxException, SubscriptionPersistenceException {
+        SubscribeContext subscribeContext = createSubscribeContextTemperature();
+        subscribeContext.setThrottling("PT5S");
+        String subscriptionId = subscriptions.addSubscription(subscribeContext);
+        assertEquals(Duration.ofSeconds(5), subscriptions.getSubscription(subscriptionId).getThrottling());
+    }
+
     @Test
     public void addSubscriptionWithZeroDurationTest() throws SubscriptionException, URISyntaxException, SubscriptionPersistenceException {
         SubscribeContext subscribeContext = createSubscribeContextTemperature();
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.broker;
+
+import com.orange.cepheus.broker.exception.UpstreamException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for Upstreams
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+public class UpstreamsTest {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Mock
+    Configuration configuration;
+
+    @Autowired
+    @InjectMocks
+    Upstreams upstreams;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+        when(configuration.getUpstreamTimeout()).thenReturn(100L);
+        when(configuration.getUpstreamMaxConcurrentRequests()).thenReturn(1);
+    }
+
+    @After
+    public void resetMocks() {
+        reset(configuration);
+    }
+
+    @Test
+    public void getResponse() throws Exception {
+        SettableListenableFuture<String> future = new SettableListenableFuture<>();
+        future.set("response");
+        assertEquals("response", upstreams.get("http://iotagent:1234/ngsi10", () -> future));
+    }
+
+    @Test
+    public void getTimeout() throws Exception {
+        thrown.expect(UpstreamException.class);
+        thrown.expectMessage("no response from http://iotagent:1234/ngsi10 after 100 ms");
+        upstreams.get("http://iotagent:1234/ngsi10", SettableListenableFuture::new);
+    }
+
+    @Test
+    public void getTooManyConcurrentRequests() throws Exception {
+        when(configuration.getUpstreamTimeout()).thenReturn(0L);
+        SettableListenableFuture<String> pending = new SettableListenableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                upstreams.get("http://iotagent:1234/ngsi10", () -> pending);
+            } catch (Exception e) {
+                // ignored
+            }
+        });
+        thread.start();
+        Thread.sleep(100);
+
+        // A second request to the same upstream server is rejected while the first one is in flight
+        try {
+            upstreams.get("http://iotagent:1234/ngsi9", () -> pending);
+            fail("expected UpstreamException");
+        } catch (UpstreamException e) {
+            assertEquals("too many concurrent requests to http://iotagent:1234", e.getMessage());
+        }
+
+        // Other upstream servers are not affected
+        SettableListenableFuture<String> other = new SettableListenableFuture<>();
+        other.set("other");
+        assertEquals("other", upstreams.get("http://otheragent:1234", () -> other));
+
+        // The permit is released when the first request completes
+        pending.set("done");
+        thread.join();
+        SettableListenableFuture<String> next = new SettableListenableFuture<>();
+        next.set("next");
+        assertEquals("next", upstreams.get("http://iotagent:1234/ngsi10", () -> next));
+    }
+
+    @Test
+    public void circuitOpensAfterConsecutiveFailures() throws Exception {
+        when(configuration.getUpstreamMaxConcurrentRequests()).thenReturn(0);
+        when(configuration.getUpstreamBreakerFailures()).thenReturn(2);
+        when(configuration.getUpstreamBreakerBackoff()).thenReturn(60000L);
+        when(configuration.getUpstreamBreakerMaxBackoff()).thenReturn(60000L);
+
+        for (int i = 0; i < 2; i++) {
+            SettableListenableFuture<String> failed = new SettableListenableFuture<>();
+            upstreams.send("http://iotagent:1234/ngsi10", () -> failed);
+            failed.setException(new RuntimeException("connection refused"));
+        }
+
+        Map<String, Object> state = upstreams.getStates().get("http://iotagent:1234");
+        assertEquals(Upstreams.CircuitState.OPEN, state.get("state"));
+        assertEquals(2, state.get("failures"));
+        assertEquals(60000L, state.get("backoff"));
+        assertNotNull(state.get("openUntil"));
+        assertFalse(upstreams.tryRetry("http://iotagent:1234/ngsi9"));
+
+        // Requests fail fast without being sent
+        thrown.expect(UpstreamException.class);
+        thrown.expectMessage("circuit open for http://iotagent:1234");
+        upstreams.send("http://iotagent:1234/ngsi10", () -> {
+            fail("request sent while the circuit is open");
+            return null;
+        });
+    }
+
+    @Test
+    public void halfOpenTrialClosesCircuit() throws Exception {
+        when(configuration.getUpstreamMaxConcurrentRequests()).thenReturn(0);
+        when(configuration.getUpstreamBreakerFailures()).thenReturn(1);
+        when(configuration.getUpstreamBreakerBackoff()).thenReturn(50L);
+        when(configuration.getUpstreamBreakerMaxBackoff()).thenReturn(1000L);
+
+        SettableListenableFuture<String> failed = new SettableListenableFuture<>();
+        upstreams.send("http://iotagent:1234/ngsi10", () -> failed);
+        failed.setException(new RuntimeException("connection refused"));
+        Thread.sleep(100);
+
+        // A single trial request is let through after the backoff
+        SettableListenableFuture<String> trial = new SettableListenableFuture<>();
+        upstreams.send("http://iotagent:1234/ngsi10", () -> trial);
+        try {
+            upstreams.send("http://iotagent:1234/ngsi10", SettableListenableFuture::new);
+            fail("expected UpstreamException");
+        } catch (UpstreamException e) {
+            assertEquals("circuit half-open for http://iotagent:1234, waiting for a trial request", e.getMessage());
+        }
+
+        trial.set("response");
+        Map<String, Object> state = upstreams.getStates().get("http://iotagent:1234");
+        assertEquals(Upstreams.CircuitState.CLOSED, state.get("state"));
+        assertEquals(0, state.get("failures"));
+    }
+
+    @Test
+    public void throwingTrialReopensCircuit() throws Exception {
+        when(configuration.getUpstreamMaxConcurrentRequests()).thenReturn(1);
+        when(configuration.getUpstreamBreakerFailures()).thenReturn(1);
+        when(configuration.getUpstreamBreakerBackoff()).thenReturn(50L);
+        when(configuration.getUpstreamBreakerMaxBackoff()).thenReturn(1000L);
+
+        SettableListenableFuture<String> failed = new SettableListenableFuture<>();
+        upstreams.send("http://iotagent:1234/ngsi10", () -> failed);
+        failed.setException(new RuntimeException("connection refused"));
+        Thread.sleep(100);
+
+        // The trial request fails before returning a future
+        try {
+            upstreams.send("http://iotagent:1234/ngsi10", () -> {
+                throw new IllegalStateException("invalid request");
+            });
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("invalid request", e.getMessage());
+        }
+        Map<String, Object> state = upstreams.getStates().get("http://iotagent:1234");
+        assertEquals(Upstreams.CircuitState.OPEN, state.get("state"));
+        assertEquals(100L, state.get("backoff"));
+        assertEquals(1, state.get("availablePermits"));
+
+        // A new trial request is let through after the backoff
+        Thread.sleep(150);
+        SettableListenableFuture<String> trial = new SettableListenableFuture<>();
+        trial.set("response");
+        assertEquals("response", upstreams.get("http://iotagent:1234/ngsi10", () -> trial));
+        assertEquals(Upstreams.CircuitState.CLOSED, upstreams.getStates().get("http://iotagent:1234").get("state"));
+    }
+
+    @Test
+    public void failedTrialDoublesBackoff() throws Exception {
+        when(configuration.getUpstreamMaxConcurrentRequests()).thenReturn(0);
+        when(configuration.getUpstreamBreakerFailures()).thenReturn(1);
+        when(configuration.getUpstreamBreakerBackoff()).thenReturn(50L);
+        when(configuration.getUpstreamBreakerMaxBackoff()).thenReturn(80L);
+
+        SettableListenableFuture<String> failed = new SettableListenableFuture<>();
+        upstreams.send("http://iotagent:1234/ngsi10", () -> failed);
+        failed.setException(new RuntimeException("connection refused"));
+        Thread.sleep(100);
+
+        SettableListenableFuture<String> trial = new SettableListenableFuture<>();
+        upstreams.send("http://iotagent:1234/ngsi10", () -> trial);
+        trial.setException(new RuntimeException("connection refused"));
+
+        Map<String, Object> state = upstreams.getStates().get("http://iotagent:1234");
+        assertEquals(Upstreams.CircuitState.OPEN, state.get("state"));
+        assertEquals(80L, state.get("backoff"));
+    }
+
+    @Test
+    public void retryBudget() throws Exception {
+        when(configuration.getUpstreamRetryRatio()).thenReturn(0.5);
+
+        // The reserve allows a few retries without any request sent
+        int retries = 0;
+        while (upstreams.tryRetry("http://broker:8081")) {
+            retries++;
+        }
+        assertEquals(10, retries);
+
+        // Then each request sent adds half a retry
+        for (int i = 0; i < 4; i++) {
+            SettableListenableFuture<String> future = new SettableListenableFuture<>();
+            future.set("response");
+            upstreams.get("http://broker:8081", () -> future);
+        }
+        assertTrue(upstreams.tryRetry("http://broker:8081"));
+        assertTrue(upstreams.tryRetry("http://broker:8081"));
+        assertFalse(upstreams.tryRetry("http://broker:8081"));
+    }
+}
@@ -10,8 +10,11 @@ package com.orange.cepheus.broker.controller;
 
 import com.orange.cepheus.broker.Application;
 import com.orange.cepheus.broker.Configuration;
+import com.orange.cepheus.broker.ContextCache;
 import com.orange.cepheus.broker.LocalRegistrations;
+import com.orange.cepheus.broker.Notifications;
 import com.orange.cepheus.broker.Subscriptions;
+import com.orange.cepheus.broker.Upstreams;
 import com.orange.cepheus.broker.exception.RegistrationException;
 import com.orange.cepheus.broker.exception.RegistrationPersistenceException;
 import com.orange.cepheus.broker.exception.SubscriptionException;
@@ -30,18 +33,23 @@ import org.springframework.dao.DataAccessException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 import org.springframework.web.context.WebApplicationContext;
 
 import java.net.URI;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
@@ -112,6 +120,18 @@ public class NgsiControllerTest {
     @Autowired
     private NgsiController ngsiController;
 
+    @InjectMocks
+    @Autowired
+    private Notifications notifications;
+
+    @InjectMocks
+    @Autowired
+    private Upstreams upstreams;
+
+    @InjectMocks
+    @Autowired
+    private ContextCache contextCache;
+
     private HttpHeaders httpHeaders = new HttpHeaders();
 
     @Before
@@ -514,6 +534,46 @@ public class NgsiControllerTest {
         assertEquals("200", contextElementResponse.getStatusCode().getCode());
     }
 
+    @Test
+    public void postUpdateContextWithMultipleContextElementsNotifiesOncePerSubscription() throws Exception {
+
+        when(configuration.getRemoteUrl()).thenReturn(null);
+
+        //localRegistrations mock return always without providingApplication
+        when(providingApplication.hasNext()).thenReturn(false);
+        when(localRegistrations.findProvidingApplication(any(), any())).thenReturn(providingApplication);
+
+        //each context element matches the same subscription
+        SubscribeContext subscribeContext = createSubscribeContextTemperature();
+        Subscription subscription = new Subscription("999999", Instant.now().plus(1, ChronoUnit.DAYS), subscribeContext);
+        when(subscriptions.findSubscriptions(any(), any())).then(invocation -> Collections.singletonList(subscription).iterator());
+
+        when(ngsiClient.notifyContextCustomURL(any(), any(), any())).thenReturn(notifyContextResponseListenableFuture);
+
+        UpdateContext updateContext = new UpdateContext(UpdateAction.UPDATE);
+        updateContext.setContextElements(Arrays.asList(createTemperatureContextElement(0), createPressureContextElement()));
+
+        mockMvc.perform(post("/v1/updateContext")
+                .content(json(mapper, updateContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].statusCode.code").value("200"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].statusCode.code").value("200"));
+
+        // all context elements are searched
+        verify(subscriptions, times(2)).findSubscriptions(entityIdArgumentCaptor.capture(), any());
+        assertEquals("S1", entityIdArgumentCaptor.getAllValues().get(0).getId());
+        assertEquals("P1", entityIdArgumentCaptor.getAllValues().get(1).getId());
+
+        // a single notification with both context elements
+        ArgumentCaptor<NotifyContext> notifyContextArg = ArgumentCaptor.forClass(NotifyContext.class);
+        verify(ngsiClient, times(1)).notifyContextCustomURL(eq(subscribeContext.getReference().toString()), any(), notifyContextArg.capture());
+        assertEquals("999999", notifyContextArg.getValue().getSubscriptionId());
+        assertEquals(2, notifyContextArg.getValue().getContextElementResponseList().size());
+        assertEquals("S1", notifyContextArg.getValue().getContextElementResponseList().get(0).getContextElement().getEntityId().getId());
+        assertEquals("P1", notifyContextArg.getValue().getContextElementResponseList().get(1).getContextElement().getEntityId().getId());
+    }
+
     @Test
     public void postUpdateContextWithoutProvidingApplicationAndWithoutRemoteBrokerButWithNullOriginator() throws Exception {
 
@@ -868,6 +928,303 @@ public class NgsiControllerTest {
         assertEquals("S*", queryContextArg.getValue().getEntityIdList().get(0).getId());
     }
 
+    @Test
+    public void postUpdateContextRoutedToProvidersAndRemoteBroker() throws Exception {
+
+        // S1 and S2 are provided by the same application, S3 by another one, P1 is not registered
+        when(localRegistrations.findProvidingApplication(any(), any())).then(invocation -> {
+            String id = ((EntityId) invocation.getArguments()[0]).getId();
+            if (id.equals("S1") || id.equals("S2")) {
+                return Collections.singletonList(new URI("http://iotagent1:1234")).iterator();
+            } else if (id.equals("S3")) {
+                return Collections.singletonList(new URI("http://iotagent2:1234")).iterator();
+            }
+            return Collections.emptyIterator();
+        });
+        when(matchedSubscriptions.hasNext()).thenReturn(false);
+        when(subscriptions.findSubscriptions(any(), any())).thenReturn(matchedSubscriptions);
+
+        List<ContextElement> contextElements = new ArrayList<>();
+        for (String id : Arrays.asList("S1", "S2", "S3")) {
+            ContextElement contextElement = createTemperatureContextElement(0);
+            contextElement.setEntityId(new EntityId(id, "TempSensor", false));
+            contextElements.add(contextElement);
+        }
+        contextElements.add(2, createPressureContextElement());
+        UpdateContext updateContext = new UpdateContext(UpdateAction.UPDATE);
+        updateContext.setContextElements(contextElements);
+
+        SettableListenableFuture<UpdateContextResponse> provider1Future = new SettableListenableFuture<>();
+        UpdateContextResponse provider1Response = new UpdateContextResponse();
+        provider1Response.setContextElementResponses(Arrays.asList(new ContextElementResponse(contextElements.get(0), new StatusCode(CodeEnum.CODE_200)),
+                new ContextElementResponse(contextElements.get(1), new StatusCode(CodeEnum.CODE_404, "S2"))));
+        provider1Future.set(provider1Response);
+        SettableListenableFuture<UpdateContextResponse> provider2Future = new SettableListenableFuture<>();
+        provider2Future.setException(new RuntimeException("connection refused"));
+        when(ngsiClient.updateContext(eq("http://iotagent1:1234"), any(), any())).thenReturn(provider1Future);
+        when(ngsiClient.updateContext(eq("http://iotagent2:1234"), any(), any())).thenReturn(provider2Future);
+        when(ngsiClient.updateContext(eq("http://orionhost:9999"), any(), any())).thenReturn(updateContextResponseListenableFuture);
+
+        mockMvc.perform(post("/v1/updateContext")
+                .content(json(mapper, updateContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.id").value("S1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].statusCode.code").value("200"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].contextElement.id").value("S2"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].statusCode.code").value("404"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[2].contextElement.id").value("P1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[2].statusCode.code").value("200"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[3].contextElement.id").value("S3"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[3].statusCode.code").value("500"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[3].statusCode.details").value("connection refused"));
+
+        // Each upstream only gets its own context elements
+        ArgumentCaptor<UpdateContext> updateArg = ArgumentCaptor.forClass(UpdateContext.class);
+        verify(ngsiClient).updateContext(eq("http://iotagent1:1234"), any(), updateArg.capture());
+        assertEquals(2, updateArg.getValue().getContextElements().size());
+        assertEquals("S1", updateArg.getValue().getContextElements().get(0).getEntityId().getId());
+        assertEquals("S2", updateArg.getValue().getContextElements().get(1).getEntityId().getId());
+        assertEquals(UpdateAction.UPDATE, updateArg.getValue().getUpdateAction());
+        verify(ngsiClient).updateContext(eq("http://iotagent2:1234"), any(), updateArg.capture());
+        assertEquals(1, updateArg.getValue().getContextElements().size());
+        assertEquals("S3", updateArg.getValue().getContextElements().get(0).getEntityId().getId());
+        verify(ngsiClient).updateContext(eq("http://orionhost:9999"), any(), updateArg.capture());
+        assertEquals(1, updateArg.getValue().getContextElements().size());
+        assertEquals("P1", updateArg.getValue().getContextElements().get(0).getEntityId().getId());
+
+        // Only the context elements not handled by a providing application are notified
+        verify(subscriptions, times(1)).findSubscriptions(any(), any());
+    }
+
+    @Test
+    public void postQueryContextScatteredToProvidersAndRemoteBroker() throws Exception {
+
+        // S1 and S2 are provided by the same application, S3 by another one, P1 is not registered
+        when(localRegistrations.findProvidingApplication(any(), any())).then(invocation -> {
+            String id = ((EntityId) invocation.getArguments()[0]).getId();
+            if (id.equals("S1") || id.equals("S2")) {
+                return Collections.singletonList(new URI("http://iotagent1:1234")).iterator();
+            } else if (id.equals("S3")) {
+                return Collections.singletonList(new URI("http://iotagent2:1234")).iterator();
+            }
+            return Collections.emptyIterator();
+        });
+
+        SettableListenableFuture<QueryContextResponse> provider1Future = new SettableListenableFuture<>();
+        provider1Future.set(createQueryContextResponseTemperature());
+        SettableListenableFuture<QueryContextResponse> provider2Future = new SettableListenableFuture<>();
+        QueryContextResponse notFound = new QueryContextResponse();
+        notFound.setErrorCode(new StatusCode(CodeEnum.CODE_404, "S3"));
+        provider2Future.set(notFound);
+        SettableListenableFuture<QueryContextResponse> brokerFuture = new SettableListenableFuture<>();
+        QueryContextResponse brokerResponse = new QueryContextResponse();
+        brokerResponse.setContextElementResponses(Collections.singletonList(new ContextElementResponse(createPressureContextElement(), new StatusCode(CodeEnum.CODE_200))));
+        brokerFuture.set(brokerResponse);
+        when(ngsiClient.queryContext(eq("http://iotagent1:1234"), any(), any())).thenReturn(provider1Future);
+        when(ngsiClient.queryContext(eq("http://iotagent2:1234"), any(), any())).thenReturn(provider2Future);
+        when(ngsiClient.queryContext(eq("http://orionhost:9999"), any(), any())).thenReturn(brokerFuture);
+
+        QueryContext queryContext = new QueryContext(Arrays.asList(new EntityId("S1", "TempSensor", false),
+                new EntityId("S2", "TempSensor", false), new EntityId("S3", "TempSensor", false), new EntityId("P1", "PressureSensor", false)));
+
+        mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, queryContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.id").value("S1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].contextElement.id").value("P1"));
+
+        // Each upstream only gets its own entities
+        ArgumentCaptor<QueryContext> queryArg = ArgumentCaptor.forClass(QueryContext.class);
+        verify(ngsiClient).queryContext(eq("http://iotagent1:1234"), any(), queryArg.capture());
+        assertEquals(2, queryArg.getValue().getEntityIdList().size());
+        assertEquals("S1", queryArg.getValue().getEntityIdList().get(0).getId());
+        assertEquals("S2", queryArg.getValue().getEntityIdList().get(1).getId());
+        verify(ngsiClient).queryContext(eq("http://iotagent2:1234"), any(), queryArg.capture());
+        assertEquals(1, queryArg.getValue().getEntityIdList().size());
+        assertEquals("S3", queryArg.getValue().getEntityIdList().get(0).getId());
+        verify(ngsiClient).queryContext(eq("http://orionhost:9999"), any(), queryArg.capture());
+        assertEquals(1, queryArg.getValue().getEntityIdList().size());
+        assertEquals("P1", queryArg.getValue().getEntityIdList().get(0).getId());
+    }
+
+    @Test
+    public void postQueryContextScatteredWithFailingUpstreams() throws Exception {
+
+        when(configuration.getUpstreamTimeout()).thenReturn(100L);
+
+        // S1 is provided by an application responding, S2 by one failing, S3 by one never responding, P1 is not registered
+        when(localRegistrations.findProvidingApplication(any(), any())).then(invocation -> {
+            String id = ((EntityId) invocation.getArguments()[0]).getId();
+            if (id.equals("S1")) {
+                return Collections.singletonList(new URI("http://iotagent1:1234")).iterator();
+            } else if (id.equals("S2")) {
+                return Collections.singletonList(new URI("http://iotagent2:1234")).iterator();
+            } else if (id.equals("S3")) {
+                return Collections.singletonList(new URI("http://iotagent3:1234")).iterator();
+            }
+            return Collections.emptyIterator();
+        });
+
+        SettableListenableFuture<QueryContextResponse> provider1Future = new SettableListenableFuture<>();
+        provider1Future.set(createQueryContextResponseTemperature());
+        SettableListenableFuture<QueryContextResponse> provider2Future = new SettableListenableFuture<>();
+        provider2Future.setException(new RuntimeException("connection refused"));
+        SettableListenableFuture<QueryContextResponse> brokerFuture = new SettableListenableFuture<>();
+        QueryContextResponse brokerResponse = new QueryContextResponse();
+        brokerResponse.setContextElementResponses(Collections.singletonList(new ContextElementResponse(createPressureContextElement(), new StatusCode(CodeEnum.CODE_200))));
+        brokerFuture.set(brokerResponse);
+        when(ngsiClient.queryContext(eq("http://iotagent1:1234"), any(), any())).thenReturn(provider1Future);
+        when(ngsiClient.queryContext(eq("http://iotagent2:1234"), any(), any())).thenReturn(provider2Future);
+        when(ngsiClient.queryContext(eq("http://iotagent3:1234"), any(), any())).thenReturn(new SettableListenableFuture<>());
+        when(ngsiClient.queryContext(eq("http://orionhost:9999"), any(), any())).thenReturn(brokerFuture);
+
+        QueryContext queryContext = new QueryContext(Arrays.asList(new EntityId("S1", "TempSensor", false),
+                new EntityId("S2", "TempSensor", false), new EntityId("S3", "TempSensor", false), new EntityId("P1", "PressureSensor", false)));
+
+        // The responses received are kept, the failing upstreams are reported on their entities
+        mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, queryContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.id").value("S1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].statusCode.code").value("200"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[1].contextElement.id").value("P1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[2].contextElement.id").value("S2"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[2].statusCode.code").value("500"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[2].statusCode.details").value("connection refused"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[3].contextElement.id").value("S3"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[3].statusCode.code").value("503"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[3].statusCode.details").value("no response from http://iotagent3:1234 after 100 ms"));
+    }
+
+    @Test
+    public void postQueryContextScatteredWithAllUpstreamsFailing() throws Exception {
+
+        when(localRegistrations.findProvidingApplication(any(), any())).then(invocation -> {
+            String id = ((EntityId) invocation.getArguments()[0]).getId();
+            return Collections.singletonList(new URI(id.equals("S1") ? "http://iotagent1:1234" : "http://iotagent2:1234")).iterator();
+        });
+        SettableListenableFuture<QueryContextResponse> failedFuture = new SettableListenableFuture<>();
+        failedFuture.setException(new RuntimeException("connection refused"));
+        when(ngsiClient.queryContext(any(), any(), any())).thenReturn(failedFuture);
+
+        QueryContext queryContext = new QueryContext(Arrays.asList(new EntityId("S1", "TempSensor", false), new EntityId("S2", "TempSensor", false)));
+
+        mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, queryContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode.code").value("500"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode.details").value("connection refused"));
+    }
+
+    @Test
+    @DirtiesContext
+    public void postQueryContextAnsweredFromCache() throws Exception {
+
+        when(configuration.getCacheTtl()).thenReturn(60000L);
+        when(configuration.getCacheMaxAttributes()).thenReturn(100);
+
+        when(providingApplication.hasNext()).thenReturn(false);
+        when(localRegistrations.findProvidingApplication(any(), any())).thenReturn(providingApplication);
+        when(matchedSubscriptions.hasNext()).thenReturn(false);
+        when(subscriptions.findSubscriptions(any(), any())).thenReturn(matchedSubscriptions);
+        when(ngsiClient.updateContext(any(), any(), any())).thenReturn(updateContextResponseListenableFuture);
+
+        mockMvc.perform(post("/v1/updateContext")
+                .content(json(mapper, createUpdateContextTempSensorAndPressure()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+
+        QueryContext queryContext = new QueryContext(Collections.singletonList(new EntityId("S1", "TempSensor", false)));
+        queryContext.setAttributeList(Collections.singletonList("pressure"));
+
+        mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, queryContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode").doesNotExist())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.id").value("S1"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.attributes[0].name").value("pressure"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.attributes[0].value").value("1015"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].statusCode.code").value("200"));
+
+        verify(ngsiClient, never()).queryContext(any(), any(), any());
+    }
+
+    @Test
+    @DirtiesContext
+    public void postQueryContextAfterUpdateThroughProvidingApplication() throws Exception {
+
+        when(configuration.getCacheTtl()).thenReturn(60000L);
+        when(configuration.getCacheMaxAttributes()).thenReturn(100);
+
+        when(providingApplication.hasNext()).thenReturn(true);
+        when(providingApplication.next()).thenReturn(new URI("http//iotagent:1234"));
+        when(localRegistrations.findProvidingApplication(any(), any())).thenReturn(providingApplication);
+        when(ngsiClient.queryContext(any(), any(), any())).thenReturn(queryContextResponseListenableFuture);
+        when(ngsiClient.updateContext(any(), any(), any())).thenReturn(updateContextResponseListenableFuture);
+
+        QueryContext queryContext = new QueryContext(Collections.singletonList(new EntityId("S1", "TempSensor", false)));
+        queryContext.setAttributeList(Collections.singletonList("temp"));
+
+        // The response of the providing application is cached
+        mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, queryContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.attributes[0].value").value("15.5"));
+        mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, queryContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+        verify(ngsiClient, times(1)).queryContext(any(), any(), any());
+
+        mockMvc.perform(post("/v1/updateContext")
+                .content(json(mapper, createUpdateContextTempSensor(10)))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+
+        // The value updated through the providing application is queried again from it
+        QueryContextResponse updatedResponse = new QueryContextResponse();
+        updatedResponse.setContextElementResponses(Collections.singletonList(
+                new ContextElementResponse(createTemperatureContextElement(10), new StatusCode(CodeEnum.CODE_200))));
+        when(queryContextResponseListenableFuture.get()).thenReturn(updatedResponse);
+        mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, queryContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.contextResponses[0].contextElement.attributes[0].value").value("25.5"));
+        verify(ngsiClient, times(2)).queryContext(any(), any(), any());
+    }
+
+    @Test
+    public void postQueryContextWithUpstreamTimeout() throws Exception {
+
+        when(configuration.getUpstreamTimeout()).thenReturn(100L);
+
+        //localRegistrations mock return always a providingApplication
+        when(providingApplication.hasNext()).thenReturn(true);
+        when(providingApplication.next()).thenReturn(new URI("http://iotagent:1234"));
+        when(localRegistrations.findProvidingApplication(any(), any())).thenReturn(providingApplication);
+
+        //the providing application never responds
+        when(ngsiClient.queryContext(any(), any(), any())).thenReturn(new SettableListenableFuture<>());
+
+        mockMvc.perform(post("/v1/queryContext")
+                .content(json(mapper, createQueryContextTemperature()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode.code").value("503"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode.reasonPhrase").value("upstream unavailable"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.errorCode.details").value("no response from http://iotagent:1234 after 100 ms"));
+    }
+
     @Test
     public void postQueryContextWithProvidingApplicationWithNullAttributes() throws Exception {
 
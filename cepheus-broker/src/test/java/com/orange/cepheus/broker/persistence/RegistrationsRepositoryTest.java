@@ -8,7 +8,9 @@
 
 package com.orange.cepheus.broker.persistence;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.orange.cepheus.broker.Application;
+import com.orange.cepheus.broker.Configuration;
 import com.orange.cepheus.broker.exception.RegistrationPersistenceException;
 import com.orange.cepheus.broker.exception.SubscriptionPersistenceException;
 import com.orange.cepheus.broker.model.Registration;
@@ -56,6 +58,12 @@ public class RegistrationsRepositoryTest {
     @Autowired
     protected JdbcTemplate jdbcTemplate;
 
+    @Autowired
+    Configuration configuration;
+
+    @Autowired
+    ObjectMapper mapper;
+
     @Before
     public void init() throws SQLException {
         jdbcTemplate.execute("delete from t_registrations");
@@ -143,7 +151,7 @@ public class RegistrationsRepositoryTest {
     public void getAllRegistrationsWithExceptionTest() throws URISyntaxException, RegistrationPersistenceException {
         thrown.expect(RegistrationPersistenceException.class);
         Instant expirationDate = Instant.now().plus(1, ChronoUnit.DAYS);
-        jdbcTemplate.update("insert into t_registrations(id,expirationDate,registerContext) values(?,?,?)", "12345", expirationDate.toString(), "aaaaaa");
+        jdbcTemplate.update("insert into t_registrations(id,expiration,registerContext) values(?,?,?)", "12345", expirationDate.toEpochMilli(), "aaaaaa");
         Map<String, Registration> registrations = registrationsRepository.getAllRegistrations();
     }
 
@@ -174,7 +182,80 @@ public class RegistrationsRepositoryTest {
     public void getRegistrationWithExceptionTest() throws URISyntaxException, RegistrationPersistenceException, EmptyResultDataAccessException {
         thrown.expect(RegistrationPersistenceException.class);
         Instant expirationDate = Instant.now().plus(1, ChronoUnit.DAYS);
-        jdbcTemplate.update("insert into t_registrations(id,expirationDate,registerContext) values(?,?,?)", "12345", expirationDate.toString(), "aaaaaa");
+        jdbcTemplate.update("insert into t_registrations(id,expiration,registerContext) values(?,?,?)", "12345", expirationDate.toEpochMilli(), "aaaaaa");
         Registration foundRegistration = registrationsRepository.getRegistration("12345");
     }
+
+    @Test
+    public void writeBehindRegistrationsTest() throws URISyntaxException, RegistrationPersistenceException {
+        configuration.setPersistenceDurability(Durability.ASYNC);
+        RegisterContext registerContext = createRegisterContextTemperature();
+        registerContext.setRegistrationId("12345");
+        Registration registration = new Registration(Instant.now().plus(1, ChronoUnit.DAYS), registerContext);
+        registrationsRepository.saveRegistration(registration);
+        registration.setExpirationDate(Instant.now().plus(2, ChronoUnit.DAYS));
+        registrationsRepository.updateRegistration(registration);
+
+        // Pending changes are visible before being written
+        Assert.assertEquals(0, rowCount());
+        Assert.assertEquals(registration.getExpirationDate(), registrationsRepository.getRegistration("12345").getExpirationDate());
+
+        registrationsRepository.flush();
+        Assert.assertEquals(1, rowCount());
+        Assert.assertEquals(registration.getExpirationDate(), registrationsRepository.getAllRegistrations().get("12345").getExpirationDate());
+
+        registrationsRepository.removeRegistration("12345");
+        Assert.assertEquals(1, rowCount());
+        thrown.expect(EmptyResultDataAccessException.class);
+        registrationsRepository.getRegistration("12345");
+    }
+
+    @Test
+    public void writeBehindFlushWhenFullTest() throws URISyntaxException, RegistrationPersistenceException {
+        configuration.setPersistenceDurability(Durability.ASYNC);
+        configuration.setPersistenceMaxPending(2);
+        for (String registrationId : new String[]{"12345", "12346"}) {
+            RegisterContext registerContext = createRegisterContextTemperature();
+            registerContext.setRegistrationId(registrationId);
+            registrationsRepository.saveRegistration(new Registration(Instant.now().plus(1, ChronoUnit.DAYS), registerContext));
+        }
+        Assert.assertEquals(2, rowCount());
+    }
+
+    @Test
+    public void removeExpiredRegistrationsTest() throws URISyntaxException, RegistrationPersistenceException {
+        RegisterContext registerContext = createRegisterContextTemperature();
+        registerContext.setRegistrationId("12345");
+        Instant expirationDate = Instant.now().minus(1, ChronoUnit.SECONDS);
+        registrationsRepository.saveRegistration(new Registration(expirationDate, registerContext));
+        RegisterContext registerContext2 = createRegisterContextTemperature();
+        registerContext2.setRegistrationId("12346");
+        registrationsRepository.saveRegistration(new Registration(Instant.now().plus(1, ChronoUnit.DAYS), registerContext2));
+
+        Assert.assertEquals(1, registrationsRepository.removeExpiredRegistrations(Instant.now()));
+        Assert.assertEquals(1, rowCount());
+        Assert.assertNotNull(registrationsRepository.getAllRegistrations().get("12346"));
+    }
+
+    @Test
+    public void migrateLegacySchemaTest() throws Exception {
+        jdbcTemplate.execute("drop table t_registrations");
+        jdbcTemplate.execute("create table t_registrations (id varchar primary key, expirationDate varchar not null, registerContext varchar not null)");
+        jdbcTemplate.execute("create unique index index_registrationId on t_registrations (id)");
+        RegisterContext registerContext = createRegisterContextTemperature();
+        registerContext.setRegistrationId("12345");
+        Instant expirationDate = Instant.now().plus(1, ChronoUnit.DAYS);
+        jdbcTemplate.update("insert into t_registrations(id,expirationDate,registerContext) values(?,?,?)", "12345", expirationDate.toString(), mapper.writeValueAsString(registerContext));
+
+        registrationsRepository.createTableOnStartup();
+
+        Map<String, Registration> registrations = registrationsRepository.getAllRegistrations();
+        Assert.assertEquals(1, registrations.size());
+        Assert.assertEquals(expirationDate, registrations.get("12345").getExpirationDate());
+        Assert.assertEquals(0, (int) jdbcTemplate.queryForObject("select count(*) from sqlite_master where name in ('t_registrations_legacy', 'index_registrationId')", Integer.class));
+    }
+
+    private int rowCount() {
+        return jdbcTemplate.queryForObject("select count(*) from t_registrations", Integer.class);
+    }
 }
@@ -8,7 +8,9 @@
 
 package com.orange.cepheus.broker.persistence;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.orange.cepheus.broker.Application;
+import com.orange.cepheus.broker.Configuration;
 import com.orange.cepheus.broker.exception.RegistrationPersistenceException;
 import com.orange.cepheus.broker.exception.SubscriptionPersistenceException;
 import com.orange.cepheus.broker.model.Registration;
@@ -34,6 +36,7 @@ import java.sql.SQLException;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.orange.cepheus.broker.Util.createSubscribeContextTemperature;
 
@@ -55,6 +58,12 @@ public class SubscriptionsRepositoryTest {
     @Autowired
     protected JdbcTemplate jdbcTemplate;
 
+    @Autowired
+    Configuration configuration;
+
+    @Autowired
+    ObjectMapper mapper;
+
     @Before
     public void init() throws SQLException {
         jdbcTemplate.execute("delete from t_subscriptions");
@@ -142,7 +151,86 @@ public class SubscriptionsRepositoryTest {
     public void getAllSubscriptionsWithExceptionTest() throws SubscriptionPersistenceException {
         thrown.expect(SubscriptionPersistenceException.class);
         Instant expirationDate = Instant.now().plus(1, ChronoUnit.DAYS);
-        jdbcTemplate.update("insert into t_subscriptions(id,expirationDate,subscribeContext) values(?,?,?)", "12345", expirationDate.toString(), "aaaaaa");
+        jdbcTemplate.update("insert into t_subscriptions(id,expiration,subscribeContext) values(?,?,?)", "12345", expirationDate.toEpochMilli(), "aaaaaa");
+        Map<String, Subscription> subscriptions = subscriptionsRepository.getAllSubscriptions();
+    }
+
+    @Test
+    public void writeBehindSubscriptionsTest() throws URISyntaxException, SubscriptionPersistenceException {
+        configuration.setPersistenceDurability(Durability.ASYNC);
+        subscriptionsRepository.saveSubscription(new Subscription("12345", Instant.now().plus(1, ChronoUnit.DAYS), createSubscribeContextTemperature()));
+        subscriptionsRepository.saveSubscription(new Subscription("12346", Instant.now().plus(1, ChronoUnit.DAYS), createSubscribeContextTemperature()));
+        subscriptionsRepository.removeSubscription("12345");
+        Assert.assertEquals(0, rowCount());
+
+        subscriptionsRepository.flush();
+        Assert.assertEquals(1, rowCount());
+        Assert.assertEquals(1, subscriptionsRepository.getAllSubscriptions().size());
+        Assert.assertNotNull(subscriptionsRepository.getAllSubscriptions().get("12346"));
+    }
+
+    @Test
+    public void loadSubscriptionsTest() throws Exception {
+        SubscribeContext subscribeContext = createSubscribeContextTemperature();
+        subscribeContext.setThrottling("PT1S");
+        subscriptionsRepository.saveSubscription(new Subscription("12345", Instant.now().plus(1, ChronoUnit.DAYS), subscribeContext));
+        subscriptionsRepository.saveSubscription(new Subscription("12346", Instant.now().minus(1, ChronoUnit.SECONDS), createSubscribeContextTemperature()));
+        jdbcTemplate.update("insert into t_subscriptions(id,expiration,subscribeContext) values(?,?,?)", "12347", Instant.now().plus(1, ChronoUnit.DAYS).toEpochMilli(), "{\"duration\":");
+
+        Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+        Map<String, String> throttlings = new ConcurrentHashMap<>();
+        int count = subscriptionsRepository.loadSubscriptions(Instant.now(), (subscription, entityIds, attributes, throttling) -> {
+            subscriptions.put(subscription.getSubscriptionId(), subscription);
+            throttlings.put(subscription.getSubscriptionId(), throttling);
+            Assert.assertEquals(1, entityIds.size());
+            Assert.assertEquals("Room1", entityIds.get(0).getId());
+            Assert.assertEquals(subscribeContext.getAttributeList(), attributes);
+        });
+
+        // The expired subscription is removed, the invalid one is ignored
+        Assert.assertEquals(1, count);
+        Assert.assertEquals("PT1S", throttlings.get("12345"));
+        Assert.assertEquals(2, rowCount());
+        Assert.assertEquals(subscribeContext.getReference(), subscriptions.get("12345").getSubscribeContext().getReference());
+    }
+
+    @Test
+    public void sqliteSettingsTest() {
+        // NORMAL
+        Assert.assertEquals(1, (int) jdbcTemplate.queryForObject("pragma synchronous", Integer.class));
+    }
+
+    @Test
+    public void removeExpiredSubscriptionsTest() throws URISyntaxException, SubscriptionPersistenceException {
+        SubscribeContext subscribeContext = createSubscribeContextTemperature();
+        Instant expirationDate = Instant.now().minus(1, ChronoUnit.SECONDS);
+        subscriptionsRepository.saveSubscription(new Subscription("12345", expirationDate, subscribeContext));
+        SubscribeContext subscribeContext2 = createSubscribeContextTemperature();
+        subscriptionsRepository.saveSubscription(new Subscription("12346", Instant.now().plus(1, ChronoUnit.DAYS), subscribeContext2));
+
+        Assert.assertEquals(1, subscriptionsRepository.removeExpiredSubscriptions(Instant.now()));
+        Assert.assertEquals(1, rowCount());
+        Assert.assertNotNull(subscriptionsRepository.getAllSubscriptions().get("12346"));
+    }
+
+    @Test
+    public void migrateLegacySchemaTest() throws Exception {
+        jdbcTemplate.execute("drop table t_subscriptions");
+        jdbcTemplate.execute("create table t_subscriptions (id varchar primary key, expirationDate varchar not null, subscribeContext varchar not null)");
+        jdbcTemplate.execute("create unique index index_subscriptionId on t_subscriptions (id)");
+        SubscribeContext subscribeContext = createSubscribeContextTemperature();
+        Instant expirationDate = Instant.now().plus(1, ChronoUnit.DAYS);
+        jdbcTemplate.update("insert into t_subscriptions(id,expirationDate,subscribeContext) values(?,?,?)", "12345", expirationDate.toString(), mapper.writeValueAsString(subscribeContext));
+
+        subscriptionsRepository.createTableOnStartup();
+
         Map<String, Subscription> subscriptions = subscriptionsRepository.getAllSubscriptions();
+        Assert.assertEquals(1, subscriptions.size());
+        Assert.assertEquals(expirationDate, subscriptions.get("12345").getExpirationDate());
+        Assert.assertEquals(0, (int) jdbcTemplate.queryForObject("select count(*) from sqlite_master where name in ('t_subscriptions_legacy', 'index_subscriptionId')", Integer.class));
+    }
+
+    private int rowCount() {
+        return jdbcTemplate.queryForObject("select count(*) from t_subscriptions", Integer.class);
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+package com.orange.cepheus.broker.persistence;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orange.cepheus.broker.Configuration;
+import com.orange.cepheus.broker.model.Subscription;
+import com.orange.ngsi.model.NotifyCondition;
+import com.orange.ngsi.model.NotifyConditionEnum;
+import com.orange.ngsi.model.SubscribeContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.orange.cepheus.broker.Util.createSubscribeContext;
+
+/**
+ * Compare the startup load of the subscriptions: full sequential decoding of all the rows (previous behavior)
+ * and lazy loading of the non expired rows. One subscription out of 10 is expired.
+ *
+ * Run with: java -cp target/test-classes:<test classpath> com.orange.cepheus.broker.persistence.SubscriptionsStartupBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SubscriptionsStartupBenchmark {
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    private File database;
+
+    private SingleConnectionDataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private ObjectMapper mapper;
+
+    private SubscriptionsRepository subscriptionsRepository;
+
+    private RequestTable table;
+
+    private List<RequestTable.Row> expiredRows;
+
+    @Setup
+    public void setup() throws Exception {
+        database = File.createTempFile("cepheus-broker-benchmark", ".db");
+        dataSource = new SingleConnectionDataSource("jdbc:sqlite:" + database.getPath(), true);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        mapper = new ObjectMapper();
+        subscriptionsRepository = new SubscriptionsRepository();
+        subscriptionsRepository.jdbcTemplate = jdbcTemplate;
+        ReflectionTestUtils.setField(subscriptionsRepository, "mapper", mapper);
+        ReflectionTestUtils.setField(subscriptionsRepository, "configuration", new Configuration());
+        ReflectionTestUtils.setField(subscriptionsRepository, "transactionManager", new DataSourceTransactionManager(dataSource));
+        subscriptionsRepository.createTableOnStartup();
+
+        table = (RequestTable) ReflectionTestUtils.getField(subscriptionsRepository, "table");
+        Instant now = Instant.now();
+        List<RequestTable.Row> rows = new ArrayList<>(size);
+        expiredRows = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            SubscribeContext subscribeContext = createSubscribeContext("Room" + i, "Room", false, "http://app" + i, "temp");
+            subscribeContext.setThrottling("PT1S");
+            subscribeContext.setNotifyConditionList(Collections.singletonList(new NotifyCondition(NotifyConditionEnum.ONCHANGE, Arrays.asList("temp", "humidity"))));
+            Instant expiration = i % 10 == 0 ? now.minus(1, ChronoUnit.HOURS) : now.plus(1, ChronoUnit.DAYS);
+            RequestTable.Row row = new RequestTable.Row("S" + i, expiration, mapper.writeValueAsString(subscribeContext));
+            rows.add(row);
+            if (i % 10 == 0) {
+                expiredRows.add(row);
+            }
+        }
+        table.inTransaction(() -> table.upsert(rows));
+    }
+
+    /**
+     * Restore the expired rows removed by the previous lazy load
+     */
+    @Setup(Level.Iteration)
+    public void restoreExpiredRows() {
+        table.inTransaction(() -> table.upsert(expiredRows));
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataSource.destroy();
+        database.delete();
+    }
+
+    @Benchmark
+    public Map<String, Subscription> eagerLoad() throws Exception {
+        Map<String, Subscription> subscriptions = new HashMap<>();
+        jdbcTemplate.query("select id, expiration, subscribeContext from t_subscriptions", rs -> {
+            try {
+                String id = rs.getString(1);
+                subscriptions.put(id, new Subscription(id, Instant.ofEpochMilli(rs.getLong(2)), mapper.readValue(rs.getString(3), SubscribeContext.class)));
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+        });
+        return subscriptions;
+    }
+
+    @Benchmark
+    public int lazyLoad() throws Exception {
+        AtomicInteger entities = new AtomicInteger();
+        int count = subscriptionsRepository.loadSubscriptions(Instant.now(),
+                (subscription, entityIds, attributes, throttling) -> entities.addAndGet(entityIds.size()));
+        return count + entities.get();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SubscriptionsStartupBenchmark.class.getSimpleName()).build()).run();
+    }
+}
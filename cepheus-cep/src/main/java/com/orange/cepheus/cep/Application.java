@@ -9,7 +9,9 @@
 package com.orange.cepheus.cep;
 
 import com.orange.cepheus.cep.persistence.JsonPersistence;
+import com.orange.cepheus.common.CompactEncoding;
 import com.orange.cepheus.cep.persistence.Persistence;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
 import org.springframework.context.annotation.Bean;
@@ -40,4 +42,11 @@ public class Application {
     public Persistence persistence() {
         return new JsonPersistence();
     }
+
+    @Bean
+    public CompactEncoding compactEncoding(@Value("${ngsi.compact:false}") boolean compact) {
+        CompactEncoding compactEncoding = new CompactEncoding();
+        compactEncoding.setCompact(compact);
+        return compactEncoding;
+    }
 }
@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.util.ClassUtils;
 
 import javax.annotation.PostConstruct;
 import java.math.BigInteger;
@@ -105,14 +106,14 @@ public class EsperEventProcessor implements ComplexEventProcessor {
             if (previousConfiguration != null) {
                 previousEventTypes = Collections.unmodifiableList(previousConfiguration.getEventTypeIns());
             }
-            this.updateEventTypes(previousEventTypes, newEventTypes, operations);
+            this.updateEventTypes(previousEventTypes, newEventTypes, operations, eventMapper.isObjectArray());
 
             // Update outgoing event types
             newEventTypes = Collections.unmodifiableList(configuration.getEventTypeOuts());
             if (previousConfiguration != null) {
                 previousEventTypes = Collections.unmodifiableList(previousConfiguration.getEventTypeOuts());
             }
-            this.updateEventTypes(previousEventTypes, newEventTypes, operations);
+            this.updateEventTypes(previousEventTypes, newEventTypes, operations, false);
 
             // Update the statements
             this.updateStatements(configuration.getStatements());
@@ -151,8 +152,8 @@ public class EsperEventProcessor implements ComplexEventProcessor {
             // Adding back in/out events, then statements
             Collection<EventType> inEventTypes = Collections.unmodifiableList(previousConfiguration.getEventTypeIns());
             Collection<EventType> outEventTypes = Collections.unmodifiableList(previousConfiguration.getEventTypeOuts());
-            this.updateEventTypes(Collections.emptyList(), inEventTypes, operations);
-            this.updateEventTypes(Collections.emptyList(), outEventTypes, operations);
+            this.updateEventTypes(Collections.emptyList(), inEventTypes, operations, eventMapper.isObjectArray());
+            this.updateEventTypes(Collections.emptyList(), outEventTypes, operations, false);
             this.updateStatements(previousConfiguration.getStatements());
 
         } catch (Exception e) {
@@ -182,15 +183,47 @@ public class EsperEventProcessor implements ComplexEventProcessor {
      * @throws EventProcessingException
      */
     public void processEvent(Event event) throws EventProcessingException {
-        logger.info("EventIn: {}", event.toString());
+        logger.info("EventIn: {}", event);
 
         try {
-            this.epServiceProvider.getEPRuntime().sendEvent(event.getValues(), event.getType());
+            if (event.getPropertyValues() != null) {
+                this.epServiceProvider.getEPRuntime().sendEvent(propertyValuesOf(event), event.getType());
+            } else {
+                this.epServiceProvider.getEPRuntime().sendEvent(event.getValues(), event.getType());
+            }
         } catch (EPException|EPServiceDestroyedException e) {
             throw new EventProcessingException(e.getMessage());
         }
     }
 
+    /**
+     * The Esper event types and the mapping plans of the EventMapper are not updated atomically,
+     * and queued events might have been mapped with the plan of a previous configuration.
+     * The values of an object-array event are then realigned by name on the properties of the current Esper event type,
+     * dropping the properties no longer defined or whose type changed.
+     * @param event an object-array event
+     * @return the values in the property order of the current Esper event type
+     */
+    private Object[] propertyValuesOf(Event event) {
+        com.espertech.esper.client.EventType eventType = epServiceProvider.getEPAdministrator().getConfiguration().getEventType(event.getType());
+        if (eventType == null || Arrays.equals(eventType.getPropertyNames(), event.getPropertyNames())) {
+            // Unknown types are rejected by Esper
+            return event.getPropertyValues();
+        }
+
+        logger.debug("Remapping event {} mapped with a previous configuration", event);
+        Map<String, Object> values = event.getValues();
+        String[] propertyNames = eventType.getPropertyNames();
+        Object[] propertyValues = new Object[propertyNames.length];
+        for (int i = 0; i < propertyNames.length; i++) {
+            Object value = values.get(propertyNames[i]);
+            if (value != null && ClassUtils.resolvePrimitiveIfNecessary(eventType.getPropertyType(propertyNames[i])).isInstance(value)) {
+                propertyValues[i] = value;
+            }
+        }
+        return propertyValues;
+    }
+
     /**
      * Return a list of Attribute for a given even type. This is mainly useful for testing.
      * @param eventTypeName
@@ -251,8 +284,9 @@ public class EsperEventProcessor implements ComplexEventProcessor {
      * @param oldList the previous list of event types
      * @param newList the new list of event types
      * @param operations the CEP configuration
+     * @param objectArray true to add object-array event types instead of Map event types
      */
-    private void updateEventTypes(Collection<EventType> oldList, Collection<EventType> newList, ConfigurationOperations operations) {
+    private void updateEventTypes(Collection<EventType> oldList, Collection<EventType> newList, ConfigurationOperations operations, boolean objectArray) {
         List<EventType> eventTypesToRemove = new LinkedList<>(oldList);
         eventTypesToRemove.removeAll(newList);
 
@@ -283,7 +317,13 @@ public class EsperEventProcessor implements ComplexEventProcessor {
             logger.info("Add new event type: {}", eventType);
             // Add event type mapped to esper representation
             String eventTypeName = eventType.getType();
-            operations.addEventType(eventTypeName, eventMapper.esperTypeFromEventType(eventType));
+            Map<String, Object> properties = eventMapper.esperTypeFromEventType(eventType);
+            if (objectArray) {
+                // The properties keep the order of the object-array events built by the EventMapper
+                operations.addEventType(eventTypeName, properties.keySet().toArray(new String[properties.size()]), properties.values().toArray());
+            } else {
+                operations.addEventType(eventTypeName, properties);
+            }
         }
     }
 
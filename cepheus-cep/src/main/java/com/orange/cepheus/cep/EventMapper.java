@@ -1,7 +1,6 @@
 package com.orange.cepheus.cep;
 
 import com.espertech.esper.client.EventBean;
-import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
 import com.jayway.jsonpath.*;
 import com.orange.cepheus.cep.exception.ConfigurationException;
 import com.orange.cepheus.cep.exception.EventProcessingException;
@@ -11,12 +10,13 @@ import com.orange.cepheus.cep.model.Configuration;
 import com.orange.cepheus.geo.GeoUtil;
 import com.orange.ngsi.model.*;
 import com.vividsolutions.jts.geom.Geometry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Scope;
 import org.springframework.context.annotation.ScopedProxyMode;
 import org.springframework.stereotype.Component;
 
-import java.text.ParseException;
 import java.util.*;
+import java.util.function.Function;
 
 /**
  * Map a NGSI ContextElement to an CEP event
@@ -24,57 +24,94 @@ import java.util.*;
 @Component
 public class EventMapper {
 
-    private Map<String, JsonPath> jsonpaths = new HashMap<>();
+    /**
+     * Mapping plans of the incoming event types, by event type.
+     * Swapped as a whole on configuration updates while the notifications are mapped.
+     */
+    private volatile Map<String, MappingPlan> plans = new HashMap<>();
+
+    private final Iso8601Codec dateCodec = new Iso8601Codec();
+
+    /**
+     * Map the incoming events to Esper object-array events instead of Map events
+     */
+    @Value("${esper.objectArray:false}")
+    private boolean objectArray;
 
-    private ISO8601DateFormat iso8691DateFormat = new ISO8601DateFormat();
+    /**
+     * Map the date attributes to epoch milliseconds (long) properties instead of java.util.Date
+     */
+    @Value("${esper.epochMillis:false}")
+    private boolean epochMillis;
 
     /**
-     * Compile JSON paths from Attributes and Metadata of the new configuration
+     * Compile the mapping plans of the incoming event types of the new configuration:
+     * property names, value converters and JSON paths of the Attributes and Metadata are resolved once here
+     * instead of on every event.
      * @param configuration the new configuration
      */
     public void setConfiguration(Configuration configuration) throws ConfigurationException {
-        Map<String, JsonPath> jsonpaths = new HashMap<>();
+        Map<String, MappingPlan> plans = new HashMap<>();
+        Map<String, EventType> eventTypes = new HashMap<>();
 
         for (EventTypeIn eventTypeIn : configuration.getEventTypeIns()) {
+            // Event types sharing the same type aggregate their attributes in the same plan
+            MappingPlan plan = plans.computeIfAbsent(eventTypeIn.getType(), type -> new MappingPlan());
+            EventType eventType = eventTypes.computeIfAbsent(eventTypeIn.getType(), type -> new EventType(null, type, false));
             for (Attribute attribute : eventTypeIn.getAttributes()) {
-                String jsonpath = attribute.getJsonpath();
-                if (jsonpath != null) {
-                    // JsonPath caches paths internally, no need to reuse them from one configuration to another.
-                    // Aggregate path by event type / attribute name
-                    try {
-                        jsonpaths.put(eventTypeIn.getType() + "/" + attribute.getName(), JsonPath.compile(jsonpath));
-                    } catch (IllegalArgumentException|InvalidPathException e) {
-                        throw new ConfigurationException("invalid jsonpath expression for attribute "+attribute.getName(), e);
-                    }
-                }
+                eventType.addAttribute(attribute);
+                AttributeMapping attributeMapping = new AttributeMapping(attribute.getName(), attribute.getType(),
+                        compile(attribute.getJsonpath(), "attribute " + attribute.getName()));
 
                 for (Metadata metadata : attribute.getMetadata()) {
-                    jsonpath = metadata.getJsonpath();
-                    if (jsonpath != null) {
-                        // Same as attribute but with metadata name
-                        try {
-                            jsonpaths.put(eventTypeIn.getType() + "/" + attribute.getName() + "/" + metadata.getName(), JsonPath.compile(jsonpath));
-                        } catch (IllegalArgumentException|InvalidPathException e) {
-                            throw new ConfigurationException("invalid jsonpath expression for metadata "+attribute.getName()+"/"+metadata.getName(), e);
-                        }
-                    }
+                    // For metadata, join with attribute name using a '_'
+                    String property = attribute.getName() + "_" + metadata.getName();
+                    attributeMapping.metadata.put(metadata.getName(), new PropertyMapping(property, metadata.getName(), metadata.getType(),
+                            compile(metadata.getJsonpath(), "metadata " + attribute.getName() + "/" + metadata.getName())));
                 }
+                plan.attributes.put(attribute.getName(), attributeMapping);
             }
         }
+        // Resolve the slots of the properties in the order of the Esper event type
+        for (Map.Entry<String, MappingPlan> entry : plans.entrySet()) {
+            entry.getValue().setProperties(esperTypeFromEventType(eventTypes.get(entry.getKey())).keySet());
+        }
 
-        this.jsonpaths = jsonpaths;
+        this.plans = plans;
+    }
+
+    public boolean isObjectArray() {
+        return objectArray;
+    }
+
+    /**
+     * @param jsonpath the JSON path expression, can be null
+     * @param description the attribute or metadata of the expression, used for error handling
+     * @return the compiled JSON path or null if none
+     */
+    private JsonPath compile(String jsonpath, String description) throws ConfigurationException {
+        if (jsonpath == null) {
+            return null;
+        }
+        // JsonPath caches paths internally, no need to reuse them from one configuration to another.
+        try {
+            return JsonPath.compile(jsonpath);
+        } catch (IllegalArgumentException|InvalidPathException e) {
+            throw new ConfigurationException("invalid jsonpath expression for " + description, e);
+        }
     }
 
     /**
      * Map an EventType go an Esper event type.
      * All properties (metadata, attributes and id) are defined at the same level.
      * Collisions might then occur, but id and then attributes will override metadata properties.
+     * The properties are sorted by name, giving the fixed property order of the object-array event types.
      * @param eventType the Configuration event type
      * @return a map of types
      */
     public Map<String, Object> esperTypeFromEventType(EventType eventType) {
         // Add all metadata
-        Map<String, Object> properties = new HashMap<>();
+        Map<String, Object> properties = new TreeMap<>();
         for (Attribute attribute : eventType.getAttributes()) {
             // For metadata, join with attribute name using a '_'
             for (Metadata meta : attribute.getMetadata()) {
@@ -93,6 +130,7 @@ public class EventMapper {
      * Convert a NGSI Context Element to an Esper event.
      * All properties (metadata, attributes and id) are defined at the same level.
      * Collisions might then occur, but id and then attributes will override metadata properties.
+     * When object-array events are enabled, the events of the configured types only hold the properties of their Esper type.
      * @param contextElement the NGSI Context Element
      * @return an event to process
      * @throws EventProcessingException if the conversion fails
@@ -100,56 +138,99 @@ public class EventMapper {
     public Event eventFromContextElement(ContextElement contextElement) throws EventProcessingException, TypeNotFoundException {
         String eventId = contextElement.getEntityId().getId();
         String eventType = contextElement.getEntityId().getType();
-
-        Event event = new Event(eventType);
-
-        // Add metadata values first
-        for(ContextAttribute contextAttribute : contextElement.getContextAttributeList()) {
-            String attrName = contextAttribute.getName();
-            for (ContextMetadata contextMetada : contextAttribute.getMetadata()) {
-                String name = contextMetada.getName();
-                String type = contextMetada.getType();
-
-                Object value = contextMetada.getValue();
-
-                // Extract value from jsonpath if any
-                JsonPath jsonPath = jsonpaths.get(eventType + "/" + attrName + "/" + name);
-                if (jsonPath != null) {
-                    value = jsonPath.read(value);
-                }
-
-                value = valueForType(value, type, name);
-                event.addValue(attrName + "_" + name, value);
-            }
+        List<ContextAttribute> contextAttributes = contextElement.getContextAttributeList();
+
+        // Types not defined in the configuration have no plan, only their attributes are mapped without conversion plan
+        MappingPlan plan = plans.get(eventType);
+        Event event;
+        Object[] slots = null;
+        Map<String, Object> values = null;
+        if (objectArray && plan != null) {
+            slots = new Object[plan.properties.length];
+            event = new Event(eventType, plan.properties, slots);
+        } else {
+            event = new Event(eventType, plan != null ? plan.properties.length : contextAttributes.size() + 1);
+            values = event.getValues();
         }
 
-        // Override with attributes values
-        for(ContextAttribute contextAttribute : contextElement.getContextAttributeList()) {
+        for (int i = 0; i < contextAttributes.size(); i++) {
+            ContextAttribute contextAttribute = contextAttributes.get(i);
             String name = contextAttribute.getName();
-            String type = contextAttribute.getType();
-
-            Object value = contextAttribute.getValue();
+            AttributeMapping attributeMapping = plan != null ? plan.attributes.get(name) : null;
+            if (slots != null && attributeMapping == null) {
+                // Not a property of the object-array event type
+                continue;
+            }
 
-            // Extract value from jsonpath if any
-            JsonPath jsonPath = jsonpaths.get(eventType + "/" + name);
-            if (jsonPath != null) {
-                value = jsonPath.read(value);
+            // Metadata values never override the attribute values
+            for (ContextMetadata contextMetadata : contextAttribute.getMetadata()) {
+                String metaName = contextMetadata.getName();
+                PropertyMapping metadataMapping = attributeMapping != null ? attributeMapping.metadata.get(metaName) : null;
+                Object value;
+                Object previous;
+                if (slots != null) {
+                    if (metadataMapping == null) {
+                        continue;
+                    }
+                    value = metadataMapping.value(contextMetadata.getValue(), contextMetadata.getType());
+                    previous = slots[metadataMapping.slot];
+                    if (previous == null || !isAttributeBefore(contextAttributes, i, metadataMapping.property)) {
+                        slots[metadataMapping.slot] = value;
+                    }
+                } else {
+                    String property;
+                    if (metadataMapping != null) {
+                        property = metadataMapping.property;
+                        value = metadataMapping.value(contextMetadata.getValue(), contextMetadata.getType());
+                    } else {
+                        property = name + "_" + metaName;
+                        value = valueForType(contextMetadata.getValue(), contextMetadata.getType(), metaName);
+                    }
+                    previous = values.put(property, value);
+                    if (previous != null && isAttributeBefore(contextAttributes, i, property)) {
+                        values.put(property, previous);
+                    }
+                }
             }
 
-            value = valueForType(value, type, name);
+            Object value;
+            if (attributeMapping != null) {
+                value = attributeMapping.value(contextAttribute.getValue(), contextAttribute.getType());
+            } else {
+                value = valueForType(contextAttribute.getValue(), contextAttribute.getType(), name);
+            }
             if (value == null) {
                 throw new EventProcessingException("Value cannot be null for attribute "+name);
             }
-
-            event.addValue(name, value);
+            if (slots != null) {
+                slots[attributeMapping.slot] = value;
+            } else {
+                values.put(name, value);
+            }
         }
 
         // Override with id
-        event.addValue("id", eventId);
+        if (slots != null) {
+            slots[plan.idSlot] = eventId;
+        } else {
+            values.put("id", eventId);
+        }
 
         return event;
     }
 
+    /**
+     * @return true if an attribute named as the property comes before the given index
+     */
+    private static boolean isAttributeBefore(List<ContextAttribute> contextAttributes, int index, String property) {
+        for (int i = 0; i < index; i++) {
+            if (property.equals(contextAttributes.get(i).getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Convert an Esper event back to a ContextElement.
      * @param eventBean the Esper event
@@ -199,7 +280,7 @@ public class EventMapper {
 
     /**
      * Convert an EventBean property back to an ContextElement attribute.
-     * Convert GeoPoint and Date to special string representation
+     * Convert GeoPoint and Date (or epoch milliseconds) to special string representation
      * @param value the value property to convert
      * @param type the type of the ContextAttribute
      * @return the ContextAttribute value
@@ -208,7 +289,9 @@ public class EventMapper {
         if ("geo:point".equals(type) && value instanceof Geometry) {
             return GeoUtil.toNGSIString((Geometry) value);
         } else if ("date".equals(type) && value instanceof Date) {
-            return iso8691DateFormat.format((Date) value);
+            return dateCodec.format(((Date) value).getTime());
+        } else if ("date".equals(type) && value instanceof Long) {
+            return dateCodec.format((Long) value);
         }
         return value;
     }
@@ -233,7 +316,7 @@ public class EventMapper {
             case "boolean":
                 return boolean.class;
             case "date":
-                return Date.class;
+                return epochMillis ? long.class : Date.class;
             case "geo:point":
                 return Geometry.class;
             default:
@@ -259,42 +342,153 @@ public class EventMapper {
         return value;
     }
 
-    /**
-     * @param value the value to convert
-     * @param type NGSI type
-     * @param name used for error handling
-     * @return a Java Object for given value
-     * @throws EventProcessingException if the conversion fails
-     */
     private Object valueForString(String value, String type, String name) throws EventProcessingException {
         // when type is not defined, handle as string
         if (type == null) {
             return value;
         }
+        return converterForType(type).convert(value, name);
+    }
 
+    /**
+     * @param type NGSI type
+     * @return the converter of the string values of the given type
+     */
+    private Converter converterForType(String type) {
+        switch (type) {
+            case "boolean":
+                return (value, name) -> Boolean.valueOf(value);
+            case "int":
+                return (value, name) -> parse(NumberParser::parseInt, value, name);
+            case "long":
+                return (value, name) -> parse(NumberParser::parseLong, value, name);
+            case "float":
+                return (value, name) -> parse(NumberParser::parseFloat, value, name);
+            case "double":
+                return (value, name) -> parse(NumberParser::parseDouble, value, name);
+            case "date":
+                if (epochMillis) {
+                    return (value, name) -> parse(dateCodec::parse, value, name);
+                }
+                return (value, name) -> parse(date -> new Date(dateCodec.parse(date)), value, name);
+            case "geo:point":
+                return (value, name) -> parse(GeoUtil::parseNGSIString, value, name);
+            default:
+                return (value, name) -> value;
+        }
+    }
+
+    private static Object parse(Function<String, Object> parser, String value, String name) throws EventProcessingException {
         try {
-            switch (type) {
-                case "string":
-                    return value;
-                case "boolean":
-                    return Boolean.valueOf(value);
-                case "int":
-                    return Integer.valueOf(value);
-                case "long":
-                    return Long.valueOf(value);
-                case "float":
-                    return Float.valueOf(value);
-                case "double":
-                    return Double.valueOf(value);
-                case "date":
-                    return iso8691DateFormat.parse(value);
-                case "geo:point":
-                    return GeoUtil.parseNGSIString(value);
-                default:
-                    return value;
-            }
-        } catch (IllegalArgumentException|ParseException e) {
+            return parser.apply(value);
+        } catch (IllegalArgumentException e) {
             throw new EventProcessingException("Failed to parse value "+value+" for attribute "+name, e);
         }
     }
+
+    /**
+     * Conversion of the string value of an attribute or a metadata
+     */
+    @FunctionalInterface
+    private interface Converter {
+        Object convert(String value, String name) throws EventProcessingException;
+    }
+
+    /**
+     * Mapping of the attributes of an incoming event type, by attribute name
+     */
+    private static class MappingPlan {
+
+        final Map<String, AttributeMapping> attributes = new HashMap<>();
+
+        /**
+         * Esper properties of the event type, in the order of the object-array event type
+         */
+        String[] properties;
+
+        int idSlot;
+
+        /**
+         * Resolve the slots of the attributes and metadata
+         * @param properties the properties of the Esper event type
+         */
+        void setProperties(Collection<String> properties) {
+            this.properties = properties.toArray(new String[properties.size()]);
+            Map<String, Integer> slots = new HashMap<>();
+            for (int i = 0; i < this.properties.length; i++) {
+                slots.put(this.properties[i], i);
+            }
+            idSlot = slots.get("id");
+            for (AttributeMapping attributeMapping : attributes.values()) {
+                attributeMapping.slot = slots.get(attributeMapping.property);
+                for (PropertyMapping metadataMapping : attributeMapping.metadata.values()) {
+                    metadataMapping.slot = slots.get(metadataMapping.property);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mapping of an attribute or a metadata to an Esper property
+     */
+    private class PropertyMapping {
+
+        final String property;
+
+        /**
+         * Name of the attribute or metadata, used for error handling
+         */
+        final String name;
+
+        final String type;
+
+        final JsonPath jsonPath;
+
+        final Converter converter;
+
+        /**
+         * Index of the property in the object-array events
+         */
+        int slot;
+
+        PropertyMapping(String property, String name, String type, JsonPath jsonPath) {
+            this.property = property;
+            this.name = name;
+            this.type = type;
+            this.jsonPath = jsonPath;
+            this.converter = type != null ? converterForType(type) : null;
+        }
+
+        /**
+         * @param value the NGSI value
+         * @param ngsiType the NGSI type of the value
+         * @return the value of the property
+         */
+        Object value(Object value, String ngsiType) throws EventProcessingException {
+            // Extract value from jsonpath if any
+            if (jsonPath != null) {
+                value = jsonPath.read(value);
+            }
+            if (value instanceof String && ngsiType != null) {
+                // the converter is resolved for the configured type, values of another NGSI type are converted by their own type
+                if (ngsiType.equals(type)) {
+                    return converter.convert((String) value, name);
+                }
+                return valueForString((String) value, ngsiType, name);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Mapping of an attribute with its metadata, by metadata name
+     */
+    private class AttributeMapping extends PropertyMapping {
+
+        final Map<String, PropertyMapping> metadata = new HashMap<>();
+
+        AttributeMapping(String name, String type, JsonPath jsonPath) {
+            super(name, name, type, jsonPath);
+        }
+    }
 }
@@ -11,6 +11,7 @@ package com.orange.cepheus.cep;
 import com.espertech.esper.client.*;
 import com.orange.cepheus.cep.model.*;
 import com.orange.cepheus.cep.model.Configuration;
+import com.orange.cepheus.common.CompactEncoding;
 import com.orange.ngsi.client.NgsiClient;
 import com.orange.ngsi.model.*;
 import org.slf4j.Logger;
@@ -37,6 +38,9 @@ public class EventSinkListener implements StatementAwareUpdateListener {
     @Autowired
     private EventMapper eventMapper;
 
+    @Autowired
+    private CompactEncoding compactEncoding;
+
     private Configuration configuration;
 
     /**
@@ -144,6 +148,6 @@ public class EventSinkListener implements StatementAwareUpdateListener {
         if (broker.getAuthToken() != null) {
             httpHeaders.add("X-Auth-Token", broker.getAuthToken());
         }
-        return httpHeaders;
+        return compactEncoding.headers(broker.getUrl(), httpHeaders);
     }
 }
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.exception.EventProcessingException;
+import com.orange.cepheus.cep.exception.QueueFullException;
+import com.orange.cepheus.cep.model.Event;
+import com.orange.cepheus.cep.tenant.TenantFilter;
+import com.orange.cepheus.cep.tenant.TenantScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional asynchronous ingestion of the notified events.
+ *
+ * When ingestion.async is enabled, the events of the notifications are queued once mapped,
+ * and the notifications are acknowledged without waiting for Esper. Each tenant has a bounded queue (a ring buffer)
+ * consumed by a dedicated worker thread, which keeps the order of the events of a tenant.
+ * When the queue of a tenant is full, the notifications are either blocked until there is room (block),
+ * the events dropped (shed), or the notifications rejected with a 503 Service Unavailable (reject).
+ * A notification is only rejected when its events do not all fit in the queue, none of them being queued then.
+ *
+ * On shutdown, the notifications are rejected and the workers process the events already queued before stopping.
+ * The queue of a tenant is discarded with its pending events when the configuration of the tenant is removed.
+ */
+@Component
+public class IngestionQueue {
+
+    private static Logger logger = LoggerFactory.getLogger(IngestionQueue.class);
+
+    /**
+     * Maximum number of events processed by a worker between two metrics updates
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Delay (in milliseconds) after which an idle worker checks whether it must stop
+     */
+    private static final long POLL_DELAY = 500;
+
+    /**
+     * Maximum time (in milliseconds) given to the workers to process the queued events on shutdown
+     */
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+
+    /**
+     * Behavior when the queue of a tenant is full
+     */
+    public enum Backpressure {
+        BLOCK, SHED, REJECT
+    }
+
+    /**
+     * Event queued with the tenant context of the notification
+     */
+    private static class QueuedEvent {
+
+        final Event event;
+
+        final TenantScope.Context tenantContext;
+
+        QueuedEvent(Event event, TenantScope.Context tenantContext) {
+            this.event = event;
+            this.tenantContext = tenantContext;
+        }
+    }
+
+    @Value("${ingestion.async:false}")
+    private boolean async;
+
+    @Value("${ingestion.capacity:10000}")
+    private int capacity;
+
+    @Value("${ingestion.backpressure:block}")
+    private String backpressureValue;
+
+    @Value("${endpoints.metrics.enabled:${endpoints.enabled:false}}")
+    private boolean collectMetrics;
+
+    /**
+     * This bean is only injected in multi tenant mode.
+     */
+    @Autowired(required = false)
+    private TenantScope tenantScope;
+
+    @Autowired
+    private ComplexEventProcessor complexEventProcessor;
+
+    @Autowired
+    private GaugeService gaugeService;
+
+    private Backpressure backpressure;
+
+    /**
+     * Queue of each tenant, key: tenantId
+     */
+    private final ConcurrentMap<String, TenantQueue> queues = new ConcurrentHashMap<>();
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    protected void init() {
+        backpressure = Backpressure.valueOf(backpressureValue.trim().toUpperCase());
+        if (async) {
+            logger.info("Asynchronous ingestion of the notified events, capacity {} per tenant, {} when full", capacity, backpressure);
+        }
+    }
+
+    /**
+     * @return true if the notified events are processed asynchronously
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * Queue an event for the current tenant, to be processed by the worker of the tenant
+     * @param event the event
+     * @throws QueueFullException when the queue of the tenant is full and the backpressure is reject, or on shutdown
+     */
+    public void enqueue(Event event) throws QueueFullException {
+        enqueueAll(Collections.singletonList(event));
+    }
+
+    /**
+     * Queue the events of a notification for the current tenant, to be processed by the worker of the tenant.
+     * When the backpressure is reject, either all the events are queued or none of them,
+     * so that a rejected notification can be retried without processing some of its events twice.
+     * @param events the events of the notification
+     * @throws QueueFullException when the queue of the tenant is full and the backpressure is reject, or on shutdown
+     */
+    public void enqueueAll(List<Event> events) throws QueueFullException {
+        if (!running) {
+            throw new QueueFullException("Ingestion queue is shut down");
+        }
+        String tenantId = tenantScope != null ? tenantScope.getConversationId() : TenantFilter.DEFAULT_TENANTID;
+        TenantQueue queue = queues.computeIfAbsent(tenantId, TenantQueue::new);
+        TenantScope.Context tenantContext = TenantScope.getTenantContext();
+        List<QueuedEvent> queuedEvents = new ArrayList<>(events.size());
+        for (Event event : events) {
+            queuedEvents.add(new QueuedEvent(event, tenantContext));
+        }
+        queue.offer(queuedEvents);
+    }
+
+    /**
+     * @param tenantId the id of the tenant
+     * @return the number of events waiting in the queue of the tenant
+     */
+    public int getQueueSize(String tenantId) {
+        TenantQueue queue = queues.get(tenantId);
+        return queue != null ? queue.events.size() : 0;
+    }
+
+    /**
+     * @param tenantId the id of the tenant
+     * @return the number of events of the tenant dropped as the queue was full
+     */
+    public long getDroppedCount(String tenantId) {
+        TenantQueue queue = queues.get(tenantId);
+        return queue != null ? queue.dropped.get() : 0;
+    }
+
+    /**
+     * Discard the queue of a tenant and its pending events, when the configuration of the tenant is removed
+     * @param tenantId the id of the tenant
+     */
+    public void removeTenant(String tenantId) {
+        TenantQueue queue = queues.remove(tenantId);
+        if (queue != null) {
+            queue.removed = true;
+            if (!queue.events.isEmpty()) {
+                logger.warn("Dropping {} queued events of removed tenant {}", queue.events.size(), tenantId);
+            }
+            queue.events.clear();
+        }
+    }
+
+    /**
+     * Stop accepting events and let the workers process the queued events
+     */
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        for (TenantQueue queue : queues.values()) {
+            try {
+                queue.worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (queue.worker.isAlive()) {
+                logger.warn("Dropping {} queued events of tenant {} on shutdown", queue.events.size(), queue.tenantId);
+                queue.worker.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Bounded queue of a tenant and its worker thread
+     */
+    private class TenantQueue implements Runnable {
+
+        private final String tenantId;
+
+        private final BlockingQueue<QueuedEvent> events = new ArrayBlockingQueue<>(capacity);
+
+        private final AtomicLong dropped = new AtomicLong();
+
+        private final Thread worker;
+
+        /**
+         * Set when the queue is full, to only log once when shedding
+         */
+        private volatile boolean full;
+
+        /**
+         * Set when the tenant is removed, the worker stops without processing the pending events
+         */
+        private volatile boolean removed;
+
+        TenantQueue(String tenantId) {
+            this.tenantId = tenantId;
+            worker = new Thread(this, "ingestion-" + tenantId);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        void offer(List<QueuedEvent> queuedEvents) throws QueueFullException {
+            if (backpressure == Backpressure.REJECT) {
+                admit(queuedEvents);
+                return;
+            }
+            for (QueuedEvent queuedEvent : queuedEvents) {
+                if (events.offer(queuedEvent)) {
+                    if (full) {
+                        full = false;
+                    }
+                } else if (backpressure == Backpressure.BLOCK) {
+                    try {
+                        events.put(queuedEvent);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new QueueFullException("Interrupted while waiting for the ingestion queue of tenant " + tenantId);
+                    }
+                } else {
+                    dropped.incrementAndGet();
+                    if (!full) {
+                        full = true;
+                        logger.warn("Ingestion queue of tenant {} is full, dropping the events", tenantId);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Queue all the events or none of them. The producers are serialized so that the room checked is still
+         * available when queuing, as the worker can only free some.
+         * The events of a notification larger than the queue are admitted once the queue is empty,
+         * the ones beyond the capacity being dropped.
+         */
+        private synchronized void admit(List<QueuedEvent> queuedEvents) throws QueueFullException {
+            int admitted = Math.min(queuedEvents.size(), capacity);
+            if (events.remainingCapacity() < admitted) {
+                throw new QueueFullException("Ingestion queue of tenant " + tenantId + " is full");
+            }
+            events.addAll(queuedEvents.subList(0, admitted));
+            if (admitted < queuedEvents.size()) {
+                dropped.addAndGet(queuedEvents.size() - admitted);
+                logger.warn("Notification of {} events larger than the ingestion queue of tenant {}, dropping {} events",
+                        queuedEvents.size(), tenantId, queuedEvents.size() - admitted);
+            }
+        }
+
+        @Override
+        public void run() {
+            List<QueuedEvent> batch = new ArrayList<>(BATCH_SIZE);
+            // On shutdown, keep processing until the queue is empty
+            while (!removed && (running || !events.isEmpty())) {
+                try {
+                    QueuedEvent queuedEvent = events.poll(POLL_DELAY, TimeUnit.MILLISECONDS);
+                    if (queuedEvent == null) {
+                        continue;
+                    }
+                    batch.add(queuedEvent);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                events.drainTo(batch, BATCH_SIZE - 1);
+                for (QueuedEvent queuedEvent : batch) {
+                    if (removed) {
+                        break;
+                    }
+                    process(queuedEvent);
+                }
+                batch.clear();
+                TenantScope.resetTenant();
+                if (collectMetrics) {
+                    gaugeService.submit("cepheus.ingestion." + tenantId + ".queueSize", events.size());
+                    gaugeService.submit("cepheus.ingestion." + tenantId + ".dropped", dropped.get());
+                }
+            }
+        }
+
+        private void process(QueuedEvent queuedEvent) {
+            // Process the event with the beans of the tenant of the notification
+            if (queuedEvent.tenantContext != null && queuedEvent.tenantContext != TenantScope.getTenantContext()) {
+                TenantScope.storeTenantContext(queuedEvent.tenantContext);
+            }
+            try {
+                complexEventProcessor.processEvent(queuedEvent.event);
+            } catch (EventProcessingException | RuntimeException e) {
+                logger.error("Failed to process queued event {} of tenant {}", queuedEvent.event, tenantId, e);
+            }
+        }
+    }
+}
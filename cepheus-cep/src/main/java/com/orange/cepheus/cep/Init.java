@@ -54,8 +54,8 @@ public class Init {
         try {
             if (persistence.configurationExists(TenantFilter.DEFAULT_TENANTID)) {
                 Configuration configuration = persistence.loadConfiguration(TenantFilter.DEFAULT_TENANTID);
-                eventMapper.setConfiguration(configuration);
                 complexEventProcessor.setConfiguration(configuration);
+                eventMapper.setConfiguration(configuration);
                 subscriptionManager.setConfiguration(configuration);
             }
         } catch (PersistenceException | ConfigurationException e) {
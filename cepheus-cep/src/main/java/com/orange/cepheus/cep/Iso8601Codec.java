@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.fasterxml.jackson.databind.util.ISO8601Utils;
+
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.util.Date;
+
+/**
+ * Thread-safe ISO 8601 codec of the NGSI date values, from and to epoch milliseconds.
+ *
+ * The usual notation of the sensors, yyyy-MM-ddTHH:mm:ss[.SSS](Z|+HH:mm), is parsed without allocation,
+ * other notations are parsed by Jackson as before. Dates are formatted as yyyy-MM-ddTHH:mm:ssZ in UTC like Jackson.
+ *
+ * The last parsed and formatted dates are kept in small direct-mapped caches, as the events of a same period
+ * often carry the same timestamps. The cache entries are immutable and replaced without locking.
+ */
+class Iso8601Codec {
+
+    private static final int CACHE_SIZE = 64;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    /**
+     * Days of each month of a non leap year
+     */
+    private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    private static class Entry {
+
+        final String text;
+
+        final long millis;
+
+        Entry(String text, long millis) {
+            this.text = text;
+            this.millis = millis;
+        }
+    }
+
+    private final Entry[] parsed = new Entry[CACHE_SIZE];
+
+    private final Entry[] formatted = new Entry[CACHE_SIZE];
+
+    /**
+     * @param value an ISO 8601 date
+     * @return the epoch milliseconds of the date
+     * @throws IllegalArgumentException if the date is invalid
+     */
+    long parse(String value) throws IllegalArgumentException {
+        int index = value.hashCode() & (CACHE_SIZE - 1);
+        Entry entry = parsed[index];
+        if (entry != null && entry.text.equals(value)) {
+            return entry.millis;
+        }
+        long millis = parseFast(value);
+        if (millis == Long.MIN_VALUE) {
+            try {
+                millis = ISO8601Utils.parse(value, new ParsePosition(0)).getTime();
+            } catch (ParseException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+        }
+        parsed[index] = new Entry(value, millis);
+        return millis;
+    }
+
+    /**
+     * @param millis epoch milliseconds
+     * @return the date formatted as yyyy-MM-ddTHH:mm:ssZ
+     */
+    String format(long millis) {
+        int index = (int) (millis ^ (millis >>> 32)) & (CACHE_SIZE - 1);
+        Entry entry = formatted[index];
+        if (entry != null && entry.millis == millis) {
+            return entry.text;
+        }
+        String text = formatUTC(millis);
+        formatted[index] = new Entry(text, millis);
+        return text;
+    }
+
+    /**
+     * Parse the usual notation yyyy-MM-ddTHH:mm:ss[.SSS](Z|+HH:mm)
+     * @return the epoch milliseconds or Long.MIN_VALUE for other notations
+     */
+    private static long parseFast(String value) {
+        int length = value.length();
+        if (length < 20 || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != 'T'
+                || value.charAt(13) != ':' || value.charAt(16) != ':') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(value, 0, 4);
+        int month = digits(value, 5, 2);
+        int day = digits(value, 8, 2);
+        int hour = digits(value, 11, 2);
+        int minute = digits(value, 14, 2);
+        int second = digits(value, 17, 2);
+        // Dates before the Gregorian calendar are left to Jackson
+        if (year < 1600 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return Long.MIN_VALUE;
+        }
+        int i = 19;
+        int millis = 0;
+        if (value.charAt(i) == '.') {
+            millis = length > i + 4 ? digits(value, i + 1, 3) : -1;
+            if (millis < 0) {
+                return Long.MIN_VALUE;
+            }
+            i += 4;
+        }
+        long offset;
+        char c = value.charAt(i);
+        if (c == 'Z' && i + 1 == length) {
+            offset = 0;
+        } else if ((c == '+' || c == '-') && i + 6 == length && value.charAt(i + 3) == ':') {
+            int offsetHours = digits(value, i + 1, 2);
+            int offsetMinutes = digits(value, i + 4, 2);
+            if (offsetHours < 0 || offsetHours > 23 || offsetMinutes < 0 || offsetMinutes > 59) {
+                return Long.MIN_VALUE;
+            }
+            offset = (offsetHours * 60 + offsetMinutes) * 60000L;
+            if (c == '-') {
+                offset = -offset;
+            }
+        } else {
+            return Long.MIN_VALUE;
+        }
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY + ((hour * 60 + minute) * 60 + second) * 1000L + millis - offset;
+    }
+
+    private static String formatUTC(long millis) {
+        long days = Math.floorDiv(millis, MILLIS_PER_DAY);
+        int secondOfDay = (int) (Math.floorMod(millis, MILLIS_PER_DAY) / 1000);
+
+        // Civil date from days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 1600 || year > 9999) {
+            return ISO8601Utils.format(new Date(millis));
+        }
+
+        char[] chars = new char[20];
+        put(chars, 0, (int) year, 4);
+        chars[4] = '-';
+        put(chars, 5, month, 2);
+        chars[7] = '-';
+        put(chars, 8, day, 2);
+        chars[10] = 'T';
+        put(chars, 11, secondOfDay / 3600, 2);
+        chars[13] = ':';
+        put(chars, 14, secondOfDay / 60 % 60, 2);
+        chars[16] = ':';
+        put(chars, 17, secondOfDay % 60, 2);
+        chars[19] = 'Z';
+        return new String(chars);
+    }
+
+    /**
+     * @return the value of the ASCII digits, or -1 if one is not a digit
+     */
+    private static int digits(String value, int start, int count) {
+        int result = 0;
+        for (int i = start; i < start + count; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    private static void put(char[] chars, int start, int value, int count) {
+        for (int i = start + count - 1; i >= start; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2 && (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))) {
+            return 29;
+        }
+        return DAYS_IN_MONTH[month - 1];
+    }
+
+    /**
+     * @return the days since the epoch of a civil date, see http://howardhinnant.github.io/date_algorithms.html
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = year / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+/**
+ * Parsers of the NGSI numeric values returning primitives.
+ *
+ * The plain decimal notations sent by the sensors ("1013", "-21.5", "4.8e1") are parsed in a single pass over the characters,
+ * without intermediate objects. The decimal values are only computed on the fast path when the result is exact
+ * (the digits fit in the mantissa and the power of ten is exactly representable), so that it is the same as the JDK parsers.
+ * Other notations and the invalid values are left to the JDK parsers, which throw a NumberFormatException on errors.
+ */
+final class NumberParser {
+
+    /**
+     * Powers of ten exactly representable as double
+     */
+    private static final double[] DOUBLE_POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * Powers of ten exactly representable as float
+     */
+    private static final float[] FLOAT_POW10 = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+    /**
+     * Largest integer mantissa of a double (2^53) and of a float (2^24)
+     */
+    private static final long DOUBLE_MAX_MANTISSA = 1L << 53;
+
+    private static final long FLOAT_MAX_MANTISSA = 1L << 24;
+
+    /**
+     * Number of digits that always fit in a long
+     */
+    private static final int MAX_DIGITS = 18;
+
+    private NumberParser() {
+    }
+
+    static int parseInt(String value) throws NumberFormatException {
+        long result = parseInteger(value, Integer.MIN_VALUE);
+        if (result == Long.MIN_VALUE) {
+            return Integer.parseInt(value);
+        }
+        return (int) result;
+    }
+
+    static long parseLong(String value) throws NumberFormatException {
+        int length = value.length();
+        // Longs of more digits than MAX_DIGITS might overflow, left to the JDK
+        if (length > MAX_DIGITS) {
+            return Long.parseLong(value);
+        }
+        long result = parseInteger(value, Long.MIN_VALUE + 1);
+        if (result == Long.MIN_VALUE) {
+            return Long.parseLong(value);
+        }
+        return result;
+    }
+
+    static double parseDouble(String value) throws NumberFormatException {
+        double result = parseDecimal(value, false);
+        // NaN is never returned by the fast path for a valid value
+        return result == result ? result : Double.parseDouble(value);
+    }
+
+    static float parseFloat(String value) throws NumberFormatException {
+        double result = parseDecimal(value, true);
+        return result == result ? (float) result : Float.parseFloat(value);
+    }
+
+    /**
+     * Parse an optionally signed integer of ASCII digits
+     * @param value the value
+     * @param min the smallest allowed value
+     * @return the integer or Long.MIN_VALUE if the value is not a plain integer or out of range
+     */
+    private static long parseInteger(String value, long min) {
+        int length = value.length();
+        if (length == 0 || length > MAX_DIGITS + 1) {
+            return Long.MIN_VALUE;
+        }
+        int i = 0;
+        boolean negative = false;
+        char c = value.charAt(0);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            if (++i == length) {
+                return Long.MIN_VALUE;
+            }
+        }
+        // Accumulate negatively to reach the minimum value
+        long result = 0;
+        for (; i < length; i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            result = result * 10 - digit;
+            if (result < min) {
+                return Long.MIN_VALUE;
+            }
+        }
+        if (negative) {
+            return result;
+        }
+        return result == min ? Long.MIN_VALUE : -result;
+    }
+
+    /**
+     * Parse a plain decimal notation: [sign] digits [. digits] [e [sign] digits]
+     * @param value the value
+     * @param single true to compute a float result
+     * @return the value, or NaN if it is not a plain decimal or cannot be computed exactly
+     */
+    private static double parseDecimal(String value, boolean single) {
+        int length = value.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+            negative = value.charAt(0) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        int significantDigits = 0;
+        boolean point = false;
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if ((mantissa != 0 || c != '0') && ++significantDigits > MAX_DIGITS) {
+                    return Double.NaN;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (point) {
+                    exponent--;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        if (i < length) {
+            char c = value.charAt(i);
+            if (c != 'e' && c != 'E' || ++i == length) {
+                return Double.NaN;
+            }
+            boolean negativeExponent = false;
+            c = value.charAt(i);
+            if (c == '-' || c == '+') {
+                negativeExponent = c == '-';
+                if (++i == length) {
+                    return Double.NaN;
+                }
+            }
+            int explicitExponent = 0;
+            for (; i < length; i++) {
+                int digit = value.charAt(i) - '0';
+                if (digit < 0 || digit > 9 || explicitExponent > 1000) {
+                    return Double.NaN;
+                }
+                explicitExponent = explicitExponent * 10 + digit;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        // A single rounding of exact operands gives the correctly rounded result
+        if (single) {
+            if (mantissa > FLOAT_MAX_MANTISSA || exponent < -10 || exponent > 10) {
+                return Double.NaN;
+            }
+            float result = exponent < 0 ? (float) mantissa / FLOAT_POW10[-exponent] : (float) mantissa * FLOAT_POW10[exponent];
+            return negative ? -result : result;
+        }
+        if (mantissa > DOUBLE_MAX_MANTISSA || exponent < -22 || exponent > 22) {
+            return Double.NaN;
+        }
+        double result = exponent < 0 ? mantissa / DOUBLE_POW10[-exponent] : mantissa * DOUBLE_POW10[exponent];
+        return negative ? -result : result;
+    }
+}
@@ -9,6 +9,7 @@
 package com.orange.cepheus.cep.controller;
 
 import com.orange.cepheus.cep.EventMapper;
+import com.orange.cepheus.cep.IngestionQueue;
 import com.orange.cepheus.cep.SubscriptionManager;
 import com.orange.cepheus.cep.exception.PersistenceException;
 import com.orange.cepheus.cep.model.Statement;
@@ -56,6 +57,9 @@ public class AdminController {
     @Autowired
     public SubscriptionManager subscriptionManager;
 
+    @Autowired
+    public IngestionQueue ingestionQueue;
+
     /**
      * This bean is only injected in multi tenant mode.
      */
@@ -144,6 +148,8 @@ public class AdminController {
         if (tenantFilter != null) {
             tenantFilter.removeTenant(configurationId);
         }
+        // Discard the events of the tenant waiting for the CEP
+        ingestionQueue.removeTenant(configurationId);
         // Reset the CEP
         complexEventProcessor.reset();
         // Delete the persisted configuration
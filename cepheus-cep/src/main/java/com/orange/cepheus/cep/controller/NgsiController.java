@@ -10,8 +10,10 @@ package com.orange.cepheus.cep.controller;
 
 import com.orange.cepheus.cep.ComplexEventProcessor;
 import com.orange.cepheus.cep.EventMapper;
+import com.orange.cepheus.cep.IngestionQueue;
 import com.orange.cepheus.cep.SubscriptionManager;
 import com.orange.cepheus.cep.exception.EventProcessingException;
+import com.orange.cepheus.cep.exception.QueueFullException;
 import com.orange.cepheus.cep.exception.TypeNotFoundException;
 import com.orange.cepheus.cep.model.Event;
 import com.orange.ngsi.client.NgsiClient;
@@ -20,6 +22,7 @@ import com.orange.ngsi.server.NgsiBaseController;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -47,8 +50,11 @@ public class NgsiController extends NgsiBaseController {
     @Autowired
     public NgsiClient ngsiClient;
 
+    @Autowired
+    private IngestionQueue ingestionQueue;
+
     @Override
-    public NotifyContextResponse notifyContext(final NotifyContext notify) throws EventProcessingException, TypeNotFoundException {
+    public NotifyContextResponse notifyContext(final NotifyContext notify) throws EventProcessingException, TypeNotFoundException, QueueFullException {
 
         logger.debug("notifyContext incoming request id:{} originator:{}", notify.getSubscriptionId(), notify.getOriginator());
 
@@ -56,11 +62,12 @@ public class NgsiController extends NgsiBaseController {
 
         // Only handle notification if it has a valid subscription
         if (subscriptionManager.validateSubscriptionId(notify.getSubscriptionId(), notify.getOriginator().toString())) {
+            List<Event> events = new ArrayList<>(notify.getContextElementResponseList().size());
             for (ContextElementResponse response : notify.getContextElementResponseList()) {
                 ContextElement element = response.getContextElement();
-                Event event = eventMapper.eventFromContextElement(element);
-                complexEventProcessor.processEvent(event);
+                events.add(eventMapper.eventFromContextElement(element));
             }
+            processNotifiedEvents(events);
             notifyContextResponse.setResponseCode(new StatusCode(CodeEnum.CODE_200));
         } else {
             logger.warn("notifyContext request: invalid subscription id {} / {}", notify.getSubscriptionId(), notify.getOriginator());
@@ -113,4 +120,29 @@ public class NgsiController extends NgsiBaseController {
         statusCode.setDetail(eventProcessingException.toString());
         return errorResponse(req.getRequestURI(), statusCode);
     }
+
+    @ExceptionHandler({QueueFullException.class})
+    public ResponseEntity<Object> queueFullExceptionHandler(HttpServletRequest req, QueueFullException queueFullException) {
+        logger.warn("Notification rejected: {}", queueFullException.getMessage());
+
+        StatusCode statusCode = new StatusCode();
+        statusCode.setCode("503");
+        statusCode.setReasonPhrase("service unavailable");
+        statusCode.setDetail(queueFullException.getMessage());
+        ResponseEntity<Object> response = errorResponse(req.getRequestURI(), statusCode);
+        return new ResponseEntity<>(response.getBody(), response.getHeaders(), HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Process the events of a notification, or only queue them when the asynchronous ingestion is enabled
+     */
+    private void processNotifiedEvents(List<Event> events) throws EventProcessingException, QueueFullException {
+        if (ingestionQueue.isAsync()) {
+            ingestionQueue.enqueueAll(events);
+        } else {
+            for (Event event : events) {
+                complexEventProcessor.processEvent(event);
+            }
+        }
+    }
 }
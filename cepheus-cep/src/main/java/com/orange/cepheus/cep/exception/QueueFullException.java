@@ -0,0 +1,19 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep.exception;
+
+/**
+ * Thrown when an event is rejected because the ingestion queue of the tenant is full
+ */
+public class QueueFullException extends Exception {
+
+    public QueueFullException(String message) {
+        super(message);
+    }
+}
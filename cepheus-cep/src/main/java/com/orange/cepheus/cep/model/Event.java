@@ -13,12 +13,15 @@ import java.util.Map;
 
 /**
  * Event sent to the Esper CEP engine.
- * An event is a collection of properties defined by a type.
+ * An event is a collection of properties defined by a type,
+ * held either in a map or in an array following the property order of an object-array event type.
  */
 public class Event {
 
     private Map<String, Object> values;
     private String type;
+    private String[] propertyNames;
+    private Object[] propertyValues;
 
     public Event() {
     }
@@ -27,6 +30,26 @@ public class Event {
         this.type = type;
     }
 
+    /**
+     * @param type the type of the event
+     * @param size the expected number of properties, used to presize the values
+     */
+    public Event(String type, int size) {
+        this.type = type;
+        this.values = new HashMap<>((int) (size / 0.75f) + 1);
+    }
+
+    /**
+     * @param type the type of the event
+     * @param propertyNames the properties of the object-array event type
+     * @param propertyValues the values of the properties, in the same order
+     */
+    public Event(String type, String[] propertyNames, Object[] propertyValues) {
+        this.type = type;
+        this.propertyNames = propertyNames;
+        this.propertyValues = propertyValues;
+    }
+
     public String getType() {
         return type;
     }
@@ -42,14 +65,39 @@ public class Event {
         values.put(name, value);
     }
 
+    /**
+     * @return the values by property name, built from the property values of an object-array event
+     */
     public Map<String, Object> getValues() {
+        if (values == null && propertyValues != null) {
+            values = new HashMap<>();
+            for (int i = 0; i < propertyNames.length; i++) {
+                if (propertyValues[i] != null) {
+                    values.put(propertyNames[i], propertyValues[i]);
+                }
+            }
+        }
         return values;
     }
 
+    /**
+     * @return the properties of the object-array event type the event was mapped to, null for a map event
+     */
+    public String[] getPropertyNames() {
+        return propertyNames;
+    }
+
+    /**
+     * @return the values of an object-array event, null for a map event
+     */
+    public Object[] getPropertyValues() {
+        return propertyValues;
+    }
+
     @Override public String toString() {
         return "Event{" +
                 "type='" + type + '\'' +
-                ", values=" + values +
+                ", values=" + getValues() +
                 '}';
     }
 }
@@ -62,8 +62,8 @@ public class TenantInit {
             // Try restoring the persisted configuration if any
             try {
                 Configuration configuration = persistence.loadConfiguration(id);
-                eventMapper.setConfiguration(configuration);
                 complexEventProcessor.setConfiguration(configuration);
+                eventMapper.setConfiguration(configuration);
                 subscriptionManager.setConfiguration(configuration);
             } catch (PersistenceException | ConfigurationException e) {
                 logger.error("Failed to load or apply persisted configuration {}", id, e);
@@ -42,6 +42,13 @@ public class TenantScope implements Scope {
         tenantHolder.set(tenantContext);
     }
 
+    /**
+     * @return the tenant context associated to the current thread, or null
+     */
+    public static Context getTenantContext() {
+        return tenantHolder.get();
+    }
+
     /**
      * Reset the tenant context associated to the current thread
      */
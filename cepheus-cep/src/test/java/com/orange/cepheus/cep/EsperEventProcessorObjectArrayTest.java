@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.espertech.esper.client.EPServiceProvider;
+import com.espertech.esper.client.EPStatement;
+import com.espertech.esper.client.EventBean;
+import com.orange.cepheus.cep.exception.ConfigurationException;
+import com.orange.cepheus.cep.model.Attribute;
+import com.orange.cepheus.cep.model.Configuration;
+import com.orange.cepheus.cep.model.Event;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import static com.orange.cepheus.cep.Util.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test for the Esper complex event processor with object-array events
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@TestPropertySource("classpath:application-objectarray.properties") // enabled object-array events
+public class EsperEventProcessorObjectArrayTest {
+
+    @Mock
+    EventSinkListener eventSinkListener;
+
+    @Autowired
+    @InjectMocks
+    private EsperEventProcessor esperEventProcessor;
+
+    @Autowired
+    private EventMapper eventMapper;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @After
+    public void resetEmptyConfiguration() throws ConfigurationException {
+        esperEventProcessor.setConfiguration(emptyConfiguration());
+        eventMapper.setConfiguration(emptyConfiguration());
+    }
+
+    /**
+     * Check that the events mapped to object arrays are processed by the statements
+     */
+    @Test
+    public void checkObjectArrayEvent() throws Exception {
+        Configuration configuration = getBasicConf();
+        esperEventProcessor.setConfiguration(configuration);
+        eventMapper.setConfiguration(configuration);
+
+        Event event = eventMapper.eventFromContextElement(createTemperatureContextElement(0));
+        assertNotNull(event.getPropertyValues());
+        assertEquals("S1", event.getValues().get("id"));
+        assertEquals(15.5, event.getValues().get("temp"));
+
+        esperEventProcessor.processEvent(event);
+
+        ArgumentCaptor<EventBean[]> eventsArg = ArgumentCaptor.forClass(EventBean[].class);
+        verify(eventSinkListener).update(eventsArg.capture(), eq(null), any(EPStatement.class), any(EPServiceProvider.class));
+
+        EventBean[] events = eventsArg.getValue();
+        assertEquals(1, events.length);
+        assertEquals("OUT1", events[0].get("id"));
+        assertEquals(15.5, events[0].get("avgTemp"));
+    }
+
+    /**
+     * Check that the events mapped before an update of their event type are realigned on the new type
+     */
+    @Test
+    public void checkEventMappedWithPreviousConfiguration() throws Exception {
+        Configuration configuration = getBasicConf();
+        esperEventProcessor.setConfiguration(configuration);
+        eventMapper.setConfiguration(configuration);
+
+        Event event = eventMapper.eventFromContextElement(createTemperatureContextElement(0));
+
+        // Add a property ordered before temp in the object-array event type
+        Configuration newConfiguration = getBasicConf();
+        newConfiguration.getEventTypeIns().get(0).addAttribute(new Attribute("pressure", "double"));
+        esperEventProcessor.setConfiguration(newConfiguration);
+
+        esperEventProcessor.processEvent(event);
+
+        ArgumentCaptor<EventBean[]> eventsArg = ArgumentCaptor.forClass(EventBean[].class);
+        verify(eventSinkListener).update(eventsArg.capture(), eq(null), any(EPStatement.class), any(EPServiceProvider.class));
+
+        EventBean[] events = eventsArg.getValue();
+        assertEquals(15.5, events[0].get("avgTemp"));
+    }
+
+    /**
+     * Check that the object-array event types keep the property types of the configuration
+     */
+    @Test
+    public void checkObjectArrayEventType() throws Exception {
+        esperEventProcessor.setConfiguration(getBasicConf());
+
+        assertEquals(2, esperEventProcessor.getEventTypeAttributes("TempSensor").size());
+        assertEquals("double", esperEventProcessor.getEventTypeAttributes("TempSensor").get("temp").getType());
+        assertEquals("string", esperEventProcessor.getEventTypeAttributes("TempSensor").get("temp_unit").getType());
+    }
+}
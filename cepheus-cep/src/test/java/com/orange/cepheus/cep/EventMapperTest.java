@@ -24,6 +24,7 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.SpringApplicationConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.*;
 
@@ -121,6 +122,29 @@ public class EventMapperTest {
         assertEquals(Geospatial.readGeometry("POINT(39.23 -10.3)"), values.get("9"));
     }
 
+    /**
+     * Test that the dates are mapped to epoch milliseconds when enabled, and converted back to ISO 8601
+     * @throws Exception
+     */
+    @Test
+    public void testContextElementConversionEpochMillis() throws Exception {
+        EventMapper epochMillisMapper = new EventMapper();
+        ReflectionTestUtils.setField(epochMillisMapper, "epochMillis", true);
+
+        EventType e = new EventType("ID", "TYPE", false);
+        e.addAttribute(new Attribute("date", "date"));
+        assertEquals(long.class, epochMillisMapper.esperTypeFromEventType(e).get("date"));
+
+        ContextElement ce = new ContextElement();
+        ce.setEntityId(new EntityId("S1", "TempSensor", false));
+        ce.setContextAttributeList(Collections.singletonList(new ContextAttribute("date", "date", "2015-12-01T18:12:28+01:00")));
+
+        Map<String, Object> values = epochMillisMapper.eventFromContextElement(ce).getValues();
+        assertEquals(1448989948000l, values.get("date"));
+        assertEquals("2015-12-01T17:12:28Z", epochMillisMapper.attributeValueFromEventProperty(1448989948000l, "date"));
+        assertEquals("2015-12-01T17:12:28Z", eventMapper.attributeValueFromEventProperty(new Date(1448989948000l), "date"));
+    }
+
     /**
      * Test that the ContextElement from string values is correctly converted to an Esper map
      * @throws Exception
@@ -260,6 +284,48 @@ public class EventMapperTest {
         assertEquals("hello", values.get("Attr"));
     }
 
+    /**
+     * Test that the mapping plan of a configured event type converts attributes and metadata,
+     * and that attributes override colliding metadata whatever their order
+     * @throws Exception
+     */
+    @Test
+    public void testContextElementMappingPlan() throws Exception {
+        Metadata m = new Metadata("unit", "int");
+        m.setJsonpath("$.code");
+
+        Attribute a = new Attribute("temp", "double");
+        a.setMetadata(Collections.singleton(m));
+
+        EventTypeIn e = new EventTypeIn("S.*", "PlanSensor", true);
+        e.setAttributes(new HashSet<>(Arrays.asList(a, new Attribute("temp_unit", "string"))));
+
+        Configuration configuration = new Configuration();
+        configuration.setEventTypeIns(Collections.singletonList(e));
+
+        eventMapper.setConfiguration(configuration);
+
+        ContextElement ce = new ContextElement();
+        ce.setEntityId(new EntityId("S1", "PlanSensor", false));
+        ContextAttribute collision = new ContextAttribute("temp_unit", "string", "celcius");
+        ContextAttribute temp = new ContextAttribute("temp", "double", "21.5");
+        temp.setMetadata(Arrays.asList(new ContextMetadata("unit", "int", Collections.singletonMap("code", "3")),
+                new ContextMetadata("other", "float", "1.5")));
+        ce.setContextAttributeList(Arrays.asList(collision, temp, new ContextAttribute("undeclared", "long", "4")));
+
+        Map<String, Object> values = eventMapper.eventFromContextElement(ce).getValues();
+        assertEquals("S1", values.get("id"));
+        assertEquals(21.5d, values.get("temp"));
+        assertEquals("celcius", values.get("temp_unit"));
+        assertEquals(1.5f, values.get("temp_other"));
+        assertEquals(4l, values.get("undeclared"));
+
+        // Without collision, the metadata is converted after its jsonpath
+        ce.setContextAttributeList(Collections.singletonList(temp));
+        values = eventMapper.eventFromContextElement(ce).getValues();
+        assertEquals(3, values.get("temp_unit"));
+    }
+
     /**
      * Test that the ContextElement with a bad jsonpath in attribute will trigger exception
      * @throws Exception
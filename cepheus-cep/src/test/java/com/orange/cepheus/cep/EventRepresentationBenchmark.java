@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+package com.orange.cepheus.cep;
+
+import com.espertech.esper.client.EPRuntime;
+import com.espertech.esper.client.EPServiceProvider;
+import com.espertech.esper.client.EPServiceProviderManager;
+import com.orange.cepheus.cep.model.*;
+import com.orange.cepheus.cep.model.Configuration;
+import com.orange.cepheus.geo.Geospatial;
+import com.orange.ngsi.model.ContextAttribute;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.ContextMetadata;
+import com.orange.ngsi.model.EntityId;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the Map events with the object-array events: mapping of a sensor notification by the EventMapper
+ * and processing by a statement reading all its properties.
+ *
+ * Run with: java -cp target/test-classes:<test classpath> com.orange.cepheus.cep.EventRepresentationBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EventRepresentationBenchmark {
+
+    @Param({"map", "objectarray"})
+    public String representation;
+
+    private EPServiceProvider epServiceProvider;
+
+    private EPRuntime epRuntime;
+
+    private EventMapper eventMapper;
+
+    private ContextElement contextElement;
+
+    @Setup
+    public void setup() throws Exception {
+        boolean objectArray = "objectarray".equals(representation);
+
+        EventTypeIn eventTypeIn = new EventTypeIn("Sensor.*", "Sensor", true);
+        Attribute temp = new Attribute("temp", "double");
+        temp.setMetadata(Collections.singleton(new Metadata("unit", "string")));
+        eventTypeIn.addAttribute(temp);
+        eventTypeIn.addAttribute(new Attribute("humidity", "double"));
+        eventTypeIn.addAttribute(new Attribute("pressure", "int"));
+        eventTypeIn.addAttribute(new Attribute("battery", "int"));
+        eventTypeIn.addAttribute(new Attribute("status", "string"));
+        Configuration configuration = new Configuration();
+        configuration.setEventTypeIns(Collections.singletonList(eventTypeIn));
+
+        eventMapper = new EventMapper();
+        ReflectionTestUtils.setField(eventMapper, "objectArray", objectArray);
+        eventMapper.setConfiguration(configuration);
+
+        com.espertech.esper.client.Configuration esperConfiguration = new com.espertech.esper.client.Configuration();
+        Geospatial.registerConfiguration(esperConfiguration);
+        epServiceProvider = EPServiceProviderManager.getProvider("benchmark-" + representation, esperConfiguration);
+        Map<String, Object> properties = eventMapper.esperTypeFromEventType(eventTypeIn);
+        if (objectArray) {
+            epServiceProvider.getEPAdministrator().getConfiguration().addEventType("Sensor", properties.keySet().toArray(new String[properties.size()]), properties.values().toArray());
+        } else {
+            epServiceProvider.getEPAdministrator().getConfiguration().addEventType("Sensor", properties);
+        }
+        epServiceProvider.getEPAdministrator().createEPL("select id, avg(temp) as avgTemp, temp_unit, max(humidity), min(pressure), min(battery), status "
+                + "from Sensor.win:length(100) group by id");
+        epRuntime = epServiceProvider.getEPRuntime();
+
+        // NGSI notifications carry the values as strings
+        contextElement = new ContextElement();
+        contextElement.setEntityId(new EntityId("Sensor1", "Sensor", false));
+        ContextAttribute tempAttribute = new ContextAttribute("temp", "double", "21.5");
+        tempAttribute.setMetadata(Collections.singletonList(new ContextMetadata("unit", "string", "celsius")));
+        contextElement.setContextAttributeList(Arrays.asList(tempAttribute,
+                new ContextAttribute("humidity", "double", "48.25"),
+                new ContextAttribute("pressure", "int", "1013"),
+                new ContextAttribute("battery", "int", "87"),
+                new ContextAttribute("status", "string", "ok")));
+    }
+
+    @TearDown
+    public void tearDown() {
+        epServiceProvider.destroy();
+    }
+
+    @Benchmark
+    public Event mapEvent() throws Exception {
+        return eventMapper.eventFromContextElement(contextElement);
+    }
+
+    @Benchmark
+    public void processEvent() throws Exception {
+        Event event = eventMapper.eventFromContextElement(contextElement);
+        if (event.getPropertyValues() != null) {
+            epRuntime.sendEvent(event.getPropertyValues(), event.getType());
+        } else {
+            epRuntime.sendEvent(event.getValues(), event.getType());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EventRepresentationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.orange.cepheus.cep.exception.EventProcessingException;
+import com.orange.cepheus.cep.exception.QueueFullException;
+import com.orange.cepheus.cep.model.Event;
+import com.orange.cepheus.cep.tenant.TenantFilter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.orange.cepheus.cep.Util.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the asynchronous ingestion queue
+ */
+public class IngestionQueueTest {
+
+    private static final String TENANT_ID = TenantFilter.DEFAULT_TENANTID;
+
+    @Mock
+    ComplexEventProcessor complexEventProcessor;
+
+    @Mock
+    GaugeService gaugeService;
+
+    @InjectMocks
+    IngestionQueue ingestionQueue = new IngestionQueue();
+
+    /**
+     * Released to let the blocked processor continue
+     */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /**
+     * Counted down when the processor is blocked on the first event
+     */
+    private final CountDownLatch blocked = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(ingestionQueue, "async", true);
+        ReflectionTestUtils.setField(ingestionQueue, "capacity", 1);
+        ReflectionTestUtils.setField(ingestionQueue, "backpressureValue", "block");
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        ingestionQueue.shutdown();
+    }
+
+    @Test
+    public void processInOrder() throws Exception {
+        ReflectionTestUtils.setField(ingestionQueue, "capacity", 10);
+        ingestionQueue.init();
+
+        Event event1 = buildBasicEvent(1);
+        Event event2 = buildBasicEvent(2);
+        Event event3 = buildBasicEvent(3);
+        ingestionQueue.enqueue(event1);
+        ingestionQueue.enqueue(event2);
+        ingestionQueue.enqueue(event3);
+
+        verify(complexEventProcessor, timeout(1000)).processEvent(event3);
+        InOrder inOrder = inOrder(complexEventProcessor);
+        inOrder.verify(complexEventProcessor).processEvent(event1);
+        inOrder.verify(complexEventProcessor).processEvent(event2);
+        inOrder.verify(complexEventProcessor).processEvent(event3);
+    }
+
+    @Test
+    public void processAfterError() throws Exception {
+        ingestionQueue.init();
+
+        Event event1 = buildBasicEvent(1);
+        Event event2 = buildBasicEvent(2);
+        doThrow(new EventProcessingException("failed")).when(complexEventProcessor).processEvent(event1);
+        ingestionQueue.enqueue(event1);
+        ingestionQueue.enqueue(event2);
+
+        verify(complexEventProcessor, timeout(1000)).processEvent(event2);
+    }
+
+    @Test
+    public void blockWhenFull() throws Exception {
+        ingestionQueue.init();
+        blockProcessor();
+
+        Event event2 = buildBasicEvent(2);
+        Event event3 = buildBasicEvent(3);
+        ingestionQueue.enqueue(event2);
+        Thread producer = new Thread(() -> {
+            try {
+                ingestionQueue.enqueue(event3);
+            } catch (QueueFullException e) {
+                fail();
+            }
+        });
+        producer.start();
+
+        // The producer waits for room in the queue
+        producer.join(200);
+        assertTrue(producer.isAlive());
+        assertEquals(1, ingestionQueue.getQueueSize(TENANT_ID));
+
+        release.countDown();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        verify(complexEventProcessor, timeout(1000)).processEvent(event3);
+        assertEquals(0, ingestionQueue.getDroppedCount(TENANT_ID));
+    }
+
+    @Test
+    public void shedWhenFull() throws Exception {
+        ReflectionTestUtils.setField(ingestionQueue, "backpressureValue", "shed");
+        ingestionQueue.init();
+        blockProcessor();
+
+        Event event2 = buildBasicEvent(2);
+        Event event3 = buildBasicEvent(3);
+        ingestionQueue.enqueue(event2);
+        ingestionQueue.enqueue(event3);
+        assertEquals(1, ingestionQueue.getDroppedCount(TENANT_ID));
+
+        release.countDown();
+        verify(complexEventProcessor, timeout(1000)).processEvent(event2);
+        verify(complexEventProcessor, never()).processEvent(event3);
+    }
+
+    @Test(expected = QueueFullException.class)
+    public void rejectWhenFull() throws Exception {
+        ReflectionTestUtils.setField(ingestionQueue, "backpressureValue", "reject");
+        ingestionQueue.init();
+        blockProcessor();
+
+        ingestionQueue.enqueue(buildBasicEvent(2));
+        ingestionQueue.enqueue(buildBasicEvent(3));
+    }
+
+    @Test
+    public void rejectWholeNotificationWhenFull() throws Exception {
+        ReflectionTestUtils.setField(ingestionQueue, "capacity", 3);
+        ReflectionTestUtils.setField(ingestionQueue, "backpressureValue", "reject");
+        ingestionQueue.init();
+        blockProcessor();
+
+        Event event2 = buildBasicEvent(2);
+        Event event3 = buildBasicEvent(3);
+        ingestionQueue.enqueueAll(Arrays.asList(event2, event3));
+
+        // The queue would fill in the middle of the notification, none of its events is queued
+        Event event4 = buildBasicEvent(4);
+        Event event5 = buildBasicEvent(5);
+        try {
+            ingestionQueue.enqueueAll(Arrays.asList(event4, event5));
+            fail("QueueFullException expected");
+        } catch (QueueFullException e) {
+            assertEquals(2, ingestionQueue.getQueueSize(TENANT_ID));
+        }
+
+        release.countDown();
+        verify(complexEventProcessor, timeout(1000)).processEvent(event3);
+        verify(complexEventProcessor, never()).processEvent(event4);
+
+        // Retried once there is room, the notification is processed once
+        ingestionQueue.enqueueAll(Arrays.asList(event4, event5));
+        verify(complexEventProcessor, timeout(1000)).processEvent(event5);
+        verify(complexEventProcessor, times(1)).processEvent(event4);
+    }
+
+    @Test
+    public void shedNotificationLargerThanQueue() throws Exception {
+        ReflectionTestUtils.setField(ingestionQueue, "capacity", 2);
+        ReflectionTestUtils.setField(ingestionQueue, "backpressureValue", "reject");
+        ingestionQueue.init();
+
+        Event event1 = buildBasicEvent(1);
+        Event event2 = buildBasicEvent(2);
+        Event event3 = buildBasicEvent(3);
+        ingestionQueue.enqueueAll(Arrays.asList(event1, event2, event3));
+        assertEquals(1, ingestionQueue.getDroppedCount(TENANT_ID));
+
+        verify(complexEventProcessor, timeout(1000)).processEvent(event2);
+        verify(complexEventProcessor).processEvent(event1);
+        verify(complexEventProcessor, never()).processEvent(event3);
+    }
+
+    @Test
+    public void processQueuedOnShutdown() throws Exception {
+        ReflectionTestUtils.setField(ingestionQueue, "capacity", 10);
+        ingestionQueue.init();
+        blockProcessor();
+
+        Event event2 = buildBasicEvent(2);
+        Event event3 = buildBasicEvent(3);
+        ingestionQueue.enqueue(event2);
+        ingestionQueue.enqueue(event3);
+
+        release.countDown();
+        ingestionQueue.shutdown();
+        verify(complexEventProcessor).processEvent(event2);
+        verify(complexEventProcessor).processEvent(event3);
+    }
+
+    @Test(expected = QueueFullException.class)
+    public void rejectAfterShutdown() throws Exception {
+        ingestionQueue.init();
+        ingestionQueue.shutdown();
+
+        ingestionQueue.enqueue(buildBasicEvent(1));
+    }
+
+    @Test
+    public void dropQueuedOfRemovedTenant() throws Exception {
+        ReflectionTestUtils.setField(ingestionQueue, "capacity", 10);
+        ingestionQueue.init();
+        blockProcessor();
+
+        Event event2 = buildBasicEvent(2);
+        ingestionQueue.enqueue(event2);
+        ingestionQueue.removeTenant(TENANT_ID);
+        assertEquals(0, ingestionQueue.getQueueSize(TENANT_ID));
+
+        release.countDown();
+        ingestionQueue.shutdown();
+        verify(complexEventProcessor, never()).processEvent(event2);
+    }
+
+    @Test
+    public void queueMetrics() throws Exception {
+        ReflectionTestUtils.setField(ingestionQueue, "collectMetrics", true);
+        ingestionQueue.init();
+
+        ingestionQueue.enqueue(buildBasicEvent(1));
+
+        verify(gaugeService, timeout(1000)).submit("cepheus.ingestion." + TENANT_ID + ".queueSize", 0);
+        verify(gaugeService, timeout(1000)).submit("cepheus.ingestion." + TENANT_ID + ".dropped", 0);
+    }
+
+    /**
+     * Enqueue a first event blocking the processor until released
+     */
+    private void blockProcessor() throws Exception {
+        Event event1 = buildBasicEvent(1);
+        doAnswer(invocation -> {
+            blocked.countDown();
+            release.await();
+            return null;
+        }).when(complexEventProcessor).processEvent(event1);
+        ingestionQueue.enqueue(event1);
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+package com.orange.cepheus.cep;
+
+import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the Iso8601Codec with the Jackson ISO 8601 date format on sensor timestamps,
+ * all distinct (no cache hit) or repeated by several sensors reporting in the same second.
+ *
+ * Run with: java -cp target/test-classes:<test classpath> com.orange.cepheus.cep.Iso8601CodecBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Iso8601CodecBenchmark {
+
+    @Param({"distinct", "repeated"})
+    public String timestamps;
+
+    private final ISO8601DateFormat dateFormat = new ISO8601DateFormat();
+
+    private Iso8601Codec codec;
+
+    private String[] dates;
+
+    private long[] millis;
+
+    private int index;
+
+    @Setup
+    public void setup() {
+        codec = new Iso8601Codec();
+        dates = new String[1024];
+        millis = new long[dates.length];
+        long start = 1449057148000L;
+        for (int i = 0; i < dates.length; i++) {
+            // Repeated timestamps: 8 sensors reporting in the same second
+            millis[i] = start + ("distinct".equals(timestamps) ? i * 1000L : i / 8 * 1000L);
+            // New strings, as read from each notification
+            dates[i] = new String(dateFormat.format(new Date(millis[i])).toCharArray());
+        }
+    }
+
+    private int next() {
+        index = (index + 1) & (dates.length - 1);
+        return index;
+    }
+
+    @Benchmark
+    public Date jacksonParse() throws ParseException {
+        return dateFormat.parse(dates[next()]);
+    }
+
+    @Benchmark
+    public long codecParse() {
+        return codec.parse(dates[next()]);
+    }
+
+    @Benchmark
+    public String jacksonFormat() {
+        return dateFormat.format(new Date(millis[next()]));
+    }
+
+    @Benchmark
+    public String codecFormat() {
+        return codec.format(millis[next()]);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(Iso8601CodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
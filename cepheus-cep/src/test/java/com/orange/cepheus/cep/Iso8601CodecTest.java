@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the Iso8601Codec class against the Jackson ISO 8601 date format
+ */
+public class Iso8601CodecTest {
+
+    private final Iso8601Codec codec = new Iso8601Codec();
+
+    @Test
+    public void parse() {
+        assertEquals(1448989948000L, codec.parse("2015-12-01T17:12:28Z"));
+        assertEquals(1448989948123L, codec.parse("2015-12-01T17:12:28.123Z"));
+        assertEquals(1448986348000L, codec.parse("2015-12-01T17:12:28+01:00"));
+        assertEquals(1449009748000L, codec.parse("2015-12-01T17:12:28-05:30"));
+        assertEquals(951782400000L, codec.parse("2000-02-29T00:00:00Z"));
+        // Cached value
+        assertEquals(1448989948000L, codec.parse("2015-12-01T17:12:28Z"));
+        // Notation left to Jackson, which ignores the trailing characters
+        assertEquals(1448989948000L, codec.parse("2015-12-01T17:12:28Zjunk"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseInvalidDay() {
+        codec.parse("2015-02-29T00:00:00Z");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseInvalidFraction() {
+        codec.parse("2015-12-01T17:12:28.1Z");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseInvalid() {
+        codec.parse("yesterday");
+    }
+
+    @Test
+    public void format() {
+        assertEquals("2015-12-01T17:12:28Z", codec.format(1448989948000L));
+        assertEquals("2015-12-01T17:12:28Z", codec.format(1448989948999L));
+        assertEquals("1969-12-31T23:59:59Z", codec.format(-1));
+        assertEquals("2000-02-29T00:00:00Z", codec.format(951782400000L));
+        // Cached value
+        assertEquals("2015-12-01T17:12:28Z", codec.format(1448989948000L));
+    }
+
+    /**
+     * Check that random dates give the same results as the Jackson ISO 8601 date format
+     */
+    @Test
+    public void sameAsJackson() throws Exception {
+        ISO8601DateFormat dateFormat = new ISO8601DateFormat();
+        Random random = new Random(42);
+        for (int n = 0; n < 100000; n++) {
+            long millis = random.nextLong() % 200000000000000L;
+            String text = dateFormat.format(new Date(millis));
+            assertEquals(text, codec.format(millis));
+
+            String date = String.format("%04d-%02d-%02dT%02d:%02d:%02d.%03d%s", 1600 + random.nextInt(8400), 1 + random.nextInt(12), 1 + random.nextInt(28),
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(1000),
+                    random.nextBoolean() ? "Z" : String.format("%c%02d:%02d", random.nextBoolean() ? '+' : '-', random.nextInt(24), random.nextInt(60)));
+            assertEquals(date, dateFormat.parse(date).getTime(), codec.parse(date));
+        }
+    }
+}
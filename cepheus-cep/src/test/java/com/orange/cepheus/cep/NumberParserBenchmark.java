@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+package com.orange.cepheus.cep;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the NumberParser with the JDK parsers on the values of typical sensor notifications
+ * (temperatures, humidity, GPS coordinates, pressures, counters and timestamps).
+ *
+ * Run with: java -cp target/test-classes:<test classpath> com.orange.cepheus.cep.NumberParserBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NumberParserBenchmark {
+
+    private final String[] decimals = { "21.5", "-3.25", "48.7", "45.7578137", "4.8656946", "0.02", "1013.25", "100" };
+
+    private final String[] integers = { "1013", "87", "-12", "0", "4096", "65535", "230", "1" };
+
+    private final String[] longs = { "1449057148000", "1449057149000", "86400", "1234567" };
+
+    @Benchmark
+    public double jdkDouble() {
+        double sum = 0;
+        for (String value : decimals) {
+            sum += Double.valueOf(value);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double parserDouble() {
+        double sum = 0;
+        for (String value : decimals) {
+            sum += NumberParser.parseDouble(value);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float jdkFloat() {
+        float sum = 0;
+        for (String value : decimals) {
+            sum += Float.valueOf(value);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float parserFloat() {
+        float sum = 0;
+        for (String value : decimals) {
+            sum += NumberParser.parseFloat(value);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int jdkInt() {
+        int sum = 0;
+        for (String value : integers) {
+            sum += Integer.valueOf(value);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int parserInt() {
+        int sum = 0;
+        for (String value : integers) {
+            sum += NumberParser.parseInt(value);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long jdkLong() {
+        long sum = 0;
+        for (String value : longs) {
+            sum += Long.valueOf(value);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long parserLong() {
+        long sum = 0;
+        for (String value : longs) {
+            sum += NumberParser.parseLong(value);
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(NumberParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
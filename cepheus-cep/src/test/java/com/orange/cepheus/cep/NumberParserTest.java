@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.cep;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test the NumberParser class against the JDK parsers
+ */
+public class NumberParserTest {
+
+    @Test
+    public void parseInt() {
+        assertEquals(1013, NumberParser.parseInt("1013"));
+        assertEquals(-12, NumberParser.parseInt("-12"));
+        assertEquals(7, NumberParser.parseInt("+007"));
+        assertEquals(Integer.MAX_VALUE, NumberParser.parseInt("2147483647"));
+        assertEquals(Integer.MIN_VALUE, NumberParser.parseInt("-2147483648"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseIntOverflow() {
+        NumberParser.parseInt("2147483648");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseIntDecimal() {
+        NumberParser.parseInt("12.5");
+    }
+
+    @Test
+    public void parseLong() {
+        assertEquals(1449057148000L, NumberParser.parseLong("1449057148000"));
+        assertEquals(Long.MAX_VALUE, NumberParser.parseLong("9223372036854775807"));
+        assertEquals(Long.MIN_VALUE, NumberParser.parseLong("-9223372036854775808"));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseLongEmpty() {
+        NumberParser.parseLong("");
+    }
+
+    @Test
+    public void parseDouble() {
+        assertEquals(21.5, NumberParser.parseDouble("21.5"), 0);
+        assertEquals(-0.1, NumberParser.parseDouble("-.1"), 0);
+        assertEquals(48, NumberParser.parseDouble("4.8e1"), 0);
+        assertEquals(Double.doubleToLongBits(-0.0), Double.doubleToLongBits(NumberParser.parseDouble("-0.0")));
+        // Values out of the fast path
+        assertEquals(1e23, NumberParser.parseDouble("1e23"), 0);
+        assertEquals(9007199254740993.0, NumberParser.parseDouble("9007199254740993"), 0);
+        assertEquals(Double.POSITIVE_INFINITY, NumberParser.parseDouble("Infinity"), 0);
+        assertEquals(1.5, NumberParser.parseDouble(" 1.5 "), 0);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseDoubleInvalid() {
+        NumberParser.parseDouble("1.2.3");
+    }
+
+    @Test
+    public void parseFloat() {
+        assertEquals(21.5f, NumberParser.parseFloat("21.5"), 0);
+        assertEquals(0.3f, NumberParser.parseFloat("0.3"), 0);
+        assertEquals(16777217f, NumberParser.parseFloat("16777217"), 0);
+        assertEquals(3.4028235e38f, NumberParser.parseFloat("3.4028235e38"), 0);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseFloatInvalid() {
+        NumberParser.parseFloat("1e");
+    }
+
+    /**
+     * Check that random decimal notations give the same results as the JDK parsers
+     */
+    @Test
+    public void sameAsJdk() {
+        Random random = new Random(42);
+        for (int n = 0; n < 100000; n++) {
+            StringBuilder sb = new StringBuilder();
+            int digits = 1 + random.nextInt(20);
+            for (int i = 0; i < digits; i++) {
+                sb.append((char) ('0' + random.nextInt(10)));
+            }
+            if (random.nextBoolean()) {
+                sb.insert(random.nextInt(sb.length() + 1), '.');
+            }
+            if (random.nextInt(4) == 0) {
+                sb.insert(0, '-');
+            }
+            if (random.nextInt(4) == 0) {
+                sb.append('e').append(random.nextInt(40) - 20);
+            }
+            String value = sb.toString();
+            assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)), Double.doubleToLongBits(NumberParser.parseDouble(value)));
+            assertEquals(value, Float.floatToIntBits(Float.parseFloat(value)), Float.floatToIntBits(NumberParser.parseFloat(value)));
+        }
+    }
+}
@@ -11,6 +11,7 @@ package com.orange.cepheus.cep.controller;
 import com.orange.cepheus.cep.Application;
 import com.orange.cepheus.cep.ComplexEventProcessor;
 import com.orange.cepheus.cep.EventMapper;
+import com.orange.cepheus.cep.IngestionQueue;
 import com.orange.cepheus.cep.exception.ConfigurationException;
 import com.orange.cepheus.cep.exception.PersistenceException;
 import com.orange.cepheus.cep.model.Configuration;
@@ -67,6 +68,9 @@ public class AdminControllerTest {
     @Mock
     private EventMapper eventMapper;
 
+    @Mock
+    private IngestionQueue ingestionQueue;
+
     @Autowired
     @InjectMocks
     AdminController adminController;
@@ -130,6 +134,7 @@ public class AdminControllerTest {
 
         mockMvc.perform(delete("/v1/admin/config")).andExpect(status().isOk());
 
+        verify(ingestionQueue).removeTenant(TenantFilter.DEFAULT_TENANTID);
         verify(complexEventProcessor).reset();
         verify(persistence).deleteConfiguration(eq(TenantFilter.DEFAULT_TENANTID));
     }
@@ -8,15 +8,23 @@
 
 package com.orange.cepheus.cep.controller;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.orange.cepheus.cep.Application;
 import com.orange.cepheus.cep.ComplexEventProcessor;
 import com.orange.cepheus.cep.EventMapper;
+import com.orange.cepheus.cep.IngestionQueue;
 import com.orange.cepheus.cep.SubscriptionManager;
 import com.orange.cepheus.cep.exception.EventProcessingException;
 import com.orange.cepheus.cep.exception.PersistenceException;
+import com.orange.cepheus.cep.exception.QueueFullException;
 import com.orange.cepheus.cep.exception.TypeNotFoundException;
 import com.orange.cepheus.cep.model.Configuration;
 import com.orange.cepheus.cep.model.Event;
+import com.orange.cepheus.common.CompactEncoding;
+import com.orange.cepheus.common.controller.CompactEncodingFilter;
 import com.orange.ngsi.client.NgsiClient;
 import com.orange.ngsi.model.*;
 import org.junit.Before;
@@ -35,8 +43,10 @@ import org.springframework.test.web.servlet.result.MockMvcResultHandlers;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
 import org.springframework.web.context.WebApplicationContext;
 
+import java.io.ByteArrayOutputStream;
 import java.net.URI;
 import java.util.Collections;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -72,10 +82,16 @@ public class NgsiControllerTest {
     @Mock(answer = Answers.RETURNS_MOCKS)
     NgsiClient ngsiClient;
 
+    @Mock
+    IngestionQueue ingestionQueue;
+
     @InjectMocks
     @Autowired
     private NgsiController ngsiController;
 
+    @Autowired
+    private CompactEncodingFilter compactEncodingFilter;
+
     @Autowired
     private WebApplicationContext webApplicationContext;
 
@@ -113,6 +129,42 @@ public class NgsiControllerTest {
         ;
     }
 
+    @Test
+    public void postNotifyContextAsync() throws Exception {
+
+        when(subscriptionManager.validateSubscriptionId(any(), any())).thenReturn(true);
+        when(eventMapper.eventFromContextElement(any())).thenReturn(event);
+        when(ingestionQueue.isAsync()).thenReturn(true);
+        NotifyContext notifyContext = createNotifyContextTempSensor(0);
+
+        mockMvc.perform(post("/v1/notifyContext")
+                .content(json(mapper, notifyContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.responseCode.code").value(CodeEnum.CODE_200.getLabel()));
+
+        verify(ingestionQueue).enqueueAll(Collections.singletonList(event));
+        verify(complexEventProcessor, never()).processEvent(any());
+    }
+
+    @Test
+    public void postNotifyContextAsyncWithQueueFullException() throws Exception {
+
+        when(subscriptionManager.validateSubscriptionId(any(), any())).thenReturn(true);
+        when(eventMapper.eventFromContextElement(any())).thenReturn(event);
+        when(ingestionQueue.isAsync()).thenReturn(true);
+        doThrow(new QueueFullException("Ingestion queue of tenant default/ is full")).when(ingestionQueue).enqueueAll(any());
+        NotifyContext notifyContext = createNotifyContextTempSensor(0);
+
+        mockMvc.perform(post("/v1/notifyContext")
+                .content(json(mapper, notifyContext))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isServiceUnavailable())
+                .andDo(MockMvcResultHandlers.print())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.responseCode.code").value("503"))
+                .andExpect(MockMvcResultMatchers.jsonPath("$.responseCode.details").value("Ingestion queue of tenant default/ is full"));
+    }
+
     @Test
     public void postNotifyContextWithTypeNotFoundException() throws Exception {
 
@@ -238,6 +290,32 @@ public class NgsiControllerTest {
                         .value(CodeEnum.CODE_472.getShortPhrase()));
     }
     
+    @Test
+    public void postNotifyContextCompact() throws Exception {
+
+        when(subscriptionManager.validateSubscriptionId(any(), any())).thenReturn(true);
+        when(eventMapper.eventFromContextElement(any())).thenReturn(event);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonParser parser = new JsonFactory().createParser(json(mapper, createNotifyContextTempSensor(0)));
+             JsonGenerator generator = new SmileFactory().createGenerator(new GZIPOutputStream(out))) {
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEvent(parser);
+            }
+        }
+
+        // A notification of the broker in the compact encoding
+        webAppContextSetup(webApplicationContext).addFilters(compactEncodingFilter).build()
+                .perform(post("/v1/notifyContext")
+                .content(out.toByteArray())
+                .contentType(CompactEncoding.APPLICATION_SMILE)
+                .header(HttpHeaders.CONTENT_ENCODING, CompactEncoding.GZIP)
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(MockMvcResultMatchers.jsonPath("$.responseCode.code").value(CodeEnum.CODE_200.getLabel()));
+
+        verify(complexEventProcessor).processEvent(event);
+    }
+
     @Test
     public void postUpdateContextBeforeConf() throws Exception {
 
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.common;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.AsyncClientHttpRequest;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureAdapter;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact encoding of the NGSI requests sent to other Cepheus instances: Smile (binary JSON) bodies compressed with gzip.
+ *
+ * When ngsi.compact is enabled, the requests advertise Smile in their Accept header.
+ * A peer answering in Smile is known to support the compact encoding, the following requests to its host
+ * are sent in Smile with a gzip body. Other peers (like Orion) keep receiving plain JSON.
+ *
+ * Shared by the CEP and the broker, each application declaring the bean with its own ngsi.compact setting.
+ */
+public class CompactEncoding {
+
+    private static Logger logger = LoggerFactory.getLogger(CompactEncoding.class);
+
+    public static final MediaType APPLICATION_SMILE = new MediaType("application", "x-jackson-smile");
+
+    public static final String GZIP = "gzip";
+
+    /**
+     * Accept header of the requests to the peers not yet known to support the compact encoding
+     */
+    private static final String ACCEPT = APPLICATION_SMILE + ", " + MediaType.APPLICATION_JSON + ";q=0.9";
+
+    @Autowired
+    AsyncRestTemplate asyncRestTemplate;
+
+    private boolean compact;
+
+    /**
+     * Hosts (host:port) known to support the compact encoding
+     */
+    private final Set<String> compactHosts = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * Register the Smile converter and the gzip support into the NGSI client
+     */
+    @PostConstruct
+    protected void setupNgsiClient() {
+        asyncRestTemplate.getMessageConverters().add(0, smileConverter());
+        asyncRestTemplate.setAsyncRequestFactory(new CompressingRequestFactory(asyncRestTemplate.getAsyncRequestFactory()));
+    }
+
+    /**
+     * @param compact true to use the compact encoding with the peers supporting it
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * @return a converter reading and writing Smile, ignoring unknown properties like the JSON converter
+     */
+    public static MappingJackson2HttpMessageConverter smileConverter() {
+        ObjectMapper mapper = new ObjectMapper(new SmileFactory()).configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter(mapper);
+        converter.setSupportedMediaTypes(Collections.singletonList(APPLICATION_SMILE));
+        return converter;
+    }
+
+    /**
+     * Use the compact encoding for a request if enabled and supported by the peer
+     * @param url the URL of the request
+     * @param httpHeaders the headers of the request, updated
+     * @return the headers of the request
+     */
+    public HttpHeaders headers(String url, HttpHeaders httpHeaders) {
+        if (!compact || httpHeaders == null || !MediaType.APPLICATION_JSON.includes(httpHeaders.getContentType())) {
+            return httpHeaders;
+        }
+        if (compactHosts.contains(host(url))) {
+            httpHeaders.setContentType(APPLICATION_SMILE);
+            httpHeaders.setAccept(Collections.singletonList(APPLICATION_SMILE));
+            httpHeaders.set(HttpHeaders.CONTENT_ENCODING, GZIP);
+        } else {
+            httpHeaders.set(HttpHeaders.ACCEPT, ACCEPT);
+        }
+        httpHeaders.set(HttpHeaders.ACCEPT_ENCODING, GZIP);
+        return httpHeaders;
+    }
+
+    private static String host(String url) {
+        try {
+            URI uri = new URI(url);
+            return uri.getHost() + ":" + uri.getPort();
+        } catch (Exception e) {
+            return url;
+        }
+    }
+
+    /**
+     * Compress the request bodies having a gzip Content-Encoding header, decompress the gzip responses
+     * and record the hosts answering in Smile
+     */
+    private class CompressingRequestFactory implements AsyncClientHttpRequestFactory {
+
+        private final AsyncClientHttpRequestFactory requestFactory;
+
+        CompressingRequestFactory(AsyncClientHttpRequestFactory requestFactory) {
+            this.requestFactory = requestFactory;
+        }
+
+        @Override
+        public AsyncClientHttpRequest createAsyncRequest(URI uri, HttpMethod httpMethod) throws IOException {
+            return new CompressingRequest(requestFactory.createAsyncRequest(uri, httpMethod));
+        }
+    }
+
+    private class CompressingRequest implements AsyncClientHttpRequest {
+
+        private final AsyncClientHttpRequest request;
+
+        private GZIPOutputStream gzipBody;
+
+        CompressingRequest(AsyncClientHttpRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public ListenableFuture<ClientHttpResponse> executeAsync() throws IOException {
+            if (gzipBody != null) {
+                gzipBody.finish();
+            }
+            return new ListenableFutureAdapter<ClientHttpResponse, ClientHttpResponse>(request.executeAsync()) {
+                @Override
+                protected ClientHttpResponse adapt(ClientHttpResponse response) {
+                    if (APPLICATION_SMILE.includes(response.getHeaders().getContentType()) && compactHosts.add(host(getURI().toString()))) {
+                        logger.info("Compact encoding supported by {}", getURI().getHost());
+                    }
+                    if (GZIP.equalsIgnoreCase(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING))) {
+                        return new DecompressingResponse(response);
+                    }
+                    return response;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getBody() throws IOException {
+            if (gzipBody == null && GZIP.equalsIgnoreCase(getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING))) {
+                gzipBody = new GZIPOutputStream(request.getBody());
+            }
+            return gzipBody != null ? gzipBody : request.getBody();
+        }
+
+        @Override
+        public HttpMethod getMethod() {
+            return request.getMethod();
+        }
+
+        @Override
+        public URI getURI() {
+            return request.getURI();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return request.getHeaders();
+        }
+    }
+
+    private static class DecompressingResponse implements ClientHttpResponse {
+
+        private final ClientHttpResponse response;
+
+        private InputStream body;
+
+        DecompressingResponse(ClientHttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = new GZIPInputStream(response.getBody());
+            }
+            return body;
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return response.getRawStatusCode();
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return response.getStatusText();
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return response.getHeaders();
+        }
+
+        @Override
+        public void close() {
+            response.close();
+        }
+    }
+}
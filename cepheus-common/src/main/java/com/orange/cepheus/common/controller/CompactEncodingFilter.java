@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.common.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.orange.cepheus.common.CompactEncoding.APPLICATION_SMILE;
+import static com.orange.cepheus.common.CompactEncoding.GZIP;
+
+/**
+ * Server side of the compact encoding between Cepheus instances (see CompactEncoding).
+ *
+ * The NGSI controllers only consume JSON and XML: the Smile request bodies are converted to JSON and the gzip request bodies
+ * are decompressed before reaching them. The JSON responses are converted to Smile when the client prefers it,
+ * and compressed when the client accepts gzip and already uses the compact encoding.
+ */
+@Component
+public class CompactEncodingFilter extends OncePerRequestFilter {
+
+    /**
+     * Responses smaller than this size are not worth compressing
+     */
+    private static final int MIN_GZIP_SIZE = 256;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private final SmileFactory smileFactory = new SmileFactory();
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        boolean gzipRequest = GZIP.equalsIgnoreCase(request.getHeader(HttpHeaders.CONTENT_ENCODING));
+        boolean smileRequest = isSmile(request.getContentType());
+        boolean smileResponse = prefersSmile(request.getHeader(HttpHeaders.ACCEPT));
+        if (!gzipRequest && !smileRequest && !smileResponse) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        boolean gzipResponse = acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+
+        ContentCachingResponseWrapper cachingResponse = new ContentCachingResponseWrapper(response);
+        filterChain.doFilter(new CompactRequest(request, gzipRequest, smileRequest, smileResponse), cachingResponse);
+
+        byte[] body = cachingResponse.getContentAsByteArray();
+        if (smileResponse && body.length > 0 && MediaType.APPLICATION_JSON.includes(contentType(response))) {
+            body = transcode(jsonFactory, smileFactory, new ByteArrayInputStream(body));
+            response.setContentType(APPLICATION_SMILE.toString());
+        }
+        if (gzipResponse && body.length >= MIN_GZIP_SIZE) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(body);
+            }
+            body = out.toByteArray();
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP);
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * Copy a JSON document from a format to another
+     */
+    static byte[] transcode(JsonFactory from, JsonFactory to, InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonParser parser = from.createParser(in); JsonGenerator generator = to.createGenerator(out)) {
+            while (parser.nextToken() != null) {
+                generator.copyCurrentEvent(parser);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean isSmile(String contentType) {
+        try {
+            return contentType != null && APPLICATION_SMILE.includes(MediaType.parseMediaType(contentType));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if Smile comes before JSON in the Accept header
+     */
+    private static boolean prefersSmile(String accept) {
+        if (accept == null || !accept.contains(APPLICATION_SMILE.getSubtype())) {
+            return false;
+        }
+        try {
+            List<MediaType> mediaTypes = MediaType.parseMediaTypes(accept);
+            MediaType.sortByQualityValue(mediaTypes);
+            for (MediaType mediaType : mediaTypes) {
+                if (APPLICATION_SMILE.includes(mediaType)) {
+                    return true;
+                } else if (mediaType.includes(MediaType.APPLICATION_JSON)) {
+                    return false;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // not a valid Accept header, ignored
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        return acceptEncoding != null && acceptEncoding.toLowerCase().contains(GZIP);
+    }
+
+    private static MediaType contentType(HttpServletResponse response) {
+        try {
+            return response.getContentType() != null ? MediaType.parseMediaType(response.getContentType()) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Request presenting a JSON body to the controllers
+     */
+    private class CompactRequest extends HttpServletRequestWrapper {
+
+        private final boolean gzipRequest;
+
+        private final boolean smileRequest;
+
+        private final boolean smileResponse;
+
+        private ServletInputStream body;
+
+        CompactRequest(HttpServletRequest request, boolean gzipRequest, boolean smileRequest, boolean smileResponse) {
+            super(request);
+            this.gzipRequest = gzipRequest;
+            this.smileRequest = smileRequest;
+            this.smileResponse = smileResponse;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() throws IOException {
+            if (body == null) {
+                InputStream in = super.getInputStream();
+                if (gzipRequest) {
+                    in = new GZIPInputStream(in);
+                }
+                if (smileRequest) {
+                    in = new ByteArrayInputStream(transcode(smileFactory, jsonFactory, in));
+                }
+                body = new DelegatingServletInputStream(in);
+            }
+            return body;
+        }
+
+        @Override
+        public BufferedReader getReader() throws IOException {
+            return new BufferedReader(new InputStreamReader(getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String getContentType() {
+            return smileRequest ? MediaType.APPLICATION_JSON_VALUE : super.getContentType();
+        }
+
+        @Override
+        public int getContentLength() {
+            return gzipRequest || smileRequest ? -1 : super.getContentLength();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            Enumeration<String> values = getHeaders(name);
+            return values.hasMoreElements() ? values.nextElement() : null;
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            if (HttpHeaders.CONTENT_TYPE.equalsIgnoreCase(name) && smileRequest) {
+                return Collections.enumeration(Collections.singletonList(getContentType()));
+            } else if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name) && (gzipRequest || smileRequest)) {
+                return Collections.emptyEnumeration();
+            } else if (HttpHeaders.CONTENT_ENCODING.equalsIgnoreCase(name) && gzipRequest) {
+                return Collections.emptyEnumeration();
+            } else if (HttpHeaders.ACCEPT.equalsIgnoreCase(name) && smileResponse) {
+                return Collections.enumeration(Collections.singletonList(MediaType.APPLICATION_JSON_VALUE));
+            }
+            return super.getHeaders(name);
+        }
+    }
+
+    private static class DelegatingServletInputStream extends ServletInputStream {
+
+        private InputStream in;
+
+        DelegatingServletInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public boolean isFinished() {
+            try {
+                return in.available() == 0;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        /**
+         * The body is decoded while it is read: it is decoded at once for a non blocking reader,
+         * which is then notified that the whole body is available
+         */
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            try {
+                in = new ByteArrayInputStream(StreamUtils.copyToByteArray(in));
+                readListener.onDataAvailable();
+                if (isFinished()) {
+                    readListener.onAllDataRead();
+                }
+            } catch (IOException e) {
+                readListener.onError(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
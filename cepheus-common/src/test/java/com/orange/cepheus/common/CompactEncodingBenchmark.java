@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+package com.orange.cepheus.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.orange.ngsi.model.ContextElement;
+import com.orange.ngsi.model.EntityId;
+import com.orange.ngsi.model.UpdateAction;
+import com.orange.ngsi.model.UpdateContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.orange.cepheus.common.Util.createTemperatureContextElement;
+
+/**
+ * Compare the cost of the JSON and compact (Smile, with or without gzip) encodings of an updateContext request
+ * sent between Cepheus instances. The size of the request on the wire is logged at setup.
+ *
+ * Run with: java -cp target/test-classes:<test classpath> com.orange.cepheus.common.CompactEncodingBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompactEncodingBenchmark {
+
+    private static Logger logger = LoggerFactory.getLogger(CompactEncodingBenchmark.class);
+
+    @Param({"10", "1000"})
+    public int size;
+
+    @Param({"json", "smile"})
+    public String format;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    private ObjectMapper mapper;
+
+    private UpdateContext updateContext;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        mapper = "smile".equals(format) ? new ObjectMapper(new SmileFactory()) : new ObjectMapper();
+        List<ContextElement> contextElements = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ContextElement contextElement = createTemperatureContextElement(i);
+            contextElement.setEntityId(new EntityId("S" + i, "TempSensor", false));
+            contextElements.add(contextElement);
+        }
+        updateContext = new UpdateContext(UpdateAction.UPDATE);
+        updateContext.setContextElements(contextElements);
+        body = serialize();
+        logger.info("{}{} with {} elements: {} bytes on the wire", format, gzip ? "+gzip" : "", size, body.length);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream os = gzip ? new GZIPOutputStream(out) : out) {
+            mapper.writeValue(os, updateContext);
+        }
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public UpdateContext deserialize() throws IOException {
+        InputStream in = new ByteArrayInputStream(body);
+        return mapper.readValue(gzip ? new GZIPInputStream(in) : in, UpdateContext.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CompactEncodingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.orange.ngsi.model.*;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.client.MockAsyncClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.orange.cepheus.common.Util.createUpdateContextTempSensor;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the compact encoding of the requests to other Cepheus instances
+ */
+public class CompactEncodingTest {
+
+    private static final String URL = "http://cepheus:8081";
+
+    private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+    private final List<MockAsyncClientHttpRequest> requests = new ArrayList<>();
+
+    private MockClientHttpResponse nextResponse;
+
+    private CompactEncoding compactEncoding;
+
+    @Before
+    public void setup() {
+        compactEncoding = new CompactEncoding();
+        compactEncoding.setCompact(true);
+        compactEncoding.asyncRestTemplate = new AsyncRestTemplate();
+        compactEncoding.asyncRestTemplate.setAsyncRequestFactory((uri, httpMethod) -> {
+            MockAsyncClientHttpRequest request = new MockAsyncClientHttpRequest(httpMethod, uri);
+            request.setResponse(nextResponse);
+            requests.add(request);
+            return request;
+        });
+        compactEncoding.setupNgsiClient();
+    }
+
+    @Test
+    public void disabledTest() {
+        compactEncoding.setCompact(false);
+        HttpHeaders httpHeaders = compactEncoding.headers(URL, jsonHeaders());
+        assertEquals(Collections.singletonList(MediaType.APPLICATION_JSON), httpHeaders.getAccept());
+        assertNull(httpHeaders.getFirst(HttpHeaders.ACCEPT_ENCODING));
+    }
+
+    @Test
+    public void negotiationTest() throws Exception {
+        UpdateContext updateContext = createUpdateContextTempSensor(0);
+        UpdateContextResponse updateContextResponse = new UpdateContextResponse();
+        updateContextResponse.setErrorCode(new StatusCode(CodeEnum.CODE_200));
+
+        // The first request is sent in JSON and advertises Smile, the peer answers in Smile compressed with gzip
+        HttpHeaders httpHeaders = compactEncoding.headers(URL, jsonHeaders());
+        assertEquals(CompactEncoding.APPLICATION_SMILE, httpHeaders.getAccept().get(0));
+        assertEquals(MediaType.APPLICATION_JSON, httpHeaders.getContentType());
+        nextResponse = compactResponse(updateContextResponse);
+        UpdateContextResponse response = exchange(updateContext, httpHeaders);
+        assertEquals("200", response.getErrorCode().getCode());
+        assertNull(requests.get(0).getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+
+        // The following requests are sent in Smile with a gzip body
+        httpHeaders = compactEncoding.headers(URL, jsonHeaders());
+        assertEquals(CompactEncoding.APPLICATION_SMILE, httpHeaders.getContentType());
+        nextResponse = compactResponse(updateContextResponse);
+        exchange(updateContext, httpHeaders);
+        MockAsyncClientHttpRequest request = requests.get(1);
+        assertEquals("gzip", request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        UpdateContext sentUpdateContext = smileMapper.readValue(new GZIPInputStream(new ByteArrayInputStream(request.getBodyAsBytes())), UpdateContext.class);
+        assertEquals("S1", sentUpdateContext.getContextElements().get(0).getEntityId().getId());
+        assertEquals(UpdateAction.UPDATE, sentUpdateContext.getUpdateAction());
+
+        // Other peers are not concerned
+        assertEquals(MediaType.APPLICATION_JSON, compactEncoding.headers("http://orion:1026", jsonHeaders()).getContentType());
+    }
+
+    private UpdateContextResponse exchange(UpdateContext updateContext, HttpHeaders httpHeaders) throws Exception {
+        return compactEncoding.asyncRestTemplate.exchange(URL + "/v1/updateContext", HttpMethod.POST, new HttpEntity<>(updateContext, httpHeaders),
+                UpdateContextResponse.class).get().getBody();
+    }
+
+    private HttpHeaders jsonHeaders() {
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setContentType(MediaType.APPLICATION_JSON);
+        httpHeaders.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+        return httpHeaders;
+    }
+
+    private MockClientHttpResponse compactResponse(Object body) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            smileMapper.writeValue(gzip, body);
+        }
+        MockClientHttpResponse response = new MockClientHttpResponse(out.toByteArray(), HttpStatus.OK);
+        response.getHeaders().setContentType(CompactEncoding.APPLICATION_SMILE);
+        response.getHeaders().set(HttpHeaders.CONTENT_ENCODING, "gzip");
+        return response;
+    }
+}
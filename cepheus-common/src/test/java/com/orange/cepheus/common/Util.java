@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.common;
+
+import com.orange.ngsi.model.*;
+
+import java.util.Collections;
+
+/**
+ * Helpers for tests
+ */
+public class Util {
+
+    static public ContextElement createTemperatureContextElement(float randomValue) {
+        ContextElement contextElement = new ContextElement();
+        contextElement.setEntityId(new EntityId("S1", "TempSensor", false));
+        ContextAttribute contextAttribute = new ContextAttribute("temp", "float", 15.5 + randomValue);
+        contextElement.setContextAttributeList(Collections.singletonList(contextAttribute));
+        return contextElement;
+    }
+
+    static public UpdateContext createUpdateContextTempSensor(float randomValue) {
+        UpdateContext updateContext = new UpdateContext(UpdateAction.UPDATE);
+        updateContext.setContextElements(Collections.singletonList(createTemperatureContextElement(randomValue)));
+        return updateContext;
+    }
+}
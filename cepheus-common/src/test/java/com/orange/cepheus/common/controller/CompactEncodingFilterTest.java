@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'GNU GENERAL PUBLIC LICENSE
+ * Version 2' license which can be found in the file 'LICENSE.txt' in this package distribution or
+ * at 'http://www.gnu.org/licenses/gpl-2.0-standalone.html'.
+ */
+
+package com.orange.cepheus.common.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.orange.ngsi.model.UpdateContext;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.StreamUtils;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.orange.cepheus.common.CompactEncoding.APPLICATION_SMILE;
+import static com.orange.cepheus.common.Util.createUpdateContextTempSensor;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the server side of the compact encoding
+ */
+public class CompactEncodingFilterTest {
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+    private final CompactEncodingFilter filter = new CompactEncodingFilter();
+
+    @Test
+    public void jsonRequestTest() throws Exception {
+        byte[] json = jsonMapper.writeValueAsBytes(createUpdateContextTempSensor(0));
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/v1/updateContext");
+        request.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        request.addHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE);
+        request.setContent(json);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(request, response, (req, res) -> {
+            assertSame(request, req);
+            res.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            res.getOutputStream().write(StreamUtils.copyToByteArray(req.getInputStream()));
+        });
+
+        assertArrayEquals(json, response.getContentAsByteArray());
+        assertNull(response.getHeader(HttpHeaders.CONTENT_ENCODING));
+    }
+
+    @Test
+    public void compactRequestTest() throws Exception {
+        // Large enough to be compressed
+        UpdateContext updateContext = createUpdateContextTempSensor(0);
+        updateContext.setContextElements(Collections.nCopies(10, updateContext.getContextElements().get(0)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            smileMapper.writeValue(gzip, updateContext);
+        }
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/v1/updateContext");
+        request.setContentType(APPLICATION_SMILE.toString());
+        request.addHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        request.addHeader(HttpHeaders.ACCEPT, "application/x-jackson-smile, application/json;q=0.9");
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        request.setContent(out.toByteArray());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // The controllers see a plain JSON request and answer in JSON
+        filter.doFilter(request, response, (req, res) -> {
+            assertEquals(MediaType.APPLICATION_JSON_VALUE, req.getContentType());
+            assertEquals(-1, req.getContentLength());
+            UpdateContext received = jsonMapper.readValue(req.getInputStream(), UpdateContext.class);
+            assertEquals("S1", received.getContextElements().get(0).getEntityId().getId());
+            res.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            jsonMapper.writeValue(res.getOutputStream(), received);
+        });
+
+        assertEquals(APPLICATION_SMILE.toString(), response.getContentType());
+        assertEquals("gzip", response.getHeader(HttpHeaders.CONTENT_ENCODING));
+        byte[] body = response.getContentAsByteArray();
+        assertEquals(body.length, response.getContentLength());
+        UpdateContext echo = smileMapper.readValue(new GZIPInputStream(new ByteArrayInputStream(body)), UpdateContext.class);
+        assertEquals("S1", echo.getContextElements().get(0).getEntityId().getId());
+        assertEquals(updateContext.getUpdateAction(), echo.getUpdateAction());
+    }
+
+    @Test
+    public void readListenerTest() throws Exception {
+        byte[] json = jsonMapper.writeValueAsBytes(createUpdateContextTempSensor(0));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(json);
+        }
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/v1/updateContext");
+        request.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        request.addHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        request.setContent(out.toByteArray());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // A non blocking reader is given the whole decompressed body
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        AtomicBoolean allDataRead = new AtomicBoolean();
+        filter.doFilter(request, response, (req, res) -> {
+            ServletInputStream in = req.getInputStream();
+            in.setReadListener(new ReadListener() {
+                @Override
+                public void onDataAvailable() throws IOException {
+                    byte[] buffer = new byte[64];
+                    while (in.isReady() && !in.isFinished()) {
+                        received.write(buffer, 0, in.read(buffer));
+                    }
+                }
+
+                @Override
+                public void onAllDataRead() {
+                    allDataRead.set(true);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    fail(throwable.getMessage());
+                }
+            });
+        });
+
+        assertArrayEquals(json, received.toByteArray());
+        assertTrue(allDataRead.get());
+    }
+}